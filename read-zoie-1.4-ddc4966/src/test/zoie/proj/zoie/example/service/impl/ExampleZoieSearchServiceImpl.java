@@ -1,6 +1,5 @@
 package proj.zoie.example.service.impl;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -12,13 +11,11 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.Searcher;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.highlight.Highlighter;
 import org.apache.lucene.search.highlight.QueryScorer;
@@ -27,6 +24,7 @@ import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
 
 import proj.zoie.api.IndexReaderFactory;
 import proj.zoie.api.ZoieException;
+import proj.zoie.api.ZoieSearcherManager;
 import proj.zoie.service.api.SearchHit;
 import proj.zoie.service.api.SearchRequest;
 import proj.zoie.service.api.SearchResult;
@@ -36,10 +34,29 @@ public class ExampleZoieSearchServiceImpl<R extends IndexReader> implements Zoie
 
 	private static final Logger log = Logger.getLogger(ExampleZoieSearchServiceImpl.class);
 	
-	private IndexReaderFactory<R> _idxReaderFactory;
+	private final IndexReaderFactory<R> _idxReaderFactory;
+	private final ZoieSearcherManager<R> _searcherManager;
+	
+	// QueryParser is not thread safe, each search thread keeps its own
+	private final ThreadLocal<QueryParser> _queryParser = new ThreadLocal<QueryParser>()
+	{
+		@Override
+		protected QueryParser initialValue()
+		{
+			return new QueryParser("content",_idxReaderFactory.getAnalyzer());
+		}
+	};
 	
 	public ExampleZoieSearchServiceImpl(IndexReaderFactory<R> idxReaderFactory){
-		_idxReaderFactory=idxReaderFactory;
+		this(new ZoieSearcherManager<R>(idxReaderFactory));
+	}
+	
+	/**
+	 * @param searcherManager shared with the other services searching the same indexes
+	 */
+	public ExampleZoieSearchServiceImpl(ZoieSearcherManager<R> searcherManager){
+		_searcherManager=searcherManager;
+		_idxReaderFactory=searcherManager.getReaderFactory();
 	}
 	
 	private static Map<String,String[]> convert(Document doc)
@@ -62,14 +79,11 @@ public class ExampleZoieSearchServiceImpl<R extends IndexReader> implements Zoie
 	public SearchResult search(SearchRequest req) throws ZoieException{
 		String queryString=req.getQuery();
 		Analyzer analyzer=_idxReaderFactory.getAnalyzer();
-		QueryParser qparser=new QueryParser("content",analyzer);
+		QueryParser qparser=_queryParser.get();
 		
 		SearchResult result=new SearchResult();
 		
-		List<R> readers=null;
-
-		MultiReader multiReader=null;
-		Searcher searcher = null;
+		IndexSearcher searcher = null;
 		try
 		{
 			Query q=null;
@@ -81,9 +95,8 @@ public class ExampleZoieSearchServiceImpl<R extends IndexReader> implements Zoie
 			{
 				q = qparser.parse(queryString); 
 			}
-			readers=_idxReaderFactory.getIndexReaders();
-			multiReader=new MultiReader(readers.toArray(new IndexReader[readers.size()]), false);
-			searcher=new IndexSearcher(multiReader);
+			searcher=_searcherManager.acquire();
+			IndexReader multiReader=searcher.getIndexReader();
 			
 			long start=System.currentTimeMillis();
 			TopDocs docs=searcher.search(q, null, 10);
@@ -162,11 +175,7 @@ public class ExampleZoieSearchServiceImpl<R extends IndexReader> implements Zoie
 		{
 			if (searcher!=null)
 			{
-				try {
-					searcher.close();
-				} catch (IOException e) {
-					log.error(e.getMessage(),e);
-				}
+				_searcherManager.release(searcher);
 			}
 		}
 	}
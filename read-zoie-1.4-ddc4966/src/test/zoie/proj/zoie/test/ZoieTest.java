@@ -1,23 +1,43 @@
 package proj.zoie.test;
 
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexUtil;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy;
 import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.ThrottledMergeScheduler;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.DocIdSetIterator;
@@ -27,18 +47,51 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Searcher;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMDirectory;
 
+import proj.zoie.api.IndexReaderLease;
 import proj.zoie.api.UIDDocIdSet;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.ZoieSearcherManager;
+import proj.zoie.api.DataSerializer;
+import proj.zoie.api.DataConsumer;
 import proj.zoie.api.DataConsumer.DataEvent;
 import proj.zoie.api.impl.DocIDMapperImpl;
+import proj.zoie.api.impl.util.PersistentIntSet;
+import proj.zoie.api.indexing.AbstractZoieIndexable;
 import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.Indexable;
+import proj.zoie.api.indexing.IndexableInterpreter;
+import proj.zoie.api.indexing.RedecoratingIndexReaderDecorator;
+import proj.zoie.api.indexing.UIDExtractor;
+import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
+import proj.zoie.api.indexing.ZoieIndexable;
 import proj.zoie.impl.indexing.AsyncDataConsumer;
+import proj.zoie.impl.indexing.FileDataProvider;
+import proj.zoie.impl.indexing.FileIndexableInterpreter;
+import proj.zoie.impl.indexing.IndexUpdatedEvent;
+import proj.zoie.impl.indexing.IndexingEventListener;
 import proj.zoie.impl.indexing.MemoryStreamDataProvider;
+import proj.zoie.impl.indexing.ParallelFileCrawler;
+import proj.zoie.impl.indexing.PrefetchedFile;
+import proj.zoie.impl.indexing.StreamDataProvider;
+import proj.zoie.impl.indexing.WaitStrategy;
 import proj.zoie.impl.indexing.ZoieSystem;
+import proj.zoie.impl.indexing.internal.AdaptiveBatchController;
+import proj.zoie.impl.indexing.internal.BaseSearchIndex;
+import proj.zoie.impl.indexing.internal.BatchedIndexDataLoader;
+import proj.zoie.impl.indexing.internal.DelegateIndexDataConsumer;
+import proj.zoie.impl.indexing.internal.EventLog;
 import proj.zoie.impl.indexing.internal.IndexReaderDispenser;
 import proj.zoie.impl.indexing.internal.IndexSignature;
+import proj.zoie.impl.indexing.internal.OffHeapDirectory;
+import proj.zoie.impl.indexing.internal.OverflowLog;
+import proj.zoie.impl.indexing.internal.RAMLuceneIndexDataLoader;
+import proj.zoie.impl.indexing.internal.RAMSearchIndex;
+import proj.zoie.impl.indexing.internal.SearchIndexManager;
 import proj.zoie.test.data.TestData;
 import proj.zoie.test.data.TestDataInterpreter;
 import proj.zoie.test.mock.MockDataLoader;
@@ -100,12 +153,31 @@ public class ZoieTest extends ZoieTestCase {
 	    return( path.delete() );
 	  }
 	
-	private static Searcher getSearcher(ZoieSystem<ZoieIndexReader,String> zoie) throws IOException
+	/**
+	 * The lease on the readers is closed when the searcher is closed.
+	 */
+	private static Searcher getSearcher(final ZoieSystem<ZoieIndexReader,String> zoie) throws IOException
 	{
-		List<ZoieIndexReader> readers=zoie.getIndexReaders();
-		MultiReader reader=new MultiReader(readers.toArray(new IndexReader[readers.size()]),false);
+		final IndexReaderLease<ZoieIndexReader> lease=zoie.leaseIndexReaders();
+		final List<ZoieIndexReader> readers=lease.getReaders();
+		final MultiReader reader=new MultiReader(readers.toArray(new IndexReader[readers.size()]),false);
 		
-		IndexSearcher searcher=new IndexSearcher(reader);
+		IndexSearcher searcher=new IndexSearcher(reader)
+		{
+		  @Override
+		  public void close() throws IOException
+		  {
+		    try
+		    {
+		      super.close();
+		      reader.close();
+		    }
+		    finally
+		    {
+		      lease.close();
+		    }
+		  }
+		};
 		return searcher;
 	}
 	
@@ -173,6 +245,51 @@ public class ZoieTest extends ZoieTestCase {
 		}	
 	}
 	
+	public void testSearcherManager() throws ZoieException,IOException{
+		File idxDir=getIdxDir();
+		ZoieSystem<ZoieIndexReader,String> idxSystem=createZoie(idxDir,true);
+		idxSystem.start();
+		
+		MemoryStreamDataProvider<String> memoryProvider=new MemoryStreamDataProvider<String>();
+		memoryProvider.setDataConsumer(idxSystem);
+		memoryProvider.start();
+		
+		ZoieSearcherManager<ZoieIndexReader> searcherManager=new ZoieSearcherManager<ZoieIndexReader>(idxSystem);
+		try
+		{
+			List<DataEvent<String>> list=new ArrayList<DataEvent<String>>(1);
+			list.add(new DataEvent<String>(0,"zoie 0"));
+			memoryProvider.addEvents(list);
+			idxSystem.syncWthVersion(10000, 0);
+			
+			IndexSearcher searcher1=searcherManager.acquire();
+			IndexSearcher searcher2=searcherManager.acquire();
+			assertSame("searcher should be shared until the readers change", searcher1, searcher2);
+			assertEquals(1, searcher1.search(new TermQuery(new Term("contents","zoie")),10).totalHits);
+			searcherManager.release(searcher2);
+			
+			list=new ArrayList<DataEvent<String>>(1);
+			list.add(new DataEvent<String>(1,"zoie 1"));
+			memoryProvider.addEvents(list);
+			idxSystem.syncWthVersion(10000, 1);
+			
+			IndexSearcher searcher3=searcherManager.acquire();
+			assertNotSame(searcher1, searcher3);
+			assertEquals(2, searcher3.search(new TermQuery(new Term("contents","zoie")),10).totalHits);
+			// the replaced searcher stays usable until released
+			assertEquals(1, searcher1.search(new TermQuery(new Term("contents","zoie")),10).totalHits);
+			searcherManager.release(searcher1);
+			searcherManager.release(searcher3);
+		}
+		finally
+		{
+			searcherManager.close();
+			memoryProvider.stop();
+			idxSystem.shutdown();
+			deleteDirectory(idxDir);
+		}
+	}
+	
 	public void testRealtime() throws ZoieException
 	{
 		File idxDir=getIdxDir();
@@ -277,6 +394,119 @@ public class ZoieTest extends ZoieTestCase {
 	  }
 	}
 
+	public void testStreamDataProviderBatchPull() throws ZoieException, InterruptedException
+	{
+	  final List<Integer> maxes=new ArrayList<Integer>();
+	  final int[] calls=new int[1];
+	  StreamDataProvider<Integer> provider=new StreamDataProvider<Integer>()
+	  {
+	    @Override
+	    public DataEvent<Integer> next()
+	    {
+	      throw new IllegalStateException("next() called instead of nextBatch()");
+	    }
+	    
+	    @Override
+	    public int nextBatch(Collection<DataEvent<Integer>> batch, int max)
+	    {
+	      maxes.add(max);
+	      int from, to;
+	      switch(calls[0]++)
+	      {
+	        case 0: from=0; to=3; break;    // partial batches
+	        case 1: from=3; to=5; break;
+	        default: return 0;              // no more data
+	      }
+	      for (int i=from;i<to;++i)
+	      {
+	        batch.add(new DataEvent<Integer>(100L+i,i));
+	      }
+	      return to-from;
+	    }
+	    
+	    @Override
+	    protected void reset()
+	    {
+	    }
+	  };
+	  final List<DataEvent<Integer>> consumed=new ArrayList<DataEvent<Integer>>();
+	  provider.setDataConsumer(new DataConsumer<Integer>()
+	  {
+	    public void consume(Collection<DataEvent<Integer>> data)
+	    {
+	      synchronized(consumed)
+	      {
+	        consumed.addAll(data);
+	        consumed.notifyAll();
+	      }
+	    }
+	  });
+	  provider.setBatchSize(10);
+	  provider.start();
+	  try
+	  {
+	    // the partial batches are flushed together once the provider runs dry
+	    long due=System.currentTimeMillis()+10000;
+	    synchronized(consumed)
+	    {
+	      while(consumed.size()<5 && System.currentTimeMillis()<due)
+	      {
+	        consumed.wait(100);
+	      }
+	    }
+	    assertEquals(5, consumed.size());
+	    for (int i=0;i<5;++i)
+	    {
+	      assertEquals(Integer.valueOf(i), consumed.get(i).getData());
+	      assertEquals(100L+i, consumed.get(i).getVersion());
+	    }
+	    // each pull asks for no more than the room left in the batch
+	    assertEquals(Integer.valueOf(10), maxes.get(0));
+	    assertEquals(Integer.valueOf(7), maxes.get(1));
+	    assertEquals(Integer.valueOf(5), maxes.get(2));
+	  }
+	  finally
+	  {
+	    provider.stop();
+	  }
+	}
+	
+	public void testBoundedStreamDataProvider() throws ZoieException
+	{
+	  final int[] capacities = { 1, 7, 100, 5000 };
+	  final int count=1000;
+	  
+	  for(int capacity : capacities)
+	  {
+	    MockDataLoader<Integer> consumer=new MockDataLoader<Integer>();
+	    consumer.setDelay(0L);
+	    MemoryStreamDataProvider<Integer> memoryProvider=new MemoryStreamDataProvider<Integer>(capacity);
+	    memoryProvider.setBatchSize(10);
+	    memoryProvider.setDataConsumer(consumer);
+	    memoryProvider.start();
+	    try
+	    {
+	      List<DataEvent<Integer>> list=new ArrayList<DataEvent<Integer>>(count);
+	      for (int i=0;i<count;++i)
+	      {
+	        list.add(new DataEvent<Integer>(i,i));
+	      }
+	      // blocks whenever the queue is full until the data thread catches up
+	      memoryProvider.addEvents(list);
+	      assertTrue("capacity exceeded", memoryProvider.getQueueSize()<=capacity);
+	      
+	      memoryProvider.syncWthVersion(10000, count-1);
+	      assertEquals("capacity="+capacity, count, consumer.getCount());
+	      assertEquals(count, memoryProvider.getCount());
+	      assertEquals(Integer.valueOf(count-1), consumer.getLastConsumed());
+	    }
+	    finally
+	    {
+	      memoryProvider.stop();
+	    }
+	  }
+	}
+
 	public void testAsyncDataConsumer() throws ZoieException
 	{
 	  final long[] delays = { 0L, 10L, 100L, 1000L };
@@ -330,320 +560,1899 @@ public class ZoieTest extends ZoieTestCase {
       }
 	}
 	
-    private class QueryThread extends Thread
-    {
-      public volatile boolean stop = false;
-      public volatile boolean mismatch = false;
-      public volatile String message = null;
-      public Exception exception = null;
-    }
-    
-    public void testDelSet() throws ZoieException
-    {
-      File idxDir = getIdxDir();
-      final ZoieSystem<ZoieIndexReader,String> idxSystem = createZoie(idxDir,true, 100);
-      idxSystem.start();
-      final String query = "zoie";
-      int numThreads = 3;
-      QueryThread[] queryThreads = new QueryThread[numThreads];
-      for(int i = 0; i < queryThreads.length; i++)
+	public void testAsyncDataConsumerRingBuffer() throws ZoieException
+	{
+	  final WaitStrategy[] strategies = { new WaitStrategy.Spin(), new WaitStrategy.Yield(), new WaitStrategy.Park() };
+	  final int[] capacities = { 1, 10, 100, 1000 };
+      final int count=1000;
+      final long timeout = 10000L;
+	  
+      for(WaitStrategy strategy : strategies)
       {
-        queryThreads[i] = new QueryThread()
+        for(int capacity : capacities)
         {
-          public void run()
+          MockDataLoader<Integer> mockLoader=new MockDataLoader<Integer>();
+          mockLoader.setDelay(0L);
+          
+          AsyncDataConsumer<Integer> asyncConsumer = new AsyncDataConsumer<Integer>();
+          asyncConsumer.setDataConsumer(mockLoader);
+          asyncConsumer.setRingBuffer(capacity, strategy);
+          asyncConsumer.start();
+
+          MemoryStreamDataProvider<Integer> memoryProvider=new MemoryStreamDataProvider<Integer>();
+          memoryProvider.setDataConsumer(asyncConsumer);
+          memoryProvider.start();
+          try
           {
-            QueryParser parser = new QueryParser("contents",idxSystem.getAnalyzer());
-            Query q;
-            try
-            {
-              q = parser.parse(query);
-            }
-            catch (Exception e)
-            {
-              exception = e;
-              return;
-            }
-            
-            int expected = TestData.testdata.length;
-            while(!stop)
-            {
-              Searcher searcher = null;
-              try
-              {
-                searcher=getSearcher(idxSystem);
-                
-                Hits hits = searcher.search(q);
-                int count = hits.length();
-                
-                //System.out.println("HITS: "+ count);
-                if (count != expected)
-                {
-                  mismatch = true;
-                  message = "hit count: " + count +" / expected: "+expected;
-                  stop = true;
-                }
-              }
-              catch(Exception ex)
-              {
-            	ex.printStackTrace();
-                exception = ex;
-                stop = true;
-              }
-              finally
-              {
-                if (searcher != null)
-                {
-                  try
-                  {
-                    searcher.close();
-                  }
-                  catch(Exception ex)
-                  {
-                  }
-                  searcher = null;
-                }
-              }
-            }
+			List<DataEvent<Integer>> list=new ArrayList<DataEvent<Integer>>(count);
+			for (int i=0;i<count;++i)
+			{
+				list.add(new DataEvent<Integer>(i,i));
+			}
+			memoryProvider.addEvents(list);
+			
+			asyncConsumer.syncWthVersion(timeout, (long)(count-1));
+			assertEquals("capacity="+capacity, count, mockLoader.getCount());
+			asyncConsumer.flushEvents(timeout);
+			assertEquals("buffer not drained", 0, asyncConsumer.getCurrentBatchSize());
           }
-        };
-      }
-      
-      MemoryStreamDataProvider<String> memoryProvider=new MemoryStreamDataProvider<String>();
-      memoryProvider.setDataConsumer(idxSystem);
-      memoryProvider.start();
-      try
-      {
-        idxSystem.setBatchSize(10);
-        
-        final int count = TestData.testdata.length;
-        List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
-        for (int i = 0; i < count; i++)
-        {
-          list.add(new DataEvent<String>(i, TestData.testdata[i]));
-        }
-        memoryProvider.addEvents(list);
-        idxSystem.syncWthVersion(100000, count - 1);
-        
-        for(QueryThread queryThread : queryThreads) queryThread.start();
-        
-        for(int n = 1; n <= 3; n++)
-        {
-          for (int i = 0; i < count; i++)
+          finally
           {
-            long version = n * count + i;
-            list = new ArrayList<DataEvent<String>>(1);
-            list.add(new DataEvent<String>(version, TestData.testdata[i]));
-            memoryProvider.addEvents(list);
-            idxSystem.syncWthVersion(10000, version);
+            memoryProvider.stop();
+            asyncConsumer.stop();
           }
-          boolean stopNow = false;
-          for(QueryThread queryThread : queryThreads) stopNow |= queryThread.stop;
-          if(stopNow) break;
-        }
-        for(QueryThread queryThread : queryThreads) queryThread.stop = true; // stop all query threads
-        for(QueryThread queryThread : queryThreads)
-        {
-          queryThread.join();
-          assertTrue("count mismatch["+queryThread.message +"]", !queryThread.mismatch);
-        }
-      }
-      catch(Exception e)
-      {
-        for(QueryThread queryThread : queryThreads)
-        {
-          if(queryThread.exception == null) throw new ZoieException(e);
         }
       }
-      finally
-      {
-        memoryProvider.stop();
-        idxSystem.shutdown();
-        deleteDirectory(idxDir);
-      }
-      
-      for(QueryThread queryThread : queryThreads)
-      {
-        if(queryThread.exception != null) throw new ZoieException(queryThread.exception);
-      }
-    }
-    
-    public void testUpdates() throws ZoieException, ParseException, IOException
-    {
-      File idxDir = getIdxDir();
-      final ZoieSystem<ZoieIndexReader,String> idxSystem = createZoie(idxDir,true);
-      idxSystem.start();
-      final String query = "zoie";
-
-      MemoryStreamDataProvider<String> memoryProvider=new MemoryStreamDataProvider<String>();
-      memoryProvider.setDataConsumer(idxSystem);
-      memoryProvider.start();
-      try
-      {
-        idxSystem.setBatchSize(10);
-        
-        long version = 0;
-        final int count = TestData.testdata.length;
-        List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
-        for (int i = 0; i < count; i++)
-        {
-          version = i;
-          list.add(new DataEvent<String>(i, TestData.testdata[i]));
-        }
-        memoryProvider.addEvents(list);
-        idxSystem.syncWthVersion(10000, version);
-        
-        QueryParser parser = new QueryParser("contents",idxSystem.getAnalyzer());
-        Query q;
-        Searcher searcher = null;
-        Hits hits;
-        
-        q = parser.parse("zoie");
-        searcher=getSearcher(idxSystem);
-        hits = searcher.search(q);
-        int expected = TestData.testdata.length;
-        assertEquals("before update: zoie count mismatch[hit count: " + hits.length() +" / expected: "+TestData.testdata.length +"]", count, hits.length());
-        q = parser.parse("zoie2");
-        searcher=getSearcher(idxSystem);
+	}
+	
+	public void testParkBackoff() throws ZoieException, InterruptedException
+	{
+	  MockDataLoader<Integer> mockLoader=new MockDataLoader<Integer>();
+	  mockLoader.setDelay(0L);
+	  AsyncDataConsumer<Integer> asyncConsumer=new AsyncDataConsumer<Integer>();
+	  asyncConsumer.setDataConsumer(mockLoader);
+	  asyncConsumer.setRingBuffer(16, new WaitStrategy.Park(1000L, 5000000L));
+	  asyncConsumer.start();
+	  try
+	  {
+	    // long enough for the idle consumer to back off to the maximum park time
+	    Thread.sleep(300);
+	    List<DataEvent<Integer>> list=new ArrayList<DataEvent<Integer>>();
+	    list.add(new DataEvent<Integer>(0,0));
+	    asyncConsumer.consume(list);
+	    asyncConsumer.syncWthVersion(1000, 0L);
+	    assertEquals(1, mockLoader.getCount());
+	    
+	    // the counter is capped, the longest wait parks instead of spinning
+	    WaitStrategy park=new WaitStrategy.Park(1000L, 1000000L);
+	    park.idle(WaitStrategy.MAX_COUNTER);
+	    park.idle(Integer.MAX_VALUE);
+	  }
+	  finally
+	  {
+	    asyncConsumer.stop();
+	  }
+	}
+	
+	public void testInterpreterThreads() throws ZoieException
+	{
+	  final int count=100;
+	  final int failUID=57;
+	  final boolean[] failChunk=new boolean[1];
+	  IndexableInterpreter<Integer> interpreter=new IndexableInterpreter<Integer>()
+	  {
+	    public Indexable interpret(final Integer src)
+	    {
+	      if (src.intValue()==failUID)
+	      {
+	        if (failChunk[0]) throw new AssertionError("interpreter failure");
+	        throw new IllegalArgumentException("bad event");
+	      }
+	      return new Indexable()
+	      {
+	        public int getUID() { return src.intValue(); }
+	        public boolean isDeleted() { return false; }
+	        public boolean isSkip() { return false; }
+	        public Document[] buildDocuments() { return new Document[0]; }
+	      };
+	    }
+	  };
+	  final List<DataEvent<ZoieIndexable>> consumed=new ArrayList<DataEvent<ZoieIndexable>>();
+	  DataConsumer<ZoieIndexable> ramConsumer=new DataConsumer<ZoieIndexable>()
+	  {
+	    public void consume(Collection<DataEvent<ZoieIndexable>> data)
+	    {
+	      consumed.addAll(data);
+	    }
+	  };
+	  DelegateIndexDataConsumer<Integer> consumer=new DelegateIndexDataConsumer<Integer>(null,ramConsumer,interpreter);
+	  consumer.setInterpreterThreads(4);
+	  try
+	  {
+	    List<DataEvent<Integer>> list=new ArrayList<DataEvent<Integer>>(count);
+	    for (int i=0;i<count;++i)
+	    {
+	      list.add(new DataEvent<Integer>(1000L+i,i));
+	    }
+	    
+	    // a bad event is skipped as on the serial path, the others keep their order and versions
+	    consumer.consume(list);
+	    assertEquals(count-1, consumed.size());
+	    int expected=0;
+	    for (DataEvent<ZoieIndexable> event : consumed)
+	    {
+	      if (expected==failUID) expected++;
+	      assertEquals(expected, event.getData().getUID());
+	      assertEquals(1000L+expected, event.getVersion());
+	      expected++;
+	    }
+	    
+	    // a failed chunk fails the batch instead of dropping its events
+	    consumed.clear();
+	    failChunk[0]=true;
+	    try
+	    {
+	      consumer.consume(list);
+	      fail("chunk failure not propagated");
+	    }
+	    catch(ZoieException e)
+	    {
+	      // expected
+	    }
+	    assertEquals(0, consumed.size());
+	  }
+	  finally
+	  {
+	    consumer.shutdown();
+	  }
+	}
+	
+	public void testUIDCoalescing() throws ZoieException
+	{
+	  // "uid:value", events starting with '!' fail the extractor but not the interpreter
+	  UIDExtractor<String> extractor=new UIDExtractor<String>()
+	  {
+	    public int extractUID(String src)
+	    {
+	      return Integer.parseInt(src.substring(0, src.indexOf(':')));
+	    }
+	  };
+	  IndexableInterpreter<String> interpreter=new IndexableInterpreter<String>()
+	  {
+	    public Indexable interpret(final String src)
+	    {
+	      return new Indexable()
+	      {
+	        public int getUID() { return Integer.parseInt(src.substring(src.startsWith("!") ? 1 : 0, src.indexOf(':'))); }
+	        public boolean isDeleted() { return false; }
+	        public boolean isSkip() { return false; }
+	        public Document[] buildDocuments() { return new Document[0]; }
+	      };
+	    }
+	  };
+	  final List<DataEvent<ZoieIndexable>> consumed=new ArrayList<DataEvent<ZoieIndexable>>();
+	  DataConsumer<ZoieIndexable> ramConsumer=new DataConsumer<ZoieIndexable>()
+	  {
+	    public void consume(Collection<DataEvent<ZoieIndexable>> data)
+	    {
+	      consumed.addAll(data);
+	    }
+	  };
+	  DelegateIndexDataConsumer<String> consumer=new DelegateIndexDataConsumer<String>(null,ramConsumer,interpreter);
+	  consumer.setUIDExtractor(extractor);
+	  AsyncDataConsumer<String> asyncConsumer=new AsyncDataConsumer<String>();
+	  asyncConsumer.setDataConsumer(consumer);
+	  asyncConsumer.setBatchSize(100);
+	  asyncConsumer.start();
+	  try
+	  {
+	    List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+	    list.add(new DataEvent<String>(0,"1:a"));
+	    list.add(new DataEvent<String>(1,"2:a"));
+	    list.add(new DataEvent<String>(2,"1:b"));
+	    list.add(new DataEvent<String>(3,"!1:c"));
+	    list.add(new DataEvent<String>(4,"3:a"));
+	    list.add(new DataEvent<String>(5,"2:b"));
+	    list.add(new DataEvent<String>(7,"1:d"));
+	    list.add(new DataEvent<String>(2,"3:b"));  // older than "3:a"
+	    asyncConsumer.consume(list);
+	    asyncConsumer.syncWthVersion(10000, 7L);
+	    
+	    // the newest event of each uid is kept in its place, the one the extractor fails on passes through
+	    long[] versions=new long[]{ 3, 4, 5, 7 };
+	    int[] uids=new int[]{ 1, 3, 2, 1 };
+	    assertEquals(versions.length, consumed.size());
+	    for (int i=0;i<versions.length;++i)
+	    {
+	      assertEquals(versions[i], consumed.get(i).getVersion());
+	      assertEquals(uids[i], consumed.get(i).getData().getUID());
+	    }
+	    assertEquals(4L, consumer.getNumCoalesced());
+	    
+	    // a batch ending with a dropped event still reaches its max version
+	    consumed.clear();
+	    list.clear();
+	    list.add(new DataEvent<String>(9,"4:a"));
+	    list.add(new DataEvent<String>(8,"4:b"));
+	    asyncConsumer.consume(list);
+	    asyncConsumer.syncWthVersion(10000, 9L);
+	    assertEquals(9L, asyncConsumer.getCurrentVersion());
+	    assertEquals(1, consumed.size());
+	    assertEquals(9L, consumed.get(0).getVersion());
+	    assertEquals(5L, consumer.getNumCoalesced());
+	  }
+	  finally
+	  {
+	    asyncConsumer.stop();
+	    consumer.shutdown();
+	  }
+	}
+	
+	private static final DataSerializer<Integer> INT_SERIALIZER=new DataSerializer<Integer>()
+	{
+	  public void serialize(Integer data, DataOutput out) throws IOException
+	  {
+	    out.writeInt(data);
+	  }
+	  
+	  public Integer deserialize(DataInput in) throws IOException
+	  {
+	    return in.readInt();
+	  }
+	};
+	
+	private static List<DataEvent<Integer>> intEvents(int from, int to)
+	{
+	  List<DataEvent<Integer>> list=new ArrayList<DataEvent<Integer>>(to-from);
+	  for (int i=from;i<to;++i)
+	  {
+	    list.add(new DataEvent<Integer>(i,i));
+	  }
+	  return list;
+	}
+	
+	public void testOverflowLog() throws IOException
+	{
+	  File file=new File(getTmpDir(),"test-overflow.log");
+	  DataSerializer<Integer> serializer=INT_SERIALIZER;
+	  OverflowLog<Integer> overflow=new OverflowLog<Integer>(file,serializer);
+	  try
+	  {
+	    int count=1000;
+	    int next=0;
+	    List<DataEvent<Integer>> list=new ArrayList<DataEvent<Integer>>();
+	    List<DataEvent<Integer>> drained=new ArrayList<DataEvent<Integer>>();
+	    // interleave appends and partial drains, events must come back in order
+	    for (int round=0;round<10;++round)
+	    {
+	      list.clear();
+	      for (int i=0;i<count/10;++i)
+	      {
+	        list.add(new DataEvent<Integer>(next,next));
+	        next++;
+	      }
+	      overflow.append(list);
+	      overflow.drainTo(drained, 37);
+	    }
+	    assertEquals(count-drained.size(), overflow.size());
+	    while(!overflow.isEmpty())
+	    {
+	      overflow.drainTo(drained, 100);
+	    }
+	    assertEquals(count, drained.size());
+	    for (int i=0;i<count;++i)
+	    {
+	      assertEquals((long)i, drained.get(i).getVersion());
+	      assertEquals(Integer.valueOf(i), drained.get(i).getData());
+	    }
+	    assertFalse("log not deleted once drained", file.exists());
+	  }
+	  finally
+	  {
+	    overflow.close();
+	  }
+	}
+	
+	public void testOverflowRecovery() throws IOException, ZoieException
+	{
+	  File file=new File(getTmpDir(),"test-overflow-recovery.log");
+	  file.delete();
+	  File idxDir=getIdxDir();
+	  deleteDirectory(idxDir);
+	  SearchIndexManager<ZoieIndexReader> mgr=new SearchIndexManager<ZoieIndexReader>(idxDir, new IndexReaderDecorator<ZoieIndexReader>()
+	  {
+	    public ZoieIndexReader decorate(ZoieIndexReader indexReader) throws IOException
+	    {
+	      return indexReader;
+	    }
+	  });
+	  try
+	  {
+	    // events not read back survive close, those read back do not
+	    OverflowLog<Integer> overflow=new OverflowLog<Integer>(file,INT_SERIALIZER);
+	    overflow.append(intEvents(0,100));
+	    List<DataEvent<Integer>> drained=new ArrayList<DataEvent<Integer>>();
+	    overflow.drainTo(drained, 30);
+	    overflow.close();
+	    assertTrue("overflow log deleted on close", file.exists());
+	    
+	    // an incomplete event at the end, as left by a crash, is dropped
+	    FileOutputStream out=new FileOutputStream(file,true);
+	    out.write(new byte[]{ 1, 2, 3 });
+	    out.close();
+	    overflow=new OverflowLog<Integer>(file,INT_SERIALIZER);
+	    assertEquals(70, overflow.recover());
+	    overflow.append(intEvents(100,101));
+	    drained.clear();
+	    while(!overflow.isEmpty())
+	    {
+	      overflow.drainTo(drained, 16);
+	    }
+	    assertEquals(71, drained.size());
+	    for (int i=0;i<drained.size();++i)
+	    {
+	      assertEquals((long)(30+i), drained.get(i).getVersion());
+	    }
+	    assertFalse(file.exists());
+	    
+	    // raw events are spilled while the disk loader is not running, and indexed once read back
+	    final MockDataLoader<ZoieIndexable> mockLoader=new MockDataLoader<ZoieIndexable>();
+	    mockLoader.setDelay(0L);
+	    final List<DataEvent<ZoieIndexable>> consumed=new ArrayList<DataEvent<ZoieIndexable>>();
+	    DataConsumer<ZoieIndexable> ramConsumer=new DataConsumer<ZoieIndexable>()
+	    {
+	      public void consume(Collection<DataEvent<ZoieIndexable>> data)
+	      {
+	        consumed.addAll(data);
+	      }
+	    };
+	    IndexableInterpreter<Integer> interpreter=new IndexableInterpreter<Integer>()
+	    {
+	      public Indexable interpret(final Integer src)
+	      {
+	        return new Indexable()
+	        {
+	          public int getUID() { return src.intValue(); }
+	          public boolean isDeleted() { return false; }
+	          public boolean isSkip() { return false; }
+	          public Document[] buildDocuments() { return new Document[0]; }
+	        };
+	      }
+	    };
+	    final List<DelegateIndexDataConsumer<Integer>> delegate=new ArrayList<DelegateIndexDataConsumer<Integer>>(1);
+	    List<IndexingEventListener> lsnrList=new ArrayList<IndexingEventListener>();
+	    lsnrList.add(new IndexingEventListener()
+	    {
+	      public void handleIndexingEvent(IndexingEvent evt)
+	      {
+	        if (evt instanceof IndexUpdatedEvent)
+	        {
+	          delegate.get(0).drainOverflow();
+	        }
+	      }
+	    });
+	    BatchedIndexDataLoader<ZoieIndexReader,ZoieIndexable> loader=new BatchedIndexDataLoader<ZoieIndexReader,ZoieIndexable>(mockLoader,10,10,10L,mgr,lsnrList);
+	    DelegateIndexDataConsumer<Integer> consumer=new DelegateIndexDataConsumer<Integer>(loader,ramConsumer,interpreter);
+	    delegate.add(consumer);
+	    consumer.setOverflowLog(file,INT_SERIALIZER);
+	    for (int i=0;i<4;++i)
+	    {
+	      consumer.consume(intEvents(i*10,i*10+10));
+	    }
+	    assertEquals(20, consumer.getOverflowSize());
+	    assertEquals(20, consumed.size());
+	    try
+	    {
+	      consumer.syncOverflow(100, 39);
+	      fail("synced with spilled events");
+	    }
+	    catch(ZoieException e)
+	    {
+	      // expected
+	    }
+	    consumer.syncOverflow(100, 19);
+	    consumer.shutdown();
+	    assertTrue("spilled events discarded on shutdown", file.exists());
+	    
+	    consumer=new DelegateIndexDataConsumer<Integer>(loader,ramConsumer,interpreter);
+	    delegate.set(0, consumer);
+	    consumer.setOverflowLog(file,INT_SERIALIZER);
+	    assertEquals(20, consumer.getOverflowSize());
+	    loader.start();
+	    try
+	    {
+	      consumer.drainOverflow();
+	      consumer.syncOverflow(10000, 39);
+	      loader.flushEvents(10000);
+	    }
+	    finally
+	    {
+	      loader.shutdown();
+	      consumer.shutdown();
+	    }
+	    assertEquals(40, consumed.size());
+	    for (int i=0;i<consumed.size();++i)
+	    {
+	      assertEquals(i, consumed.get(i).getData().getUID());
+	      assertEquals((long)i, consumed.get(i).getVersion());
+	    }
+	    assertEquals(40, mockLoader.getCount());
+	    assertEquals(39, mockLoader.getLastConsumed().getUID());
+	    assertFalse(file.exists());
+	  }
+	  finally
+	  {
+	    file.delete();
+	    mgr.close();
+	    deleteDirectory(idxDir);
+	  }
+	}
+	
+	public void testOverflowSync() throws ZoieException, IOException
+	{
+	  File idxDir=getIdxDir();
+	  deleteDirectory(idxDir);
+	  File file=new File(getTmpDir(),"test-overflow-sync.log");
+	  file.delete();
+	  ZoieSystem<ZoieIndexReader,String> idxSystem=createZoie(idxDir,true,0L);
+	  idxSystem.setMaxBatchSize(10);
+	  idxSystem.setOverflowLog(file,STRING_SERIALIZER);
+	  idxSystem.start();
+	  MemoryStreamDataProvider<String> memoryProvider=new MemoryStreamDataProvider<String>();
+	  memoryProvider.setDataConsumer(idxSystem);
+	  memoryProvider.start();
+	  try
+	  {
+	    int count=500;
+	    List<DataEvent<String>> list=new ArrayList<DataEvent<String>>(count);
+	    for (int i=0;i<count;++i)
+	    {
+	      list.add(new DataEvent<String>(i,"zoie "+i));
+	    }
+	    memoryProvider.addEvents(list);
+	    memoryProvider.flush();
+	    
+	    // returns only once the events spilled on the way are indexed as well
+	    idxSystem.syncWthVersion(30000, count-1);
+	    assertEquals(0, idxSystem.getOverflowSize());
+	    assertEquals(count, countHits(idxSystem, new TermQuery(new Term("contents","zoie"))));
+	  }
+	  finally
+	  {
+	    memoryProvider.stop();
+	    idxSystem.shutdown();
+	    file.delete();
+	    deleteDirectory(idxDir);
+	  }
+	}
+	
+	public void testAdaptiveBatchReset() throws IOException, ZoieException
+	{
+	  File idxDir=getIdxDir();
+	  deleteDirectory(idxDir);
+	  SearchIndexManager<ZoieIndexReader> mgr=new SearchIndexManager<ZoieIndexReader>(idxDir, new IndexReaderDecorator<ZoieIndexReader>()
+	  {
+	    public ZoieIndexReader decorate(ZoieIndexReader indexReader) throws IOException
+	    {
+	      return indexReader;
+	    }
+	  });
+	  MockDataLoader<Integer> mockLoader=new MockDataLoader<Integer>();
+	  mockLoader.setDelay(0L);
+	  BatchedIndexDataLoader<ZoieIndexReader,Integer> loader=new BatchedIndexDataLoader<ZoieIndexReader,Integer>(mockLoader,50,1000,300L,mgr,null);
+	  try
+	  {
+	    loader.setAdaptiveController(new AdaptiveBatchController(1000L,5000L));
+	    loader.start();
+	    loader.consume(intEvents(0,10));
+	    loader.flushEvents(10000);
+	    assertTrue("settings not adapted", loader.getBatchSize()!=50 || loader.getDelay()!=300L);
+	    
+	    // static settings changed while adaptive are the ones restored
+	    loader.setBatchSize(70);
+	    loader.consume(intEvents(10,20));
+	    loader.flushEvents(10000);
+	    loader.setAdaptiveController(null);
+	    assertEquals(70, loader.getBatchSize());
+	    assertEquals(300L, loader.getDelay());
+	  }
+	  finally
+	  {
+	    loader.shutdown();
+	    mgr.close();
+	    deleteDirectory(idxDir);
+	  }
+	}
+	
+	private static final DataSerializer<String> STRING_SERIALIZER=new DataSerializer<String>()
+	{
+	  public void serialize(String data, DataOutput out) throws IOException
+	  {
+	    out.writeUTF(data);
+	  }
+	  
+	  public String deserialize(DataInput in) throws IOException
+	  {
+	    return in.readUTF();
+	  }
+	};
+	
+	public void testEventLog() throws IOException, ZoieException
+	{
+	  File logDir=new File(getTmpDir(),"test-eventlog");
+	  deleteDirectory(logDir);
+	  DataSerializer<String> serializer=STRING_SERIALIZER;
+	  try
+	  {
+	    int count=2000;
+	    // small segments so that the log rolls several times
+	    EventLog<String> eventLog=new EventLog<String>(logDir,serializer,4096);
+	    eventLog.open();
+	    List<DataEvent<String>> list=new ArrayList<DataEvent<String>>();
+	    for (int i=0;i<count;++i)
+	    {
+	      list.add(new DataEvent<String>(i,"event "+i));
+	      if (list.size()==100)
+	      {
+	        eventLog.append(list);
+	        list=new ArrayList<DataEvent<String>>();
+	      }
+	    }
+	    eventLog.close();
+	    
+	    // reopen as after a restart and replay what the disk index does not have
+	    final long diskVersion=1499;
+	    eventLog=new EventLog<String>(logDir,serializer,4096);
+	    eventLog.open();
+	    MockDataLoader<String> consumer=new MockDataLoader<String>();
+	    consumer.setDelay(0L);
+	    int replayed=eventLog.replay(diskVersion,consumer,64);
+	    assertEquals(count-1-diskVersion, replayed);
+	    assertEquals(count-1-diskVersion, consumer.getCount());
+	    assertEquals("event "+(count-1), consumer.getLastConsumed());
+	    
+	    int numSegments=logDir.list().length;
+	    assertTrue("log did not roll", numSegments>1);
+	    eventLog.truncate(diskVersion);
+	    assertTrue("nothing truncated", logDir.list().length<numSegments);
+	    consumer=new MockDataLoader<String>();
+	    consumer.setDelay(0L);
+	    assertEquals(count-1-diskVersion, eventLog.replay(diskVersion,consumer,64));
+	    eventLog.close();
+	  }
+	  finally
+	  {
+	    deleteDirectory(logDir);
+	  }
+	}
+	
+	public void testEventLogStart() throws IOException
+	{
+	  File idxDir=getIdxDir();
+	  // a plain file where the log directory should be
+	  File logFile=new File(getTmpDir(),"test-eventlog-file");
+	  logFile.delete();
+	  new FileOutputStream(logFile).close();
+	  try
+	  {
+	    ZoieSystem<ZoieIndexReader,String> idxSystem=createZoie(idxDir,true);
+	    idxSystem.setEventLog(logFile,STRING_SERIALIZER);
+	    try
+	    {
+	      idxSystem.start();
+	      idxSystem.shutdown();
+	      fail("started without an event log");
+	    }
+	    catch(IllegalStateException e)
+	    {
+	      // expected
+	    }
+	    
+	    idxSystem=createZoie(idxDir,true);
+	    idxSystem.start();
+	    try
+	    {
+	      idxSystem.setEventLog(logFile,STRING_SERIALIZER);
+	      fail("event log set after start");
+	    }
+	    catch(IllegalStateException e)
+	    {
+	      // expected
+	    }
+	    finally
+	    {
+	      idxSystem.shutdown();
+	    }
+	  }
+	  finally
+	  {
+	    logFile.delete();
+	    deleteDirectory(idxDir);
+	  }
+	}
+	
+	private static File createCrawlDir(int count) throws IOException
+	{
+	  File dir=new File(getTmpDir(),"test-crawl");
+	  deleteDirectory(dir);
+	  dir.mkdirs();
+	  for (int i=0;i<count;++i)
+	  {
+	    FileOutputStream out=new FileOutputStream(new File(dir,"file"+i+".txt"));
+	    try
+	    {
+	      out.write(("content "+i).getBytes("UTF-8"));
+	    }
+	    finally
+	    {
+	      out.close();
+	    }
+	  }
+	  return dir;
+	}
+	
+	public void testParallelFileCrawler() throws IOException, InterruptedException
+	{
+	  int count=200;
+	  File dir=createCrawlDir(count);
+	  try
+	  {
+	    // a flat directory with one lister, the prefetch backlog of 2 also makes the lister prefetch
+	    ParallelFileCrawler crawler=new ParallelFileCrawler(dir,1,4,2,ParallelFileCrawler.DEFAULT_MAP_THRESHOLD,null);
+	    crawler.start();
+	    Set<String> names=new HashSet<String>();
+	    File file;
+	    while((file=crawler.take())!=null)
+	    {
+	      assertTrue(file instanceof PrefetchedFile);
+	      PrefetchedFile prefetched=(PrefetchedFile)file;
+	      assertNotNull("not prefetched: "+file, prefetched.getContent());
+	      byte[] bytes=new byte[prefetched.getContent().remaining()];
+	      prefetched.getContent().get(bytes);
+	      String name=file.getName();
+	      assertEquals("content "+name.substring(4,name.length()-4), new String(bytes,"UTF-8"));
+	      assertEquals(file.length(), prefetched.getCrawlState()[1]);
+	      assertTrue("handed over twice: "+name, names.add(name));
+	    }
+	    assertTrue(crawler.isCompleted());
+	    assertEquals(count, names.size());
+	    assertEquals(count, crawler.getNumFiles());
+	    
+	    crawler=new ParallelFileCrawler(dir,1,4,2,ParallelFileCrawler.DEFAULT_MAP_THRESHOLD,crawler.getState());
+	    crawler.start();
+	    assertNull(crawler.take());
+	    assertEquals(count, crawler.getNumSkipped());
+	  }
+	  finally
+	  {
+	    deleteDirectory(dir);
+	  }
+	}
+	
+	private static int crawl(FileDataProvider provider, List<Long> versions)
+	{
+	  int count=0;
+	  DataEvent<File> evt;
+	  while((evt=provider.next())!=null)
+	  {
+	    if (versions!=null) versions.add(evt.getVersion());
+	    count++;
+	  }
+	  return count;
+	}
+	
+	public void testCrawlStateCommit() throws IOException
+	{
+	  int count=20;
+	  File dir=createCrawlDir(count);
+	  File stateFile=new File(getTmpDir(),"test-crawl.state");
+	  stateFile.delete();
+	  File idxDir=getIdxDir();
+	  deleteDirectory(idxDir);
+	  ZoieSystem<ZoieIndexReader,File> zoie=new ZoieSystem<ZoieIndexReader,File>(idxDir,new FileIndexableInterpreter(),new IndexReaderDecorator<ZoieIndexReader>()
+	  {
+	    public ZoieIndexReader decorate(ZoieIndexReader indexReader) throws IOException
+	    {
+	      return indexReader;
+	    }
+	  },null,null,50,100,false);
+	  try
+	  {
+	    long diskVersion=zoie.getCurrentDiskVersion();
+	    FileDataProvider provider=new FileDataProvider(dir);
+	    provider.setParallelCrawl(2,5);
+	    provider.setCrawlStateFile(stateFile,zoie);
+	    List<Long> versions=new ArrayList<Long>();
+	    assertEquals(count, crawl(provider,versions));
+	    assertTrue("versions must continue from the disk version", versions.get(0)>diskVersion);
+	    assertFalse("state saved before the files are committed", stateFile.exists());
+	    
+	    // as if the disk index committed the first 5 files and the process died
+	    provider.commitCrawlState(versions.get(4));
+	    assertTrue(stateFile.exists());
+	    provider=new FileDataProvider(dir);
+	    provider.setParallelCrawl(2,5);
+	    provider.setCrawlStateFile(stateFile,zoie);
+	    versions.clear();
+	    assertEquals(count-5, crawl(provider,versions));
+	    
+	    provider.commitCrawlState(versions.get(versions.size()-1));
+	    provider=new FileDataProvider(dir);
+	    provider.setParallelCrawl(2,5);
+	    provider.setCrawlStateFile(stateFile,zoie);
+	    assertEquals(0, crawl(provider,null));
+	    assertEquals(count, provider.getNumSkipped());
+	    provider.stop();
+	  }
+	  finally
+	  {
+	    zoie.shutdown();
+	    deleteDirectory(dir);
+	    deleteDirectory(idxDir);
+	    stateFile.delete();
+	  }
+	}
+	
+    private class QueryThread extends Thread
+    {
+      public volatile boolean stop = false;
+      public volatile boolean mismatch = false;
+      public volatile String message = null;
+      public Exception exception = null;
+    }
+    
+    public void testDelSet() throws ZoieException
+    {
+      File idxDir = getIdxDir();
+      final ZoieSystem<ZoieIndexReader,String> idxSystem = createZoie(idxDir,true, 100);
+      idxSystem.start();
+      final String query = "zoie";
+      int numThreads = 3;
+      QueryThread[] queryThreads = new QueryThread[numThreads];
+      for(int i = 0; i < queryThreads.length; i++)
+      {
+        queryThreads[i] = new QueryThread()
+        {
+          public void run()
+          {
+            QueryParser parser = new QueryParser("contents",idxSystem.getAnalyzer());
+            Query q;
+            try
+            {
+              q = parser.parse(query);
+            }
+            catch (Exception e)
+            {
+              exception = e;
+              return;
+            }
+            
+            int expected = TestData.testdata.length;
+            while(!stop)
+            {
+              Searcher searcher = null;
+              try
+              {
+                searcher=getSearcher(idxSystem);
+                
+                Hits hits = searcher.search(q);
+                int count = hits.length();
+                
+                //System.out.println("HITS: "+ count);
+                if (count != expected)
+                {
+                  mismatch = true;
+                  message = "hit count: " + count +" / expected: "+expected;
+                  stop = true;
+                }
+              }
+              catch(Exception ex)
+              {
+            	ex.printStackTrace();
+                exception = ex;
+                stop = true;
+              }
+              finally
+              {
+                if (searcher != null)
+                {
+                  try
+                  {
+                    searcher.close();
+                  }
+                  catch(Exception ex)
+                  {
+                  }
+                  searcher = null;
+                }
+              }
+            }
+          }
+        };
+      }
+      
+      MemoryStreamDataProvider<String> memoryProvider=new MemoryStreamDataProvider<String>();
+      memoryProvider.setDataConsumer(idxSystem);
+      memoryProvider.start();
+      try
+      {
+        idxSystem.setBatchSize(10);
+        
+        final int count = TestData.testdata.length;
+        List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
+        for (int i = 0; i < count; i++)
+        {
+          list.add(new DataEvent<String>(i, TestData.testdata[i]));
+        }
+        memoryProvider.addEvents(list);
+        idxSystem.syncWthVersion(100000, count - 1);
+        
+        for(QueryThread queryThread : queryThreads) queryThread.start();
+        
+        for(int n = 1; n <= 3; n++)
+        {
+          for (int i = 0; i < count; i++)
+          {
+            long version = n * count + i;
+            list = new ArrayList<DataEvent<String>>(1);
+            list.add(new DataEvent<String>(version, TestData.testdata[i]));
+            memoryProvider.addEvents(list);
+            idxSystem.syncWthVersion(10000, version);
+          }
+          boolean stopNow = false;
+          for(QueryThread queryThread : queryThreads) stopNow |= queryThread.stop;
+          if(stopNow) break;
+        }
+        for(QueryThread queryThread : queryThreads) queryThread.stop = true; // stop all query threads
+        for(QueryThread queryThread : queryThreads)
+        {
+          queryThread.join();
+          assertTrue("count mismatch["+queryThread.message +"]", !queryThread.mismatch);
+        }
+      }
+      catch(Exception e)
+      {
+        for(QueryThread queryThread : queryThreads)
+        {
+          if(queryThread.exception == null) throw new ZoieException(e);
+        }
+      }
+      finally
+      {
+        memoryProvider.stop();
+        idxSystem.shutdown();
+        deleteDirectory(idxDir);
+      }
+      
+      for(QueryThread queryThread : queryThreads)
+      {
+        if(queryThread.exception != null) throw new ZoieException(queryThread.exception);
+      }
+    }
+    
+    public void testUpdates() throws ZoieException, ParseException, IOException
+    {
+      File idxDir = getIdxDir();
+      final ZoieSystem<ZoieIndexReader,String> idxSystem = createZoie(idxDir,true);
+      idxSystem.start();
+      final String query = "zoie";
+
+      MemoryStreamDataProvider<String> memoryProvider=new MemoryStreamDataProvider<String>();
+      memoryProvider.setDataConsumer(idxSystem);
+      memoryProvider.start();
+      try
+      {
+        idxSystem.setBatchSize(10);
+        
+        long version = 0;
+        final int count = TestData.testdata.length;
+        List<DataEvent<String>> list = new ArrayList<DataEvent<String>>(count);
+        for (int i = 0; i < count; i++)
+        {
+          version = i;
+          list.add(new DataEvent<String>(i, TestData.testdata[i]));
+        }
+        memoryProvider.addEvents(list);
+        idxSystem.syncWthVersion(10000, version);
+        
+        QueryParser parser = new QueryParser("contents",idxSystem.getAnalyzer());
+        Query q;
+        Searcher searcher = null;
+        Hits hits;
+        
+        q = parser.parse("zoie");
+        searcher=getSearcher(idxSystem);
+        hits = searcher.search(q);
+        int expected = TestData.testdata.length;
+        assertEquals("before update: zoie count mismatch[hit count: " + hits.length() +" / expected: "+TestData.testdata.length +"]", count, hits.length());
+        q = parser.parse("zoie2");
+        searcher=getSearcher(idxSystem);
         hits = searcher.search(q);
         assertEquals("before update: zoie2 count mismatch[hit count: " + hits.length() +" / expected: "+ 0 +"]", 0, hits.length());
         list = new ArrayList<DataEvent<String>>(TestData.testdata2.length);
         for(int i = 0; i < TestData.testdata2.length; i++)
         {
-          version = count + i;
-          list.add(new DataEvent<String>(version, TestData.testdata2[i]));
+          version = count + i;
+          list.add(new DataEvent<String>(version, TestData.testdata2[i]));
+        }
+        memoryProvider.addEvents(list);
+        idxSystem.syncWthVersion(10000, version);
+        
+        q = parser.parse("zoie");
+        searcher=getSearcher(idxSystem);
+        hits = searcher.search(q);
+        expected = 0;
+        assertEquals("after update: zoie count mismatch[hit count: " + hits.length() +" / expected: "+ 0 +"]", 0,  hits.length());
+        q = parser.parse("zoie2");
+        searcher=getSearcher(idxSystem);
+        hits = searcher.search(q);
+        expected = TestData.testdata2.length;
+        assertEquals("after update: zoie2 count mismatch[hit count: " + hits.length() +" / expected: "+ expected +"]", expected, hits.length());
+      }
+      finally
+      {
+        memoryProvider.stop();
+        idxSystem.shutdown();
+        deleteDirectory(idxDir);
+      }
+    }
+    
+    public void testGroupCommitUpdates() throws ZoieException, IOException
+    {
+      File idxDir=getIdxDir();
+      ZoieSystem<ZoieIndexReader,String> idxSystem=createZoie(idxDir,false);
+      idxSystem.setPersistentDiskWriter(true);
+      idxSystem.setDiskCommitGroupSize(100);
+      idxSystem.setMaxBatchSize(3);
+      idxSystem.start();
+      try
+      {
+        // every uid is added then updated twice, the batches queued behind each other are committed together
+        long version=0;
+        for (int round=0; round<3; ++round)
+        {
+          List<DataEvent<String>> list=new ArrayList<DataEvent<String>>(3);
+          for (int uid=0; uid<3; ++uid)
+          {
+            list.add(new DataEvent<String>(version++,"round"+round+" "+uid));
+          }
+          idxSystem.consume(list);
+        }
+        idxSystem.syncWthVersion(10000, version-1);
+        idxSystem.flushEvents(10000);
+        
+        assertEquals(0, countHits(idxSystem, new TermQuery(new Term("contents","round0"))));
+        assertEquals(0, countHits(idxSystem, new TermQuery(new Term("contents","round1"))));
+        assertEquals(3, countHits(idxSystem, new TermQuery(new Term("contents","round2"))));
+      }
+      finally
+      {
+        idxSystem.shutdown();
+        deleteDirectory(idxDir);
+      }
+    }
+    
+    public void testIndexSignature() throws ZoieException, IOException
+    {
+      File idxDir=getIdxDir();
+      ZoieSystem<ZoieIndexReader,String> idxSystem=createZoie(idxDir,true);
+      idxSystem.start();
+      try
+      {
+        int count=TestData.testdata.length;
+        List<DataEvent<String>> list;
+        IndexSignature sig;
+        
+        list=new ArrayList<DataEvent<String>>(count);
+        for (int i=0;i<count/2;++i)
+        {
+          list.add(new DataEvent<String>(i,TestData.testdata[i]));
+        }
+        idxSystem.consume(list);
+        idxSystem.flushEvents(100000);
+        sig = IndexReaderDispenser.getCurrentIndexSignature(idxDir);
+ 
+        assertEquals("index version mismatch after first flush", (count/2 - 1), sig.getVersion());
+
+        list=new ArrayList<DataEvent<String>>(count);
+        for (int i=count/2; i < count; ++i)
+        {
+          list.add(new DataEvent<String>(i,TestData.testdata[i]));
+        }
+        idxSystem.consume(list);
+        idxSystem.flushEvents(100000);
+        sig = IndexReaderDispenser.getCurrentIndexSignature(idxDir);
+ 
+        assertEquals("index version mismatch after second flush", (count - 1), sig.getVersion());
+      }
+      catch(ZoieException e)
+      {
+        throw e;
+      }
+      finally
+      {
+        idxSystem.shutdown();
+        deleteDirectory(idxDir);
+      }   
+    }
+    
+    public void testDocIDMapper()
+    {
+      int[] uidList = new int[500000];
+      int[] qryList = new int[100000];
+      int intersection = 10000;
+      int del = 5;
+      int[] ansList1 = new int[qryList.length];
+      int[] ansList2 = new int[qryList.length];
+      java.util.Random rand = new java.util.Random(System.currentTimeMillis());
+      DocIDMapperImpl mapper = null;
+      
+      for(int k = 0; k < 10; k++)
+      {
+        java.util.HashSet<Integer> uidset = new java.util.HashSet<Integer>();
+        java.util.HashSet<Integer> qryset = new java.util.HashSet<Integer>();
+        int id;
+        for(int i = 0; i < intersection; i++)
+        {
+          do { id = rand.nextInt(); } while(id == ZoieIndexReader.DELETED_UID || uidset.contains(id));
+          
+          uidset.add(id);
+          uidList[i] = (i % del) > 0 ? id : ZoieIndexReader.DELETED_UID;
+          qryList[i] = id;
+          ansList1[i] = (i % del) > 0 ? i : -1;
+        }
+        for(int i = intersection; i < uidList.length; i++)
+        {
+          do { id = rand.nextInt(); } while(id == ZoieIndexReader.DELETED_UID || uidset.contains(id));
+            
+          uidset.add(id);
+          uidList[i] = (i % del) > 0 ? id : ZoieIndexReader.DELETED_UID;
+        }
+        for(int i = intersection; i < qryList.length; i++)
+        {
+          do { id = rand.nextInt(); } while(id == ZoieIndexReader.DELETED_UID || uidset.contains(id) || qryset.contains(id));
+          
+          qryset.add(id);
+          qryList[i] = id;
+          ansList1[i] = -1;
+        }
+        
+        mapper = new DocIDMapperImpl(uidList);
+        
+        for(int i = 0; i < qryList.length; i++)
+        {
+          ansList2[i] = mapper.getDocID(qryList[i]);
+        }
+      
+        assertTrue("wrong result", Arrays.equals(ansList1, ansList2));
+      }
+      
+      
+//      long time;
+//      for(int k = 0; k < 10; k++)
+//      {
+//        time = System.currentTimeMillis();
+//        for(int j = 0; j < 10; j++)
+//        {
+//          for(int i = 0; i < qryList.length; i++)
+//          {
+//            ansList1[i] = mapper.getDocID(qryList[i]);
+//          }
+//        }
+//        time = System.currentTimeMillis() - time;
+//        System.out.println("ARRAY TIME : " + time);
+//      }
+    }
+    
+    public void testPersistentIntSet()
+    {
+      java.util.Random rand = new java.util.Random(System.currentTimeMillis());
+      java.util.HashSet<Integer> expected = new java.util.HashSet<Integer>();
+      PersistentIntSet set = PersistentIntSet.EMPTY;
+      List<PersistentIntSet> snapshots = new ArrayList<PersistentIntSet>();
+      List<Integer> sizes = new ArrayList<Integer>();
+      
+      for(int k = 0; k < 100; k++)
+      {
+        IntOpenHashSet batch = new IntOpenHashSet();
+        for(int i = 0; i < 1000; i++)
+        {
+          int uid = rand.nextInt(100000);
+          batch.add(uid);
+          expected.add(uid);
+        }
+        set = set.withAll(batch);
+        snapshots.add(set);
+        sizes.add(expected.size());
+        assertEquals("wrong size", expected.size(), set.size());
+      }
+      for(int uid = 0; uid < 100000; uid++)
+      {
+        assertEquals("wrong result for " + uid, expected.contains(uid), set.contains(uid));
+      }
+      
+      // older snapshots are not changed by later additions
+      for(int k = 0; k < snapshots.size(); k++)
+      {
+        int count = 0;
+        IntIterator iter = snapshots.get(k).iterator();
+        while(iter.hasNext())
+        {
+          assertTrue(expected.contains(iter.nextInt()));
+          count++;
+        }
+        assertEquals("snapshot " + k + " changed", sizes.get(k).intValue(), count);
+      }
+    }
+    
+    public void testOffHeapDirectory() throws IOException
+    {
+      OffHeapDirectory dir = new OffHeapDirectory(1024);
+      byte[] data = new byte[10000];
+      new Random().nextBytes(data);
+      
+      IndexOutput out = dir.createOutput("test");
+      out.writeBytes(data, 0, 100);
+      out.writeBytes(data, 100, data.length - 100);
+      out.writeInt(12345);
+      out.close();
+      assertEquals(data.length + 4, dir.fileLength("test"));
+      assertEquals(10 * 1024, dir.sizeInBytes());
+      
+      IndexInput in = dir.openInput("test");
+      byte[] read = new byte[data.length];
+      in.readBytes(read, 0, read.length);
+      assertTrue("wrong content", Arrays.equals(data, read));
+      assertEquals(12345, in.readInt());
+      
+      IndexInput clone = (IndexInput)in.clone();
+      clone.seek(5000);
+      assertEquals(data[5000], clone.readByte());
+      // clones keep their own position in the shared chunks
+      IndexInput clone2 = (IndexInput)in.clone();
+      clone2.seek(9000);
+      clone.seek(100);
+      assertEquals(data[9000], clone2.readByte());
+      assertEquals(data[100], clone.readByte());
+      byte[] tail = new byte[data.length - 9001];
+      clone2.readBytes(tail, 0, tail.length);
+      for (int i = 0; i < tail.length; i++)
+      {
+        assertEquals(data[9001 + i], tail[i]);
+      }
+      
+      // open files keep their memory until closed
+      dir.deleteFile("test");
+      assertFalse(dir.fileExists("test"));
+      assertEquals(10 * 1024, dir.sizeInBytes());
+      in.close();
+      assertEquals(0, dir.sizeInBytes());
+      dir.close();
+    }
+    
+    public void testOffHeapMemIndexClose() throws IOException
+    {
+      File idxDir = getIdxDir();
+      deleteDirectory(idxDir);
+      SearchIndexManager<ZoieIndexReader> mgr = new SearchIndexManager<ZoieIndexReader>(idxDir, new IndexReaderDecorator<ZoieIndexReader>()
+      {
+        public ZoieIndexReader decorate(ZoieIndexReader indexReader) throws IOException
+        {
+          return indexReader;
+        }
+      });
+      try
+      {
+        mgr.setOffHeapRamIndex(true);
+        RAMSearchIndex memIndex = mgr.getCurrentWritableMemoryIndex();
+        assertTrue(memIndex.isOffHeap());
+        addToIndex(memIndex, 1);
+        ZoieIndexReader reader = memIndex.openIndexReader();
+        assertTrue(reader.acquire());
+        long size = memIndex.getSizeInBytes();
+        
+        // the files the reader does not read, like the segments file, are freed with the index,
+        // the others once the reader is closed
+        memIndex.close();
+        assertTrue("no file freed on close", memIndex.getSizeInBytes() < size);
+        assertTrue("open files freed under a reader", memIndex.getSizeInBytes() > 0);
+        assertEquals("zoie", reader.document(0).get("contents"));
+        reader.release();
+        assertEquals(0, memIndex.getSizeInBytes());
+      }
+      finally
+      {
+        mgr.close();
+        deleteDirectory(idxDir);
+      }
+    }
+    
+    public void testReaderView() throws IOException
+    {
+      RAMDirectory dir = new RAMDirectory();
+      IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+      for (int uid = 1; uid <= 3; uid++)
+      {
+        Document doc = new Document();
+        doc.add(new Field("contents", "zoie", Field.Store.NO, Field.Index.ANALYZED));
+        ZoieIndexReader.fillDocumentID(doc, uid);
+        writer.addDocument(doc);
+      }
+      writer.close();
+      
+      ZoieIndexReader reader = new ZoieIndexReader(IndexReader.open(dir, true));
+      IntOpenHashSet delSet = new IntOpenHashSet();
+      delSet.add(2);
+      ZoieIndexReader view = reader.withDelSet(delSet);
+      
+      int docid = reader.getDocIDMaper().getDocID(2);
+      assertTrue("view should hide uid 2", view.isDeleted(docid));
+      assertFalse("base reader should not see the view delete set", reader.isDeleted(docid));
+      assertSame(reader.getUIDArray(), view.getUIDArray());
+      assertSame(reader, view.withDelSet(null));
+      
+      TermDocs td = view.termDocs(new Term("contents", "zoie"));
+      int count = 0;
+      while (td.next()) count++;
+      td.close();
+      assertEquals(2, count);
+      
+      view.close();   // leaves the shared reader open
+      assertEquals(3, reader.numDocs());
+      reader.close();
+      
+      // a plain decorator decorates the view itself, a redecorating one reuses the decoration of the base
+      IndexReaderDecorator<IndexReader> plain = new IndexReaderDecorator<IndexReader>()
+      {
+        public IndexReader decorate(ZoieIndexReader indexReader) throws IOException
+        {
+          return indexReader;
+        }
+      };
+      reader = new ZoieIndexReader(IndexReader.open(dir, true), plain);
+      view = reader.withDelSet(delSet);
+      assertSame(view, view.getDecoratedReader());
+      reader.close();
+      
+      IndexReaderDecorator<IndexReader> redecorating = new RedecoratingIndexReaderDecorator<IndexReader>()
+      {
+        public IndexReader decorate(ZoieIndexReader indexReader) throws IOException
+        {
+          return indexReader;
+        }
+        
+        public IndexReader redecorate(IndexReader decorated, ZoieIndexReader copy) throws IOException
+        {
+          return decorated;
+        }
+      };
+      reader = new ZoieIndexReader(IndexReader.open(dir, true), redecorating);
+      view = reader.withDelSet(delSet);
+      assertSame(reader, view.getDecoratedReader());
+      reader.close();
+    }
+    
+    /**
+     * Checks a view hiding <code>delSet</code> against the deletions of the index, read from <code>plain</code>.
+     */
+    private static void checkViewDeletes(ZoieIndexReader reader, IndexReader plain, IntOpenHashSet delSet) throws IOException
+    {
+      ZoieIndexReader view = reader.withDelSet(delSet);
+      List<Integer> live = new ArrayList<Integer>();
+      for (int docid = 0; docid < view.maxDoc(); docid++)
+      {
+        boolean deleted = plain.isDeleted(docid) || delSet.contains(docid);   // uid == docid
+        assertEquals("docid " + docid, deleted, view.isDeleted(docid));
+        if (!deleted) live.add(docid);
+      }
+      
+      Term term = new Term("contents", "zoie");
+      TermDocs td = view.termDocs();
+      for (int round = 0; round < 2; round++)   // a seek starts over
+      {
+        td.seek(term);
+        List<Integer> docs = new ArrayList<Integer>();
+        while (td.next()) docs.add(td.doc());
+        assertEquals(live, docs);
+      }
+      for (int target = 0; target < view.maxDoc(); target += 7)
+      {
+        td.seek(term);
+        int idx = 0;
+        while (idx < live.size() && live.get(idx) < target) idx++;
+        if (idx == live.size())
+        {
+          assertFalse(td.skipTo(target));
+          continue;
+        }
+        assertTrue(td.skipTo(target));
+        assertEquals("skipTo " + target, live.get(idx).intValue(), td.doc());
+        // skips keep working past hidden documents
+        int next = live.get(idx) + 20;
+        while (idx < live.size() && live.get(idx) < next) idx++;
+        assertEquals(idx < live.size(), td.skipTo(next));
+        if (idx < live.size()) assertEquals(live.get(idx).intValue(), td.doc());
+      }
+      td.close();
+    }
+    
+    public void testReaderViewDeletes() throws IOException
+    {
+      RAMDirectory dir = new RAMDirectory();
+      IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+      writer.setMaxBufferedDocs(50);   // several segments
+      int count = 400;
+      for (int uid = 0; uid < count; uid++)
+      {
+        Document doc = new Document();
+        doc.add(new Field("contents", "zoie", Field.Store.NO, Field.Index.ANALYZED));
+        ZoieIndexReader.fillDocumentID(doc, uid);
+        writer.addDocument(doc);
+      }
+      writer.close();
+      IndexReader deleter = IndexReader.open(dir, false);
+      for (int docid = 3; docid < count; docid += 10)
+      {
+        deleter.deleteDocument(docid);
+      }
+      deleter.close();
+      
+      IndexReader plain = IndexReader.open(dir, true);
+      ZoieIndexReader reader = new ZoieIndexReader(IndexReader.open(dir, true));
+      try
+      {
+        // few uids, resolved through the mapper; some are deleted in the index already
+        IntOpenHashSet delSet = new IntOpenHashSet(new int[] { 0, 3, 4, 5, 13, 150, 151, 399 });
+        checkViewDeletes(reader, plain, delSet);
+        
+        // many uids, resolved by scanning the uid array
+        delSet = new IntOpenHashSet();
+        for (int uid = 0; uid < count; uid += 3)
+        {
+          delSet.add(uid);
+        }
+        checkViewDeletes(reader, plain, delSet);
+        
+        // a view whose uids are all deleted in the index hides nothing more
+        checkViewDeletes(reader, plain, new IntOpenHashSet(new int[] { 3, 13 }));
+        assertFalse(reader.isDeleted(0));
+        assertTrue(reader.isDeleted(3));
+      }
+      finally
+      {
+        reader.close();
+        plain.close();
+      }
+    }
+    
+    public void testReaderLeases() throws IOException
+    {
+      RAMDirectory dir = new RAMDirectory();
+      IndexWriter writer = new IndexWriter(dir, new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+      Document doc = new Document();
+      doc.add(new Field("contents", "zoie", Field.Store.YES, Field.Index.ANALYZED));
+      ZoieIndexReader.fillDocumentID(doc, 1);
+      writer.addDocument(doc);
+      writer.close();
+      
+      ZoieIndexReader reader = new ZoieIndexReader(IndexReader.open(dir, true));
+      // the index did not change, the reopened reader shares the underlying reader
+      ZoieIndexReader next = new ZoieIndexReader(reader.reopenInnerReader(), null, reader);
+      ZoieIndexReader view = reader.withDelSet(new IntOpenHashSet(new int[] { 2 }));
+      assertTrue(view.acquire());
+      
+      reader.release();   // the owner lease, the view still holds one
+      assertEquals("zoie", view.document(0).get("contents"));
+      view.release();
+      assertFalse("reader should be closed with its last lease", reader.acquire());
+      assertEquals("zoie", next.document(0).get("contents"));
+      next.release();
+    }
+    
+    private static void addToIndex(BaseSearchIndex index, int uid) throws IOException
+    {
+      Document doc = new Document();
+      doc.add(new Field("contents", "zoie", Field.Store.YES, Field.Index.ANALYZED));
+      ZoieIndexReader.fillDocumentID(doc, uid);
+      List<IndexingReq> docs = new ArrayList<IndexingReq>();
+      docs.add(new IndexingReq(doc));
+      index.updateIndex(null, docs, new WhitespaceAnalyzer(), null);
+    }
+    
+    public void testRetiredMemIndex() throws IOException
+    {
+      File idxDir = getIdxDir();
+      deleteDirectory(idxDir);
+      SearchIndexManager<ZoieIndexReader> mgr = new SearchIndexManager<ZoieIndexReader>(idxDir, new IndexReaderDecorator<ZoieIndexReader>()
+      {
+        public ZoieIndexReader decorate(ZoieIndexReader indexReader) throws IOException
+        {
+          return indexReader;
         }
-        memoryProvider.addEvents(list);
-        idxSystem.syncWthVersion(10000, version);
+      });
+      try
+      {
+        mgr.setOffHeapRamIndex(true);
         
-        q = parser.parse("zoie");
-        searcher=getSearcher(idxSystem);
-        hits = searcher.search(q);
-        expected = 0;
-        assertEquals("after update: zoie count mismatch[hit count: " + hits.length() +" / expected: "+ 0 +"]", 0,  hits.length());
-        q = parser.parse("zoie2");
-        searcher=getSearcher(idxSystem);
-        hits = searcher.search(q);
-        expected = TestData.testdata2.length;
-        assertEquals("after update: zoie2 count mismatch[hit count: " + hits.length() +" / expected: "+ expected +"]", expected, hits.length());
+        // A is retired once B is flushed
+        RAMSearchIndex memIndexA = mgr.getCurrentWritableMemoryIndex();
+        addToIndex(memIndexA, 1);
+        ZoieIndexReader readerA = memIndexA.openIndexReader();
+        IndexReaderLease<ZoieIndexReader> lease = mgr.leaseIndexReaders();
+        mgr.setDiskIndexerStatus(SearchIndexManager.Status.Working);
+        mgr.setDiskIndexerStatus(SearchIndexManager.Status.Sleep);
+        mgr.leaseIndexReaders().close();   // replaces the snapshot of the manager
+        assertTrue("retired index released while a search reads it", memIndexA.getSizeInBytes() > 0);
+        assertEquals("zoie", readerA.document(0).get("contents"));
+        lease.close();
+        assertFalse("retired reader not closed", readerA.acquire());
+        assertEquals("retired directory not closed", 0, memIndexA.getSizeInBytes());
+        
+        // purge retires the current indexes
+        RAMSearchIndex memIndexB = mgr.getCurrentWritableMemoryIndex();
+        addToIndex(memIndexB, 2);
+        ZoieIndexReader readerB = memIndexB.openIndexReader();
+        lease = mgr.leaseIndexReaders();
+        mgr.purgeIndex();
+        mgr.leaseIndexReaders().close();
+        assertTrue(memIndexB.getSizeInBytes() > 0);
+        lease.close();
+        assertFalse("purged reader not closed", readerB.acquire());
+        assertEquals("purged directory not closed", 0, memIndexB.getSizeInBytes());
       }
       finally
       {
-        memoryProvider.stop();
-        idxSystem.shutdown();
+        mgr.close();
         deleteDirectory(idxDir);
       }
     }
     
-    public void testIndexSignature() throws ZoieException, IOException
+    @SuppressWarnings("deprecation")
+    public void testReaderLeaseHandle() throws IOException
     {
-      File idxDir=getIdxDir();
-      ZoieSystem<ZoieIndexReader,String> idxSystem=createZoie(idxDir,true);
-      idxSystem.start();
+      File idxDir = getIdxDir();
+      deleteDirectory(idxDir);
+      SearchIndexManager<ZoieIndexReader> mgr = new SearchIndexManager<ZoieIndexReader>(idxDir, new IndexReaderDecorator<ZoieIndexReader>()
+      {
+        public ZoieIndexReader decorate(ZoieIndexReader indexReader) throws IOException
+        {
+          return indexReader;
+        }
+      });
       try
       {
-        int count=TestData.testdata.length;
-        List<DataEvent<String>> list;
-        IndexSignature sig;
-        
-        list=new ArrayList<DataEvent<String>>(count);
-        for (int i=0;i<count/2;++i)
+        RAMSearchIndex memIndexA = mgr.getCurrentWritableMemoryIndex();
+        addToIndex(memIndexA, 1);
+        ZoieIndexReader readerA = memIndexA.openIndexReader();
+        IndexReaderLease<ZoieIndexReader> lease = mgr.leaseIndexReaders();
+        // the deprecated path hands out the same readers without a lease
+        assertSame(lease.getReaders(), mgr.getIndexReaders());
+        mgr.setDiskIndexerStatus(SearchIndexManager.Status.Working);
+        mgr.setDiskIndexerStatus(SearchIndexManager.Status.Sleep);
+        mgr.leaseIndexReaders().close();
+        assertEquals("zoie", readerA.document(0).get("contents"));
+        lease.close();
+        lease.close();   // a lease is given back once
+        assertFalse("reader held by an unleased list", readerA.acquire());
+      }
+      finally
+      {
+        mgr.close();
+        deleteDirectory(idxDir);
+      }
+    }
+    
+    /**
+     * An event updating <code>uid</code> to <code>value</code>, or deleting it if the value is null.
+     */
+    private static DataEvent<ZoieIndexable> indexableEvent(long version, final int uid, final String value)
+    {
+      return new DataEvent<ZoieIndexable>(version, new AbstractZoieIndexable()
+      {
+        public Document[] buildDocuments()
         {
-          list.add(new DataEvent<String>(i,TestData.testdata[i]));
+          Document doc = new Document();
+          doc.add(new Field("contents", value, Field.Store.YES, Field.Index.NOT_ANALYZED));
+          return new Document[] { doc };
         }
-        idxSystem.consume(list);
-        idxSystem.flushEvents(100000);
-        sig = IndexReaderDispenser.getCurrentIndexSignature(idxDir);
- 
-        assertEquals("index version mismatch after first flush", (count/2 - 1), sig.getVersion());
-
-        list=new ArrayList<DataEvent<String>>(count);
-        for (int i=count/2; i < count; ++i)
+        public int getUID() { return uid; }
+        public boolean isDeleted() { return value == null; }
+        public boolean isSkip() { return false; }
+      });
+    }
+    
+    /**
+     * @return the contents of the live documents of the reader by uid
+     */
+    private static Map<Integer,String> liveDocs(ZoieIndexReader reader) throws IOException
+    {
+      Map<Integer,String> docs = new HashMap<Integer,String>();
+      for (int docid = 0; docid < reader.maxDoc(); docid++)
+      {
+        if (!reader.isDeleted(docid))
         {
-          list.add(new DataEvent<String>(i,TestData.testdata[i]));
+          assertNull("uid indexed twice", docs.put(reader.getUID(docid), reader.document(docid).get("contents")));
         }
-        idxSystem.consume(list);
-        idxSystem.flushEvents(100000);
-        sig = IndexReaderDispenser.getCurrentIndexSignature(idxDir);
- 
-        assertEquals("index version mismatch after second flush", (count - 1), sig.getVersion());
       }
-      catch(ZoieException e)
+      return docs;
+    }
+    
+    public void testLuceneIndexDataLoaderBatches() throws IOException, ZoieException
+    {
+      File idxDir = getIdxDir();
+      deleteDirectory(idxDir);
+      SearchIndexManager<ZoieIndexReader> mgr = new SearchIndexManager<ZoieIndexReader>(idxDir, new IndexReaderDecorator<ZoieIndexReader>()
       {
-        throw e;
+        public ZoieIndexReader decorate(ZoieIndexReader indexReader) throws IOException
+        {
+          return indexReader;
+        }
+      });
+      try
+      {
+        RAMLuceneIndexDataLoader<ZoieIndexReader> loader = new RAMLuceneIndexDataLoader<ZoieIndexReader>(new WhitespaceAnalyzer(), null, mgr);
+        RAMSearchIndex memIndex = mgr.getCurrentWritableMemoryIndex();
+        
+        // unsorted input is applied in version order, the newest event of a uid wins
+        List<DataEvent<ZoieIndexable>> events = new ArrayList<DataEvent<ZoieIndexable>>();
+        events.add(indexableEvent(3, 1, "b"));
+        events.add(indexableEvent(1, 1, "a"));
+        events.add(indexableEvent(2, 2, "x"));
+        events.add(indexableEvent(5, 3, "c"));
+        events.add(indexableEvent(4, 3, null));   // delete before add
+        events.add(indexableEvent(6, 2, null));   // delete after add
+        loader.consume(events);
+        Map<Integer,String> docs = liveDocs(memIndex.openIndexReader());
+        assertEquals(2, docs.size());
+        assertEquals("b", docs.get(1));
+        assertEquals("c", docs.get(3));
+        assertEquals(6L, memIndex.getVersion());
+        
+        // nothing of the first batch is left in the reused buffers: no stale deletes or re-added documents
+        events.add(indexableEvent(7, 4, "d"));
+        loader.consume(events);
+        docs = liveDocs(memIndex.openIndexReader());
+        assertEquals(3, docs.size());
+        assertEquals("b", docs.get(1));
+        assertEquals("c", docs.get(3));
+        assertEquals("d", docs.get(4));
+        
+        events.add(indexableEvent(8, 1, null));
+        loader.consume(events);
+        docs = liveDocs(memIndex.openIndexReader());
+        assertEquals(2, docs.size());
+        assertEquals("c", docs.get(3));
+        assertEquals("d", docs.get(4));
+        assertEquals(8L, memIndex.getVersion());
+        assertEquals(8, memIndex.getEventsHandled());
       }
       finally
       {
-        idxSystem.shutdown();
+        mgr.close();
         deleteDirectory(idxDir);
-      }   
+      }
     }
     
-    public void testDocIDMapper()
+    public void testThrottledMerge() throws IOException
     {
-      int[] uidList = new int[500000];
-      int[] qryList = new int[100000];
-      int intersection = 10000;
-      int del = 5;
-      int[] ansList1 = new int[qryList.length];
-      int[] ansList2 = new int[qryList.length];
-      java.util.Random rand = new java.util.Random(System.currentTimeMillis());
-      DocIDMapperImpl mapper = null;
-      
-      for(int k = 0; k < 10; k++)
+      ThrottledMergeScheduler scheduler = new ThrottledMergeScheduler(4.0);
+      final AtomicInteger merges = new AtomicInteger(0);
+      scheduler.setMergeListener(new ThrottledMergeScheduler.MergeListener()
       {
-        java.util.HashSet<Integer> uidset = new java.util.HashSet<Integer>();
-        java.util.HashSet<Integer> qryset = new java.util.HashSet<Integer>();
-        int id;
-        for(int i = 0; i < intersection; i++)
+        public void mergeFinished(MergePolicy.OneMerge merge)
         {
-          do { id = rand.nextInt(); } while(id == ZoieIndexReader.DELETED_UID || uidset.contains(id));
-          
-          uidset.add(id);
-          uidList[i] = (i % del) > 0 ? id : ZoieIndexReader.DELETED_UID;
-          qryList[i] = id;
-          ansList1[i] = (i % del) > 0 ? i : -1;
+          merges.incrementAndGet();
         }
-        for(int i = intersection; i < uidList.length; i++)
+      });
+      RAMDirectory dir = new RAMDirectory();
+      IndexWriter writer = new IndexWriter(scheduler.wrap(dir), new WhitespaceAnalyzer(), true, IndexWriter.MaxFieldLength.UNLIMITED);
+      writer.setMergeScheduler(scheduler);
+      writer.setMaxBufferedDocs(2);
+      writer.setMergeFactor(2);
+      char[] text = new char[128 * 1024];
+      Arrays.fill(text, 'z');
+      String content = new String(text);
+      long start = System.currentTimeMillis();
+      for (int i = 0; i < 8; i++)
+      {
+        Document doc = new Document();
+        doc.add(new Field("contents", content, Field.Store.YES, Field.Index.NO));
+        writer.addDocument(doc);
+      }
+      writer.close();   // waits for the merges
+      long elapsed = System.currentTimeMillis() - start;
+      assertTrue("no merge reported", merges.get() > 0);
+      // the last merge alone copies the 1MB of stored fields, at 4MB/s
+      assertTrue("merges not throttled: " + elapsed + "ms", elapsed >= 200);
+      IndexReader reader = IndexReader.open(dir, true);
+      assertEquals(8, reader.numDocs());
+      reader.close();
+    }
+    
+    private static int countDiskSegments(SearchIndexManager<ZoieIndexReader> mgr) throws IOException
+    {
+      IndexReaderLease<ZoieIndexReader> lease = mgr.leaseIndexReaders();
+      try
+      {
+        List<ZoieIndexReader> readers = lease.getReaders();
+        ZoieIndexReader diskReader = readers.get(readers.size() - 1);
+        return IndexUtil.getSegmentReaders(diskReader.getInnerReader()).length;
+      }
+      finally
+      {
+        lease.close();
+      }
+    }
+    
+    public void testMergePublish() throws IOException, InterruptedException
+    {
+      File idxDir = getIdxDir();
+      deleteDirectory(idxDir);
+      SearchIndexManager<ZoieIndexReader> mgr = new SearchIndexManager<ZoieIndexReader>(idxDir, new IndexReaderDecorator<ZoieIndexReader>()
+      {
+        public ZoieIndexReader decorate(ZoieIndexReader indexReader) throws IOException
         {
-          do { id = rand.nextInt(); } while(id == ZoieIndexReader.DELETED_UID || uidset.contains(id));
-            
-          uidset.add(id);
-          uidList[i] = (i % del) > 0 ? id : ZoieIndexReader.DELETED_UID;
+          return indexReader;
         }
-        for(int i = intersection; i < qryList.length; i++)
+      });
+      try
+      {
+        mgr.setPersistentDiskWriter(true);
+        mgr.setDiskMergeScheduler(new ThrottledMergeScheduler());
+        mgr.openDiskIndexWriter(new WhitespaceAnalyzer(), null);
+        int count = 5;
+        for (int uid = 0; uid < count; uid++)
         {
-          do { id = rand.nextInt(); } while(id == ZoieIndexReader.DELETED_UID || uidset.contains(id) || qryset.contains(id));
-          
-          qryset.add(id);
-          qryList[i] = id;
-          ansList1[i] = -1;
+          addToIndex(mgr.getDiskIndex(), uid);
+          mgr.commitDiskIndex();
         }
+        assertEquals(count, countDiskSegments(mgr));
         
-        mapper = new DocIDMapperImpl(uidList);
+        // merged in the background, searches see the merged segment once it is committed while idle
+        mgr.getDiskIndex().openIndexWriter(null, null).optimize(false);
+        long due = System.currentTimeMillis() + 10000;
+        while (countDiskSegments(mgr) > 1 && System.currentTimeMillis() < due)
+        {
+          mgr.commitMergedDiskIndex();
+          Thread.sleep(50);
+        }
+        assertEquals("merge not published", 1, countDiskSegments(mgr));
+        assertEquals(count, mgr.getDiskIndexSize());
+      }
+      finally
+      {
+        mgr.closeDiskIndexWriter();
+        mgr.close();
+        deleteDirectory(idxDir);
+      }
+    }
+    
+    private static File[] uidFiles(File luceneDir)
+    {
+      return luceneDir.listFiles(new FilenameFilter()
+      {
+        public boolean accept(File dir, String name)
+        {
+          return name.endsWith(".zuid");
+        }
+      });
+    }
+    
+    /**
+     * @return the uids of a disk reader opened by a new dispenser on <code>idxDir</code>
+     */
+    private static Set<Integer> loadDiskUIDs(File idxDir) throws IOException
+    {
+      IndexReaderDispenser dispenser = new IndexReaderDispenser(idxDir, new IndexReaderDecorator<ZoieIndexReader>()
+      {
+        public ZoieIndexReader decorate(ZoieIndexReader indexReader) throws IOException
+        {
+          return indexReader;
+        }
+      });
+      ZoieIndexReader reader = dispenser.getNewReader();
+      try
+      {
+        Set<Integer> uids = new HashSet<Integer>();
+        for (int docid = 0; docid < reader.maxDoc(); docid++)
+        {
+          uids.add(reader.getUID(docid));
+        }
+        return uids;
+      }
+      finally
+      {
+        reader.release();
+        dispenser.close();
+      }
+    }
+    
+    public void testSegmentUIDFiles() throws IOException, InterruptedException
+    {
+      File idxDir = getIdxDir();
+      deleteDirectory(idxDir);
+      SearchIndexManager<ZoieIndexReader> mgr = new SearchIndexManager<ZoieIndexReader>(idxDir, new IndexReaderDecorator<ZoieIndexReader>()
+      {
+        public ZoieIndexReader decorate(ZoieIndexReader indexReader) throws IOException
+        {
+          return indexReader;
+        }
+      });
+      try
+      {
+        mgr.setPersistentDiskWriter(true);
+        mgr.setDiskMergeScheduler(new ThrottledMergeScheduler());
+        mgr.openDiskIndexWriter(new WhitespaceAnalyzer(), null);
+        int count = 3;
+        for (int uid = 0; uid < count; uid++)
+        {
+          addToIndex(mgr.getDiskIndex(), uid);
+          mgr.commitDiskIndex();
+        }
+        File luceneDir = new File(idxDir, IndexReaderDispenser.getCurrentIndexSignature(idxDir).getIndexPath());
+        File[] files = uidFiles(luceneDir);
+        assertEquals("one uid file per segment", count, files.length);
+        Set<Integer> expected = new HashSet<Integer>(Arrays.asList(0, 1, 2));
         
-        for(int i = 0; i < qryList.length; i++)
+        // a reader opened later takes the uids from the files instead of decoding them
+        for (File file : files)
         {
-          ansList2[i] = mapper.getDocID(qryList[i]);
+          RandomAccessFile raf = new RandomAccessFile(file, "rw");
+          try
+          {
+            raf.seek(8);
+            int uid = raf.readInt();
+            raf.seek(8);
+            raf.writeInt(uid + 1000);
+          }
+          finally
+          {
+            raf.close();
+          }
         }
-      
-        assertTrue("wrong result", Arrays.equals(ansList1, ansList2));
+        assertEquals(new HashSet<Integer>(Arrays.asList(1000, 1001, 1002)), loadDiskUIDs(idxDir));
+        
+        // a file cut short is not used, and is written again
+        long length = files[0].length();
+        for (File file : files)
+        {
+          RandomAccessFile raf = new RandomAccessFile(file, "rw");
+          try
+          {
+            raf.setLength(length - 4);
+          }
+          finally
+          {
+            raf.close();
+          }
+        }
+        assertEquals(expected, loadDiskUIDs(idxDir));
+        for (File file : files)
+        {
+          assertEquals(file.getName(), length, file.length());
+        }
+        assertEquals(expected, loadDiskUIDs(idxDir));
+        
+        // the files of the segments merged away are deleted with the reader that stops using them
+        mgr.getDiskIndex().openIndexWriter(null, null).optimize(false);
+        long due = System.currentTimeMillis() + 10000;
+        while (countDiskSegments(mgr) > 1 && System.currentTimeMillis() < due)
+        {
+          mgr.commitMergedDiskIndex();
+          Thread.sleep(50);
+        }
+        assertEquals("merge not published", 1, countDiskSegments(mgr));
+        for (File file : files)
+        {
+          assertFalse(file.getName() + " not purged", file.exists());
+        }
+        assertEquals(1, uidFiles(luceneDir).length);
+        assertEquals(expected, loadDiskUIDs(idxDir));
+      }
+      finally
+      {
+        mgr.closeDiskIndexWriter();
+        mgr.close();
+        deleteDirectory(idxDir);
+      }
+    }
+    
+    private static List<IndexingReq> buildBatch(int count, String text, Analyzer analyzer)
+    {
+      List<IndexingReq> docs = new ArrayList<IndexingReq>();
+      for (int uid = 0; uid < count; uid++)
+      {
+        Document doc = new Document();
+        doc.add(new Field("contents", text, Field.Store.YES, Field.Index.ANALYZED));
+        ZoieIndexReader.fillDocumentID(doc, uid);
+        docs.add(new IndexingReq(doc, analyzer));
+      }
+      return docs;
+    }
+    
+    public void testParallelBuild() throws IOException
+    {
+      File idxDir = getIdxDir();
+      deleteDirectory(idxDir);
+      SearchIndexManager<ZoieIndexReader> mgr = new SearchIndexManager<ZoieIndexReader>(idxDir, new IndexReaderDecorator<ZoieIndexReader>()
+      {
+        public ZoieIndexReader decorate(ZoieIndexReader indexReader) throws IOException
+        {
+          return indexReader;
+        }
+      });
+      try
+      {
+        // 10 documents in slices of 4, 4 and 2
+        mgr.setDiskBuildThreads(3);
+        mgr.setDiskParallelBuildThreshold(4);
+        int count = 10;
+        Analyzer analyzer = new WhitespaceAnalyzer();
+        mgr.getDiskIndex().updateIndex(null, buildBatch(count, "old", analyzer), analyzer, null);
+        mgr.refreshDiskReader();   // as the disk loader does after each batch
+        
+        // the updates of every slice delete the documents they replace
+        IntOpenHashSet delSet = new IntOpenHashSet();
+        for (int uid = 0; uid < count; uid++) delSet.add(uid);
+        mgr.getDiskIndex().updateIndex(delSet, buildBatch(count, "new", analyzer), analyzer, null);
+        mgr.refreshDiskReader();
+        
+        IndexReaderLease<ZoieIndexReader> lease = mgr.leaseIndexReaders();
+        try
+        {
+          List<ZoieIndexReader> readers = lease.getReaders();
+          ZoieIndexReader reader = readers.get(readers.size() - 1);
+          assertEquals(count, reader.numDocs());
+          TermDocs td = reader.termDocs(new Term("contents", "old"));
+          assertFalse("replaced document still live", td.next());
+          td.close();
+          
+          // the slices are added in batch order
+          int[] uids = reader.getUIDArray();
+          int next = 0;
+          for (int docid = 0; docid < reader.maxDoc(); docid++)
+          {
+            if (reader.isDeleted(docid)) continue;
+            assertEquals(next++, uids[docid]);
+          }
+          assertEquals(count, next);
+        }
+        finally
+        {
+          lease.close();
+        }
+        
+        // a failing slice fails the batch and leaves no build directory behind
+        Analyzer failing = new Analyzer()
+        {
+          public TokenStream tokenStream(String fieldName, Reader reader)
+          {
+            throw new IllegalStateException("analyzer failure");
+          }
+        };
+        List<IndexingReq> batch = buildBatch(count, "failed", analyzer);
+        batch.set(count - 1, buildBatch(1, "failed", failing).get(0));
+        try
+        {
+          mgr.getDiskIndex().updateIndex(null, batch, analyzer, null);
+          fail("slice failure not reported");
+        }
+        catch (IOException e)
+        {
+          // expected
+        }
+        for (String name : idxDir.list())
+        {
+          assertFalse("build directory left: " + name, name.startsWith("build-"));
+        }
+        mgr.refreshDiskReader();
+        assertEquals(count, mgr.getDiskIndexSize());
+      }
+      finally
+      {
+        mgr.close();
+        deleteDirectory(idxDir);
       }
-      
-      
-//      long time;
-//      for(int k = 0; k < 10; k++)
-//      {
-//        time = System.currentTimeMillis();
-//        for(int j = 0; j < 10; j++)
-//        {
-//          for(int i = 0; i < qryList.length; i++)
-//          {
-//            ansList1[i] = mapper.getDocID(qryList[i]);
-//          }
-//        }
-//        time = System.currentTimeMillis() - time;
-//        System.out.println("ARRAY TIME : " + time);
-//      }
     }
     
     public void testExportImport() throws ZoieException, IOException
@@ -10,13 +10,42 @@ public class ZoieTestSuite extends TestSuite {
 	{
         TestSuite suite=new TestSuite();
         suite.addTest(new ZoieTest("testStreamDataProvider"));
+        suite.addTest(new ZoieTest("testStreamDataProviderBatchPull"));
+        suite.addTest(new ZoieTest("testBoundedStreamDataProvider"));
         suite.addTest(new ZoieTest("testRealtime"));
         suite.addTest(new ZoieTest("testAsyncDataConsumer"));
+        suite.addTest(new ZoieTest("testAsyncDataConsumerRingBuffer"));
+        suite.addTest(new ZoieTest("testParkBackoff"));
+        suite.addTest(new ZoieTest("testInterpreterThreads"));
+        suite.addTest(new ZoieTest("testUIDCoalescing"));
+        suite.addTest(new ZoieTest("testOverflowLog"));
+        suite.addTest(new ZoieTest("testOverflowRecovery"));
+        suite.addTest(new ZoieTest("testOverflowSync"));
+        suite.addTest(new ZoieTest("testAdaptiveBatchReset"));
+        suite.addTest(new ZoieTest("testEventLog"));
+        suite.addTest(new ZoieTest("testEventLogStart"));
+        suite.addTest(new ZoieTest("testParallelFileCrawler"));
+        suite.addTest(new ZoieTest("testCrawlStateCommit"));
         suite.addTest(new ZoieTest("testDelSet"));
         suite.addTest(new ZoieTest("testIndexWithAnalyzer"));
         suite.addTest(new ZoieTest("testUpdates"));
+        suite.addTest(new ZoieTest("testGroupCommitUpdates"));
         suite.addTest(new ZoieTest("testIndexSignature"));
         suite.addTest(new ZoieTest("testDocIDMapper"));
+        suite.addTest(new ZoieTest("testPersistentIntSet"));
+        suite.addTest(new ZoieTest("testOffHeapDirectory"));
+        suite.addTest(new ZoieTest("testOffHeapMemIndexClose"));
+        suite.addTest(new ZoieTest("testReaderView"));
+        suite.addTest(new ZoieTest("testReaderViewDeletes"));
+        suite.addTest(new ZoieTest("testReaderLeases"));
+        suite.addTest(new ZoieTest("testRetiredMemIndex"));
+        suite.addTest(new ZoieTest("testReaderLeaseHandle"));
+        suite.addTest(new ZoieTest("testLuceneIndexDataLoaderBatches"));
+        suite.addTest(new ZoieTest("testThrottledMerge"));
+        suite.addTest(new ZoieTest("testMergePublish"));
+        suite.addTest(new ZoieTest("testSegmentUIDFiles"));
+        suite.addTest(new ZoieTest("testParallelBuild"));
+        suite.addTest(new ZoieTest("testSearcherManager"));
         suite.addTest(new ZoieTest("testUIDDocIdSet"));
         suite.addTest(new ZoieTest("testExportImport"));
         return suite;
@@ -15,4 +15,41 @@ public class IndexUtil {
 		infos.read(idx);
 		return infos.size();
 	}
+	
+	/**
+	 * Gets the segment readers a reader opened on a directory is made of.
+	 * @return the segment readers in docid order, null if <code>reader</code> is not a segment based reader
+	 */
+	public static IndexReader[] getSegmentReaders(IndexReader reader)
+	{
+		if (reader instanceof SegmentReader)
+		{
+			return new IndexReader[] { reader };
+		}
+		if (reader instanceof MultiSegmentReader)
+		{
+			return ((MultiSegmentReader)reader).getSubReaders();
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the name of the segment read by <code>reader</code>, null if it is not a segment reader
+	 */
+	public static String getSegmentName(IndexReader reader)
+	{
+		if (reader instanceof SegmentReader)
+		{
+			return ((SegmentReader)reader).getSegmentName();
+		}
+		return null;
+	}
+	
+	/**
+	 * Adds a reference to <code>reader</code>, for a second owner that closes it too.
+	 */
+	public static void incRef(IndexReader reader)
+	{
+		reader.incRef();
+	}
 }
@@ -0,0 +1,199 @@
+package org.apache.lucene.index;
+
+import java.io.IOException;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockFactory;
+
+/**
+ * A ConcurrentMergeScheduler limiting the rate at which its merges write, so that background merges
+ * leave disk bandwidth to indexing and searching.
+ * <p>
+ * The limit applies to the writers opened on a directory returned by {@link #wrap(Directory)}: files created
+ * there by a merge thread of this scheduler are written at no more than {@link #getMaxMBPerSec()} in total.
+ * A {@link MergeListener} is told about every merge that completed.
+ */
+public class ThrottledMergeScheduler extends ConcurrentMergeScheduler
+{
+  /**
+   * Called on the merge thread once a merge is done. The merge is not committed yet.
+   */
+  public static interface MergeListener
+  {
+    void mergeFinished(MergePolicy.OneMerge merge);
+  }
+
+  private static final int PAUSE_BYTES = 64 * 1024;
+
+  private final ThreadLocal<Boolean> _merging = new ThreadLocal<Boolean>();
+  private final Object _rateLock = new Object();
+  private volatile double _maxMBPerSec;
+  private long _nextWriteTime = 0L;    // nanos
+  private volatile MergeListener _listener = null;
+
+  public ThrottledMergeScheduler()
+  {
+    this(0.0);
+  }
+
+  /**
+   * @param maxMBPerSec write rate of all merges together, 0 for no limit
+   */
+  public ThrottledMergeScheduler(double maxMBPerSec)
+  {
+    _maxMBPerSec = maxMBPerSec;
+  }
+
+  public void setMaxMBPerSec(double maxMBPerSec)
+  {
+    _maxMBPerSec = maxMBPerSec;
+  }
+
+  public double getMaxMBPerSec()
+  {
+    return _maxMBPerSec;
+  }
+
+  public void setMergeListener(MergeListener listener)
+  {
+    _listener = listener;
+  }
+
+  @Override
+  protected void doMerge(MergePolicy.OneMerge merge) throws IOException
+  {
+    _merging.set(Boolean.TRUE);
+    try
+    {
+      super.doMerge(merge);
+    }
+    finally
+    {
+      _merging.remove();
+    }
+    MergeListener listener = _listener;
+    if (listener != null)
+    {
+      listener.mergeFinished(merge);
+    }
+  }
+
+  /**
+   * Waits as long as needed for <code>bytes</code> more bytes to fit the write rate.
+   */
+  private void pause(int bytes) throws IOException
+  {
+    double maxMBPerSec = _maxMBPerSec;
+    if (maxMBPerSec <= 0.0) return;
+
+    long delay;
+    synchronized(_rateLock)
+    {
+      long now = System.nanoTime();
+      long start = Math.max(now, _nextWriteTime);
+      _nextWriteTime = start + (long)(bytes * 1000000000.0 / (maxMBPerSec * 1024 * 1024));
+      delay = start - now;
+    }
+    if (delay > 0)
+    {
+      try
+      {
+        Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        throw new IOException("merge interrupted");
+      }
+    }
+  }
+
+  /**
+   * @return a directory delegating to <code>dir</code>, whose outputs created by merges of this scheduler are throttled
+   */
+  public Directory wrap(Directory dir)
+  {
+    return new ThrottledDirectory(dir);
+  }
+
+  private final class ThrottledDirectory extends Directory
+  {
+    private final Directory _dir;
+
+    ThrottledDirectory(Directory dir)
+    {
+      _dir = dir;
+    }
+
+    public IndexOutput createOutput(String name) throws IOException
+    {
+      IndexOutput out = _dir.createOutput(name);
+      return (_merging.get() != null ? new ThrottledOutput(out) : out);
+    }
+
+    public String[] list() throws IOException { return _dir.list(); }
+    public boolean fileExists(String name) throws IOException { return _dir.fileExists(name); }
+    public long fileModified(String name) throws IOException { return _dir.fileModified(name); }
+    public void touchFile(String name) throws IOException { _dir.touchFile(name); }
+    public void deleteFile(String name) throws IOException { _dir.deleteFile(name); }
+    @SuppressWarnings("deprecation")
+    public void renameFile(String from, String to) throws IOException { _dir.renameFile(from, to); }
+    public long fileLength(String name) throws IOException { return _dir.fileLength(name); }
+    public void sync(String name) throws IOException { _dir.sync(name); }
+    public IndexInput openInput(String name) throws IOException { return _dir.openInput(name); }
+    public IndexInput openInput(String name, int bufferSize) throws IOException { return _dir.openInput(name, bufferSize); }
+    public Lock makeLock(String name) { return _dir.makeLock(name); }
+    public void clearLock(String name) throws IOException { _dir.clearLock(name); }
+    public void setLockFactory(LockFactory lockFactory) { _dir.setLockFactory(lockFactory); }
+    public LockFactory getLockFactory() { return _dir.getLockFactory(); }
+    public String getLockID() { return _dir.getLockID(); }
+    public void close() throws IOException { _dir.close(); }
+
+    public String toString()
+    {
+      return "throttled:" + _dir;
+    }
+  }
+
+  private final class ThrottledOutput extends IndexOutput
+  {
+    private final IndexOutput _out;
+    private int _unpaused = 0;
+
+    ThrottledOutput(IndexOutput out)
+    {
+      _out = out;
+    }
+
+    private void written(int bytes) throws IOException
+    {
+      _unpaused += bytes;
+      if (_unpaused >= PAUSE_BYTES)
+      {
+        pause(_unpaused);
+        _unpaused = 0;
+      }
+    }
+
+    public void writeByte(byte b) throws IOException
+    {
+      _out.writeByte(b);
+      written(1);
+    }
+
+    public void writeBytes(byte[] b, int offset, int length) throws IOException
+    {
+      _out.writeBytes(b, offset, length);
+      written(length);
+    }
+
+    public void flush() throws IOException { _out.flush(); }
+    public void close() throws IOException { _out.close(); }
+    public long getFilePointer() { return _out.getFilePointer(); }
+    public void seek(long pos) throws IOException { _out.seek(pos); }
+    public long length() throws IOException { return _out.length(); }
+  }
+}
@@ -0,0 +1,18 @@
+package proj.zoie.api;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts the data carried by data events to and from bytes, for the parts of zoie
+ * that keep events in files instead of memory.
+ * {@link #deserialize(DataInput)} must read back exactly what {@link #serialize(Object, DataOutput)} wrote.
+ * @param <V>
+ */
+public interface DataSerializer<V> {
+
+	void serialize(V data, DataOutput out) throws IOException;
+
+	V deserialize(DataInput in) throws IOException;
+}
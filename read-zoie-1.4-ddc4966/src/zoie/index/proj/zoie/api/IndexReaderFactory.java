@@ -8,6 +8,10 @@ import org.apache.lucene.index.IndexReader;
 
 public interface IndexReaderFactory<R extends IndexReader> {
 	//得到所有的IndexReader以供搜索
+	/**
+	 * @deprecated the readers are not leased and may be closed once replaced by newer ones, even while
+	 * in use. Factories implementing {@link LeasingIndexReaderFactory} hand out leased readers.
+	 */
 	List<R> getIndexReaders() throws IOException;
 	R getDiskIndexReader() throws IOException;
 	Analyzer getAnalyzer();
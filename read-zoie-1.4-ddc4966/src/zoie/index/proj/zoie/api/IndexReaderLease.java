@@ -0,0 +1,23 @@
+package proj.zoie.api;
+
+import java.io.Closeable;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Readers obtained from a {@link LeasingIndexReaderFactory}, held open until the lease is closed,
+ * even once replaced by newer ones. Every lease must be closed after the last use of its readers.
+ */
+public interface IndexReaderLease<R extends IndexReader> extends Closeable
+{
+  /**
+   * @return the leased readers, the list must not be modified
+   */
+  List<R> getReaders();
+
+  /**
+   * Gives back the readers, they must not be used afterwards. Closing a lease again has no effect.
+   */
+  void close();
+}
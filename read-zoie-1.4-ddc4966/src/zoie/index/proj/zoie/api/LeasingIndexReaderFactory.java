@@ -0,0 +1,16 @@
+package proj.zoie.api;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * An {@link IndexReaderFactory} whose readers can be leased, so that they are not closed while in use.
+ */
+public interface LeasingIndexReaderFactory<R extends IndexReader> extends IndexReaderFactory<R>
+{
+  /**
+   * Leases the current readers, the readers replaced since are closed once their last lease is closed.
+   */
+  IndexReaderLease<R> leaseIndexReaders() throws IOException;
+}
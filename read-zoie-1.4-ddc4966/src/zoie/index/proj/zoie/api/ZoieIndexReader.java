@@ -1,8 +1,13 @@
 package proj.zoie.api;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
 import it.unimi.dsi.fastutil.ints.IntSet;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.lucene.analysis.Token;
 import org.apache.lucene.analysis.TokenStream;
@@ -10,14 +15,18 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.FilterIndexReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexUtil;
 import org.apache.lucene.index.Payload;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.util.OpenBitSet;
 
 import proj.zoie.api.indexing.AbstractZoieIndexable;
 import proj.zoie.api.impl.DocIDMapperImpl;
 import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.RedecoratingIndexReaderDecorator;
 
 public class ZoieIndexReader extends FilterIndexReader {
 	private static final Term UID_TERM = new Term(AbstractZoieIndexable.DOCUMENT_ID_PAYLOAD_FIELD, "_UID");
@@ -26,12 +35,50 @@ public class ZoieIndexReader extends FilterIndexReader {
 	
     private IndexReaderDecorator<?> _decorator = null;
     private IndexReader _decoratedReader = null;
-	private ThreadLocal<IntSet> _delSet;
+	private final IntSet _delSet;         // uids updated in newer indexes, masked in this reader
+	private final ZoieIndexReader _base;  // the reader this one is a view of, itself if it is not a view
+	private final int[] _delDocIds;       // sorted docids hidden by _delSet in this view, live in the index; null if none
+	private OpenBitSet _indexDelDocs;     // docids deleted in the index, built by the base on first view and shared
+	
+	/**
+	 * A delete set smaller than maxDoc / MAPPER_LOOKUP_RATIO is resolved through the DocIDMapper,
+	 * a larger one by scanning the uid array.
+	 */
+	public static final int MAPPER_LOOKUP_RATIO = 16;
 	private int _minUID;
 	private int _maxUID;
 	private IntSet _modifiedSet;
 	private DocIDMapper _docIdMapper;
 	private boolean _noDedup = false;
+	private SegmentUIDs[] _segments;    // null if the reader is not made of segments
+	private int[] _starts;
+	private int _leases = 1;            // the owner of the reader holds the first lease
+	
+	/**
+	 * The uids of one segment, as decoded when the segment was first loaded.
+	 * Segments do not change once written, so they are shared by the readers reopened on the index.
+	 */
+	private static final class SegmentUIDs
+	{
+	  final String name;
+	  final int[] uids;
+	  private DocIDMapper mapper;
+	  
+	  SegmentUIDs(String name, int[] uids)
+	  {
+	    this.name = name;
+	    this.uids = uids;
+	  }
+	  
+	  synchronized DocIDMapper getMapper()
+	  {
+	    if (mapper == null)
+	    {
+	      mapper = new DocIDMapperImpl(uids);
+	    }
+	    return mapper;
+	  }
+	}
 	
 	private static class SinglePayloadTokenStream extends TokenStream {
 		   private Token token = new Token(UID_TERM.text(), 0, 0);
@@ -70,10 +117,14 @@ public class ZoieIndexReader extends FilterIndexReader {
 	   | ((bytes[1] & 0xFF) <<  8) |  (bytes[0] & 0xFF);
 	 }
 	
-	private void init(IndexReader reader) throws IOException
+	/**
+	 * Loads the uid of every document of <code>reader</code> from the _ID:_UID payloads.
+	 * @return the uids indexed by docid, {@link #DELETED_UID} for documents without uid
+	 */
+	public static int[] loadUIDArray(IndexReader reader) throws IOException
 	{
 		int maxDoc = reader.maxDoc();
-		_uidArray = new int[maxDoc]; 
+		int[] uidArray = new int[maxDoc]; 
 		TermPositions tp = null;
 		byte[] payloadBuffer = new byte[4];       // four bytes for an int
 		try
@@ -85,16 +136,13 @@ public class ZoieIndexReader extends FilterIndexReader {
             int doc = tp.doc();
             assert doc < maxDoc;
             
-            while(idx < doc) _uidArray[idx++] = DELETED_UID; // fill the gap
+            while(idx < doc) uidArray[idx++] = DELETED_UID; // fill the gap
             
             tp.nextPosition();
             tp.getPayload(payloadBuffer, 0);
-            int uid = bytesToInt(payloadBuffer);
-            if(uid < _minUID) _minUID = uid;
-            if(uid > _maxUID) _maxUID = uid;
-            _uidArray[idx++] = uid;
+            uidArray[idx++] = bytesToInt(payloadBuffer);
     	  }
-          while(idx < maxDoc) _uidArray[idx++] = DELETED_UID; // fill the gap
+          while(idx < maxDoc) uidArray[idx++] = DELETED_UID; // fill the gap
 		}
 		finally
 		{
@@ -103,6 +151,79 @@ public class ZoieIndexReader extends FilterIndexReader {
         	  tp.close();
           }
 		}
+		return uidArray;
+	}
+	
+	private void init(IndexReader reader, ZoieIndexReader previous) throws IOException
+	{
+		IndexReader[] subReaders = IndexUtil.getSegmentReaders(reader);
+		if (subReaders == null)
+		{
+		  _uidArray = loadUIDArray(reader);
+		}
+		else
+		{
+		  loadSegments(subReaders, previous);
+		}
+		for (int uid : _uidArray)
+		{
+		  if (uid == DELETED_UID) continue;
+		  if(uid < _minUID) _minUID = uid;
+		  if(uid > _maxUID) _maxUID = uid;
+		}
+	}
+	
+	/**
+	 * Builds the uid array segment by segment, decoding only the segments <code>previous</code> has not loaded.
+	 * Deletions made since a segment was decoded are applied on the copy.
+	 */
+	private void loadSegments(IndexReader[] subReaders, ZoieIndexReader previous) throws IOException
+	{
+		Map<String,SegmentUIDs> loaded = new HashMap<String,SegmentUIDs>();
+		if (previous != null && previous._segments != null)
+		{
+		  for (SegmentUIDs seg : previous._segments)
+		  {
+		    loaded.put(seg.name, seg);
+		  }
+		}
+		
+		_segments = new SegmentUIDs[subReaders.length];
+		_starts = new int[subReaders.length];
+		_uidArray = new int[maxDoc()];
+		int start = 0;
+		for (int i = 0; i < subReaders.length; ++i)
+		{
+		  IndexReader subReader = subReaders[i];
+		  int maxDoc = subReader.maxDoc();
+		  String name = IndexUtil.getSegmentName(subReader);
+		  SegmentUIDs seg = loaded.get(name);
+		  if (seg == null || seg.uids.length != maxDoc)
+		  {
+		    seg = new SegmentUIDs(name, loadSegmentUIDArray(subReader, name));
+		  }
+		  _segments[i] = seg;
+		  _starts[i] = start;
+		  
+		  System.arraycopy(seg.uids, 0, _uidArray, start, maxDoc);
+		  if (subReader.hasDeletions())
+		  {
+		    for (int docid = 0; docid < maxDoc; ++docid)
+		    {
+		      if (subReader.isDeleted(docid)) _uidArray[start + docid] = DELETED_UID;
+		    }
+		  }
+		  start += maxDoc;
+		}
+	}
+	
+	/**
+	 * Loads the uids of a segment seen for the first time, see {@link #loadUIDArray(IndexReader)}.
+	 * Called during construction.
+	 */
+	protected int[] loadSegmentUIDArray(IndexReader segmentReader, String segmentName) throws IOException
+	{
+		return loadUIDArray(segmentReader);
 	}
 	
 	public ZoieIndexReader(IndexReader in) throws IOException
@@ -111,19 +232,182 @@ public class ZoieIndexReader extends FilterIndexReader {
 	}
 	
 	public ZoieIndexReader(IndexReader in, IndexReaderDecorator<?> decorator) throws IOException
+	{
+	  this(in, decorator, null);
+	}
+	
+	/**
+	 * @param previous a reader on an earlier version of the same index, typically the one <code>in</code>
+	 * was reopened from. The uids of the segments both readers share are not decoded again.
+	 */
+	public ZoieIndexReader(IndexReader in, IndexReaderDecorator<?> decorator, ZoieIndexReader previous) throws IOException
 	{
 		super(in);
 		_decorator = decorator;
-		_delSet=new ThreadLocal<IntSet>();
+		_delSet=null;
+		_base=this;
+		_delDocIds=null;
 		_minUID=Integer.MAX_VALUE;
 		_maxUID=0;
-		init(in);
+		init(in, previous);
+		if (previous != null && in == previous.in)
+		{
+		  // the index did not change, both readers close the same underlying reader
+		  IndexUtil.incRef(in);
+		}
+	}
+	
+	/**
+	 * Makes a view of <code>base</code> masking the uids of <code>delSet</code>, see {@link #withDelSet(IntSet)}.
+	 */
+	private ZoieIndexReader(ZoieIndexReader base, IntSet delSet)
+	{
+		super(base.in);
+		_base = base;
+		_delSet = delSet;
+		_decorator = base._decorator;
+		_uidArray = base._uidArray;
+		_minUID = base._minUID;
+		_maxUID = base._maxUID;
+		_modifiedSet = base._modifiedSet;
+		_noDedup = base._noDedup;
+		_segments = base._segments;
+		_starts = base._starts;
+		_delDocIds = base.resolveDelSet(delSet);
+		_indexDelDocs = (_delDocIds != null ? base.getIndexDelDocs() : null);
+	}
+	
+	/**
+	 * Resolves the uids of <code>delSet</code> to docids, once for the life of a view, so that postings are
+	 * filtered against a small sorted array instead of a uid lookup. Documents deleted in the index are left out,
+	 * the view checks them in the bits shared by all the views of this reader.
+	 * @return the sorted docids to hide, null if none of the uids is in this reader
+	 */
+	private int[] resolveDelSet(IntSet delSet)
+	{
+		IntArrayList delDocs = new IntArrayList();
+		if (_segments != null && (long)delSet.size() * MAPPER_LOOKUP_RATIO < _uidArray.length)
+		{
+		  DocIDMapper mapper = getDocIDMaper();
+		  IntIterator iter = delSet.iterator();
+		  while (iter.hasNext())
+		  {
+		    int docid = mapper.getDocID(iter.nextInt());
+		    if (docid >= 0) delDocs.add(docid);
+		  }
+		}
+		else
+		{
+		  for (int docid = 0; docid < _uidArray.length; ++docid)
+		  {
+		    int uid = _uidArray[docid];
+		    if (uid != DELETED_UID && delSet.contains(uid) && !in.isDeleted(docid)) delDocs.add(docid);
+		  }
+		}
+		if (delDocs.size() == 0) return null;
+		int[] docids = delDocs.toIntArray();
+		Arrays.sort(docids);
+		return docids;
+	}
+	
+	/**
+	 * @return the docids deleted in the index, read once and shared by the views, never modified once built
+	 */
+	private synchronized OpenBitSet getIndexDelDocs()
+	{
+		if (_indexDelDocs == null)
+		{
+		  int maxDoc = in.maxDoc();
+		  OpenBitSet delDocs = new OpenBitSet(maxDoc);
+		  if (in.hasDeletions())
+		  {
+		    for (int docid = 0; docid < maxDoc; ++docid)
+		    {
+		      if (in.isDeleted(docid)) delDocs.fastSet(docid);
+		    }
+		  }
+		  _indexDelDocs = delDocs;
+		}
+		return _indexDelDocs;
+	}
+	
+	/**
+	 * @return the index of the first element of <code>a[from..a.length)</code> not below <code>key</code>
+	 */
+	private static int lowerBound(int[] a, int from, int key)
+	{
+		int lo = from;
+		int hi = a.length;
+		while (lo < hi)
+		{
+		  int mid = (lo + hi) >>> 1;
+		  if (a[mid] < key) lo = mid + 1;
+		  else hi = mid;
+		}
+		return lo;
+	}
+	
+	/**
+	 * Returns a view of this reader hiding, on top of its deleted documents, the documents whose uid
+	 * is in <code>delSet</code>. The view shares the underlying reader and the uid arrays of this one,
+	 * and keeps its delete set for its whole life, so it can be searched from any thread.
+	 * @param delSet uids to hide, not to be modified while the view is in use
+	 */
+	public ZoieIndexReader withDelSet(IntSet delSet)
+	{
+		if (delSet != null && delSet.size() == 0) delSet = null;
+		if (delSet == _delSet) return this;
+		return (delSet == null) ? _base : new ZoieIndexReader(_base, delSet);
+	}
+	
+	/**
+	 * Takes a lease on this reader, to be given back by {@link #release()}. A view leases the reader it was made from.
+	 * @return false if the last lease was already released and the reader closed
+	 */
+	public boolean acquire()
+	{
+	  if (_base != this) return _base.acquire();
+	  synchronized(this)
+	  {
+	    if (_leases <= 0) return false;
+	    _leases++;
+	    return true;
+	  }
+	}
+	
+	/**
+	 * Gives back a lease taken by {@link #acquire()}, or the lease of the owner. The reader is closed with the last lease.
+	 */
+	public void release() throws IOException
+	{
+	  if (_base != this)
+	  {
+	    _base.release();
+	    return;
+	  }
+	  boolean last;
+	  synchronized(this)
+	  {
+	    if (_leases <= 0) throw new IllegalStateException("reader already released");
+	    last = (--_leases == 0);
+	  }
+	  if (last) close();
+	}
+	
+	public IndexReader getInnerReader()
+	{
+	  return in;
 	}
 	
-	public void setDelSet(IntSet delSet)
+	/**
+	 * Reopens the underlying reader, see {@link IndexReader#reopen()}.
+	 * @return the reopened reader, the underlying reader itself if the index has not changed
+	 */
+	public IndexReader reopenInnerReader() throws IOException
 	{
-		_delSet.set(delSet);
+	  return in.reopen();
 	}
+	
 
 	public void setModifiedSet(IntSet modSet)
 	{
@@ -140,7 +424,7 @@ public class ZoieIndexReader extends FilterIndexReader {
 	{
 	  if(!_noDedup)
 	  {
-	    IntSet delSet = _delSet.get();
+	    IntSet delSet = _delSet;
 	    if(delSet != null && delSet.size() > 0) return true;
 	  }
 	  return in.hasDeletions();
@@ -148,30 +432,31 @@ public class ZoieIndexReader extends FilterIndexReader {
 	
 	public boolean hasDuplicates()
 	{
-		IntSet delSet = _delSet.get();
+		IntSet delSet = _delSet;
 		return (delSet!=null && delSet.size() > 0);
 	}
 
 	@Override
 	public boolean isDeleted(int docid)
 	{
-	  if(!_noDedup)
+	  if(!_noDedup && _delDocIds != null)
 	  {
-	    IntSet delSet = _delSet.get();
-	    if(delSet != null && delSet.contains(_uidArray[docid])) return true;
+	    if (_indexDelDocs.fastGet(docid)) return true;
+	    int idx = lowerBound(_delDocIds, 0, docid);
+	    return idx < _delDocIds.length && _delDocIds[idx] == docid;
 	  }
 	  return in.isDeleted(docid);
 	}
 	
 	public boolean isDuplicate(int uid)
 	{
-	  IntSet delSet = _delSet.get();
+	  IntSet delSet = _delSet;
 	  return delSet!=null && delSet.contains(uid);
 	}
 	
 	public IntSet getDelSet()
 	{
-	  return _delSet.get();
+	  return _delSet;
 	}
 	
 	public int[] getUIDArray()
@@ -196,13 +481,47 @@ public class ZoieIndexReader extends FilterIndexReader {
 	
 	public DocIDMapper getDocIDMaper()
 	{
+	  if(_base != this) return _base.getDocIDMaper();
 	  if(_docIdMapper == null)
 	  {
-	    _docIdMapper = new DocIDMapperImpl(_uidArray);
+	    _docIdMapper = (_segments == null ? new DocIDMapperImpl(_uidArray) : new SegmentDocIDMapper());
 	  }
 	  return _docIdMapper;
 	}
 	
+	/**
+	 * @return the uids of the segment <code>segmentName</code> by docid, as decoded when the segment was first loaded,
+	 * so without the deletions made since; null if this reader has no such segment of <code>maxDoc</code> documents
+	 */
+	public int[] getSegmentUIDs(String segmentName, int maxDoc)
+	{
+	  SegmentUIDs seg = findSegment(segmentName, maxDoc);
+	  return (seg != null ? seg.uids : null);
+	}
+	
+	/**
+	 * @return the mapper of the segment <code>segmentName</code>, built once per segment and shared by the readers
+	 * reopened on the index; null if this reader has no such segment of <code>maxDoc</code> documents
+	 */
+	public DocIDMapper getSegmentDocIDMapper(String segmentName, int maxDoc)
+	{
+	  SegmentUIDs seg = findSegment(segmentName, maxDoc);
+	  return (seg != null ? seg.getMapper() : null);
+	}
+	
+	private SegmentUIDs findSegment(String segmentName, int maxDoc)
+	{
+	  if (_segments == null || segmentName == null) return null;
+	  for (SegmentUIDs seg : _segments)
+	  {
+	    if (seg.name.equals(segmentName) && seg.uids.length == maxDoc) return seg;
+	  }
+	  return null;
+	}
+	
+	/**
+	 * Views made afterwards inherit the setting.
+	 */
 	public void setNoDedup(boolean noDedup)
 	{
 	  _noDedup = noDedup;
@@ -216,52 +535,139 @@ public class ZoieIndexReader extends FilterIndexReader {
         {
           if(_decoratedReader == null)
           {
-            _decoratedReader = (_decorator == null ? this : _decorator.decorate(this));
+            if (_decorator == null)
+            {
+              _decoratedReader = this;
+            }
+            else if (_base == this)
+            {
+              _decoratedReader = _decorator.decorate(this);
+            }
+            else
+            {
+              _decoratedReader = redecorate(_decorator, _base.getDecoratedReader(), this);
+            }
           }
         }
       }
       return _decoratedReader;
     }
 	
+	/**
+	 * Decorates a view from the decoration of its base reader when the decorator supports it,
+	 * plain decorators decorate the view itself.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <R extends IndexReader> R redecorate(IndexReaderDecorator<R> decorator, IndexReader decorated, ZoieIndexReader copy) throws IOException
+	{
+	  if (decorator instanceof RedecoratingIndexReaderDecorator)
+	  {
+	    return ((RedecoratingIndexReaderDecorator<R>)decorator).redecorate((R)decorated, copy);
+	  }
+	  return decorator.decorate(copy);
+	}
+	
+	/**
+	 * A view leaves the underlying reader to the reader it was made from.
+	 */
+	@Override
+	protected void doClose() throws IOException
+	{
+	  if (_base == this)
+	  {
+	    super.doClose();
+	  }
+	}
+	
 	@Override
 	public TermDocs termDocs() throws IOException
 	{
 	  TermDocs td = in.termDocs();
-	  if(_noDedup) return td;
-	  
-	  IntSet delSet = _delSet.get();
-	  if(td == null || delSet == null || delSet.size() == 0) return td;
+	  if(_noDedup || td == null || _delDocIds == null) return td;
       
-      return new ZoieTermDocs(td, delSet);
+      return new ZoieTermDocs(td, _delDocIds);
 	}
 	
 	@Override
 	public TermPositions termPositions() throws IOException
 	{
 	  TermPositions tp = in.termPositions();
-      if(_noDedup) return tp;
+      if(_noDedup || tp == null || _delDocIds == null) return tp;
       
-      IntSet delSet = _delSet.get();
-      if(tp == null || delSet == null || delSet.size() == 0) return tp;
-      
-      return new ZoieTermPositions(tp, delSet);
+      return new ZoieTermPositions(tp, _delDocIds);
 	}
 	
-	private class ZoieTermDocs extends FilterTermDocs
+	/**
+	 * Looks a uid up in the mappers of the segments, newest segment first, and skips the
+	 * documents deleted after the segment mapper was built.
+	 */
+	private class SegmentDocIDMapper implements DocIDMapper
 	{
-	  final IntSet _termDelSet;
+	  private final DocIDMapper[] _mappers;
+	  
+	  SegmentDocIDMapper()
+	  {
+	    _mappers = new DocIDMapper[_segments.length];
+	    for (int i = 0; i < _segments.length; ++i)
+	    {
+	      _mappers[i] = _segments[i].getMapper();
+	    }
+	  }
+	  
+	  public int getDocID(int uid)
+	  {
+	    for (int i = _mappers.length - 1; i >= 0; --i)
+	    {
+	      int docid = _mappers[i].getDocID(uid);
+	      if (docid >= 0)
+	      {
+	        docid += _starts[i];
+	        if (_uidArray[docid] == uid) return docid;
+	      }
+	    }
+	    return -1;
+	  }
+	}
+	
+	/**
+	 * Skips the docids hidden by a view. The documents deleted in the index are already skipped by the
+	 * underlying TermDocs, docids come in increasing order so the hidden ones are walked with a cursor.
+	 */
+	private static class ZoieTermDocs extends FilterTermDocs
+	{
+	  final int[] _delDocIds;
+	  private int _delIdx = 0;    // first hidden docid not below the current doc
 
-	  public ZoieTermDocs(TermDocs in, IntSet delSet)
+	  public ZoieTermDocs(TermDocs in, int[] delDocIds)
 	  {
 	    super(in);
-	    _termDelSet = delSet;
+	    _delDocIds = delDocIds;
+	  }
+	  
+	  private boolean isHidden(int doc)
+	  {
+	    int[] ids = _delDocIds;
+	    while (_delIdx < ids.length && ids[_delIdx] < doc) _delIdx++;
+	    return _delIdx < ids.length && ids[_delIdx] == doc;
+	  }
+	  
+	  public void seek(Term term) throws IOException
+	  {
+	    super.seek(term);
+	    _delIdx = 0;
+	  }
+	  
+	  public void seek(TermEnum termEnum) throws IOException
+	  {
+	    super.seek(termEnum);
+	    _delIdx = 0;
 	  }
 	  
 	  public boolean next() throws IOException
 	  {
 	    while(in.next())
 	    {
-	      if(!_termDelSet.contains(_uidArray[in.doc()])) return true;
+	      if(!isHidden(in.doc())) return true;
 	    }
 	    return false;
 	  }
@@ -273,7 +679,7 @@ public class ZoieIndexReader extends FilterIndexReader {
 	      if(!in.next()) return i;
 	      
 	      int doc = in.doc();
-	      if(!_termDelSet.contains(_uidArray[doc]))
+	      if(!isHidden(doc))
 	      {
 	        docs[i] = doc;
 	        freqs[i] = in.freq();
@@ -285,19 +691,21 @@ public class ZoieIndexReader extends FilterIndexReader {
 	  public boolean skipTo(int i) throws IOException
 	  {
 	    if(!in.skipTo(i)) return false;
-	    if(!_termDelSet.contains(_uidArray[in.doc()])) return true;
+	    // the target may be far ahead, jump the cursor instead of walking it
+	    _delIdx = lowerBound(_delDocIds, _delIdx, in.doc());
+	    if(!isHidden(in.doc())) return true;
 	    
         return next();
 	  }
 	}
 	
-	private class ZoieTermPositions extends ZoieTermDocs implements TermPositions
+	private static class ZoieTermPositions extends ZoieTermDocs implements TermPositions
 	{
 	  final TermPositions _tp;
 	  
-	  public ZoieTermPositions(TermPositions in, IntSet delSet)
+	  public ZoieTermPositions(TermPositions in, int[] delDocIds)
 	  {
-	    super(in, delSet);
+	    super(in, delDocIds);
 	    _tp = (TermPositions)in;
 	  }
 	  
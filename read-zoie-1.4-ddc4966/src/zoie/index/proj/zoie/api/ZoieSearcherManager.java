@@ -0,0 +1,172 @@
+package proj.zoie.api;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Shares one searcher over the readers of an {@link IndexReaderFactory} between the searches of a generation
+ * of the indexes, so that the MultiReader starts and norms are computed once per generation, not per query.
+ * <p>
+ * {@link #acquire()} compares the list of readers of the factory with the one the current searcher was built on,
+ * the factory returns the same list until one of its readers changes. The list is obtained under the lock of
+ * the manager, so a searcher is only ever replaced by one on newer readers. A searcher replaced by a newer one
+ * is closed, and the lease on its readers closed, once released by the searches still running on it.
+ * The readers of a factory not implementing {@link LeasingIndexReaderFactory} are used without a lease.
+ */
+public class ZoieSearcherManager<R extends IndexReader>
+{
+  private static final Logger log = Logger.getLogger(ZoieSearcherManager.class);
+
+  private final IndexReaderFactory<R> _readerFactory;
+  private ManagedSearcher _current = null;    // guarded by this
+
+  public ZoieSearcherManager(IndexReaderFactory<R> readerFactory)
+  {
+    _readerFactory = readerFactory;
+  }
+
+  public IndexReaderFactory<R> getReaderFactory()
+  {
+    return _readerFactory;
+  }
+
+  /**
+   * Gets the searcher of the current readers, to be given back to {@link #release(IndexSearcher)} and never closed.
+   */
+  public IndexSearcher acquire() throws IOException
+  {
+    IndexReaderLease<R> lease;
+    ManagedSearcher searcher;
+    ManagedSearcher oldSearcher = null;
+    boolean cached;
+    synchronized(this)
+    {
+      // a list obtained outside the lock could be older than the one of the current searcher
+      lease = leaseIndexReaders();
+      try
+      {
+        cached = (_current != null && _current._lease.getReaders() == lease.getReaders());
+        if (cached)
+        {
+          searcher = _current;
+          searcher._refCount++;
+        }
+        else
+        {
+          searcher = new ManagedSearcher(lease);
+          oldSearcher = _current;
+          _current = searcher;
+        }
+      }
+      catch(RuntimeException e)
+      {
+        lease.close();
+        throw e;
+      }
+    }
+    if (cached)
+    {
+      // the cached searcher holds its own lease on the same readers
+      lease.close();
+    }
+    if (oldSearcher != null)
+    {
+      oldSearcher.decRef();
+    }
+    return searcher;
+  }
+
+  /**
+   * Gives back a searcher obtained from {@link #acquire()}, it must not be used afterwards.
+   */
+  public void release(IndexSearcher searcher)
+  {
+    if (searcher instanceof ZoieSearcherManager.ManagedSearcher)
+    {
+      ((ZoieSearcherManager<?>.ManagedSearcher)searcher).decRef();
+    }
+  }
+
+  /**
+   * Drops the current searcher, it is closed once the searches running on it release it.
+   */
+  public void close()
+  {
+    ManagedSearcher searcher;
+    synchronized(this)
+    {
+      searcher = _current;
+      _current = null;
+    }
+    if (searcher != null)
+    {
+      searcher.decRef();
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  private IndexReaderLease<R> leaseIndexReaders() throws IOException
+  {
+    if (_readerFactory instanceof LeasingIndexReaderFactory)
+    {
+      return ((LeasingIndexReaderFactory<R>)_readerFactory).leaseIndexReaders();
+    }
+    final List<R> readers = _readerFactory.getIndexReaders();
+    return new IndexReaderLease<R>()
+    {
+      public List<R> getReaders()
+      {
+        return readers;
+      }
+
+      public void close()
+      {
+      }
+    };
+  }
+
+  private static IndexReader toMultiReader(List<? extends IndexReader> readers)
+  {
+    // sub readers are left open, they belong to the lease
+    return new MultiReader(readers.toArray(new IndexReader[readers.size()]), false);
+  }
+
+  private final class ManagedSearcher extends IndexSearcher
+  {
+    private final IndexReaderLease<R> _lease;
+    private int _refCount = 2;    // the manager while current, and the caller it was built for
+
+    ManagedSearcher(IndexReaderLease<R> lease)
+    {
+      super(toMultiReader(lease.getReaders()));
+      _lease = lease;
+    }
+
+    void decRef()
+    {
+      synchronized(ZoieSearcherManager.this)
+      {
+        if (_refCount <= 0) throw new IllegalStateException("searcher already released");
+        if (--_refCount > 0) return;
+      }
+      try
+      {
+        super.close();
+        getIndexReader().close();
+      }
+      catch(IOException e)
+      {
+        log.error("problem closing searcher", e);
+      }
+      finally
+      {
+        _lease.close();
+      }
+    }
+  }
+}
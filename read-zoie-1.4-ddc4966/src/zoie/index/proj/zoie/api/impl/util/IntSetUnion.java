@@ -0,0 +1,106 @@
+package proj.zoie.api.impl.util;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntIterator;
+import it.unimi.dsi.fastutil.ints.AbstractIntSet;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntSet;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Read only view of the union of two IntSets, built without copying either of them.
+ * The underlying sets should not be updated while the view is in use.
+ */
+public class IntSetUnion extends AbstractIntSet
+{
+  private final IntSet _first;
+  private final IntSet _second;
+  private int _size = -1;
+
+  public IntSetUnion(IntSet first, IntSet second)
+  {
+    _first = first;
+    _second = second;
+  }
+
+  @Override
+  public boolean contains(int val)
+  {
+    return _first.contains(val) || _second.contains(val);
+  }
+
+  @Override
+  public boolean isEmpty()
+  {
+    return _first.isEmpty() && _second.isEmpty();
+  }
+
+  /**
+   * Counted on first call, by a pass over the second set.
+   */
+  @Override
+  public synchronized int size()
+  {
+    if (_size < 0)
+    {
+      int size = _first.size();
+      IntIterator iter = _second.iterator();
+      while (iter.hasNext())
+      {
+        if (!_first.contains(iter.nextInt())) size++;
+      }
+      _size = size;
+    }
+    return _size;
+  }
+
+  @Override
+  public IntIterator iterator()
+  {
+    return new AbstractIntIterator()
+    {
+      private final IntIterator _firstIter = _first.iterator();
+      private final IntIterator _secondIter = _second.iterator();
+      private boolean _hasNext;
+      private int _next;
+
+      {
+        advance();
+      }
+
+      private void advance()
+      {
+        if (_firstIter.hasNext())
+        {
+          _next = _firstIter.nextInt();
+          _hasNext = true;
+          return;
+        }
+        while (_secondIter.hasNext())
+        {
+          int val = _secondIter.nextInt();
+          if (!_first.contains(val))
+          {
+            _next = val;
+            _hasNext = true;
+            return;
+          }
+        }
+        _hasNext = false;
+      }
+
+      public boolean hasNext()
+      {
+        return _hasNext;
+      }
+
+      public int nextInt()
+      {
+        if (!_hasNext) throw new NoSuchElementException();
+        int val = _next;
+        advance();
+        return val;
+      }
+    };
+  }
+}
@@ -0,0 +1,225 @@
+package proj.zoie.api.impl.util;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntIterator;
+import it.unimi.dsi.fastutil.ints.AbstractIntSet;
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable IntSet stored as a hash array mapped trie. Adding values returns a new set sharing
+ * all the untouched nodes with the old one, so a snapshot of a growing set costs the number of values
+ * added since the previous snapshot, not the size of the set.
+ * <p>
+ * Every node dispatches on 5 bits of the hashed value and holds, for each of its 32 slots, either
+ * a value or a child node. The hash is a bijection of the value, so two values always split apart
+ * within 7 levels.
+ */
+public final class PersistentIntSet extends AbstractIntSet
+{
+  public static final PersistentIntSet EMPTY = new PersistentIntSet(Node.EMPTY, 0);
+
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+
+  private final Node _root;
+  private final int _size;
+
+  private PersistentIntSet(Node root, int size)
+  {
+    _root = root;
+    _size = size;
+  }
+
+  private static int hash(int val)
+  {
+    int h = val * 0x9E3779B9;  // odd multiplier, a bijection
+    return h ^ (h >>> 16);
+  }
+
+  private static final class Node
+  {
+    static final Node EMPTY = new Node(0, 0, new int[0], new Node[0]);
+
+    final int valueMap;
+    final int nodeMap;
+    final int[] values;
+    final Node[] nodes;
+
+    Node(int valueMap, int nodeMap, int[] values, Node[] nodes)
+    {
+      this.valueMap = valueMap;
+      this.nodeMap = nodeMap;
+      this.values = values;
+      this.nodes = nodes;
+    }
+
+    /**
+     * @return the node with <code>val</code> added, this node if it is already there
+     */
+    Node with(int val, int hash, int shift)
+    {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      if ((valueMap & bit) != 0)
+      {
+        int idx = Integer.bitCount(valueMap & (bit - 1));
+        int existing = values[idx];
+        if (existing == val) return this;
+
+        // push both values one level down
+        Node child = pair(existing, hash(existing), val, hash, shift + BITS);
+        int[] newValues = new int[values.length - 1];
+        System.arraycopy(values, 0, newValues, 0, idx);
+        System.arraycopy(values, idx + 1, newValues, idx, values.length - idx - 1);
+        int nodeIdx = Integer.bitCount(nodeMap & (bit - 1));
+        Node[] newNodes = new Node[nodes.length + 1];
+        System.arraycopy(nodes, 0, newNodes, 0, nodeIdx);
+        newNodes[nodeIdx] = child;
+        System.arraycopy(nodes, nodeIdx, newNodes, nodeIdx + 1, nodes.length - nodeIdx);
+        return new Node(valueMap & ~bit, nodeMap | bit, newValues, newNodes);
+      }
+      if ((nodeMap & bit) != 0)
+      {
+        int nodeIdx = Integer.bitCount(nodeMap & (bit - 1));
+        Node child = nodes[nodeIdx];
+        Node newChild = child.with(val, hash, shift + BITS);
+        if (newChild == child) return this;
+        Node[] newNodes = nodes.clone();
+        newNodes[nodeIdx] = newChild;
+        return new Node(valueMap, nodeMap, values, newNodes);
+      }
+      int idx = Integer.bitCount(valueMap & (bit - 1));
+      int[] newValues = new int[values.length + 1];
+      System.arraycopy(values, 0, newValues, 0, idx);
+      newValues[idx] = val;
+      System.arraycopy(values, idx, newValues, idx + 1, values.length - idx);
+      return new Node(valueMap | bit, nodeMap, newValues, nodes);
+    }
+
+    boolean contains(int val, int hash, int shift)
+    {
+      Node node = this;
+      while (true)
+      {
+        int bit = 1 << ((hash >>> shift) & MASK);
+        if ((node.valueMap & bit) != 0)
+        {
+          return node.values[Integer.bitCount(node.valueMap & (bit - 1))] == val;
+        }
+        if ((node.nodeMap & bit) == 0) return false;
+        node = node.nodes[Integer.bitCount(node.nodeMap & (bit - 1))];
+        shift += BITS;
+      }
+    }
+
+    static Node pair(int val1, int hash1, int val2, int hash2, int shift)
+    {
+      int pos1 = (hash1 >>> shift) & MASK;
+      int pos2 = (hash2 >>> shift) & MASK;
+      if (pos1 == pos2)
+      {
+        return new Node(0, 1 << pos1, new int[0], new Node[] { pair(val1, hash1, val2, hash2, shift + BITS) });
+      }
+      int[] values = (pos1 < pos2) ? new int[] { val1, val2 } : new int[] { val2, val1 };
+      return new Node((1 << pos1) | (1 << pos2), 0, values, new Node[0]);
+    }
+  }
+
+  /**
+   * @return a set holding the values of this set and <code>val</code>
+   */
+  public PersistentIntSet with(int val)
+  {
+    Node root = _root.with(val, hash(val), 0);
+    return (root == _root) ? this : new PersistentIntSet(root, _size + 1);
+  }
+
+  /**
+   * @return a set holding the values of this set and of <code>vals</code>
+   */
+  public PersistentIntSet withAll(IntCollection vals)
+  {
+    Node root = _root;
+    int size = _size;
+    IntIterator iter = vals.iterator();
+    while (iter.hasNext())
+    {
+      int val = iter.nextInt();
+      Node newRoot = root.with(val, hash(val), 0);
+      if (newRoot != root)
+      {
+        root = newRoot;
+        size++;
+      }
+    }
+    return (root == _root) ? this : new PersistentIntSet(root, size);
+  }
+
+  @Override
+  public boolean contains(int val)
+  {
+    return _root.contains(val, hash(val), 0);
+  }
+
+  @Override
+  public int size()
+  {
+    return _size;
+  }
+
+  @Override
+  public boolean isEmpty()
+  {
+    return _size == 0;
+  }
+
+  @Override
+  public IntIterator iterator()
+  {
+    return new AbstractIntIterator()
+    {
+      // depth first walk, at most 8 levels
+      private final Node[] _nodes = new Node[8];
+      private final int[] _valuePos = new int[8];
+      private final int[] _nodePos = new int[8];
+      private int _depth = 0;
+      private int _remaining = _size;
+
+      {
+        _nodes[0] = _root;
+      }
+
+      public boolean hasNext()
+      {
+        return _remaining > 0;
+      }
+
+      public int nextInt()
+      {
+        if (_remaining <= 0) throw new NoSuchElementException();
+        while (true)
+        {
+          Node node = _nodes[_depth];
+          if (_valuePos[_depth] < node.values.length)
+          {
+            _remaining--;
+            return node.values[_valuePos[_depth]++];
+          }
+          if (_nodePos[_depth] < node.nodes.length)
+          {
+            Node child = node.nodes[_nodePos[_depth]++];
+            _depth++;
+            _nodes[_depth] = child;
+            _valuePos[_depth] = 0;
+            _nodePos[_depth] = 0;
+          }
+          else
+          {
+            _depth--;
+          }
+        }
+      }
+    };
+  }
+}
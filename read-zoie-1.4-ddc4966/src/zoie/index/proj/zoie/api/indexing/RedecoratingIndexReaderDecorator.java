@@ -0,0 +1,26 @@
+package proj.zoie.api.indexing;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+
+import proj.zoie.api.ZoieIndexReader;
+
+/**
+ * An {@link IndexReaderDecorator} able to decorate a view of a reader from the decoration of that reader,
+ * see {@link ZoieIndexReader#withDelSet(it.unimi.dsi.fastutil.ints.IntSet)}. Views of the readers of plain
+ * decorators are decorated with {@link IndexReaderDecorator#decorate(ZoieIndexReader)}.
+ *
+ * @param <R>
+ */
+public interface RedecoratingIndexReaderDecorator<R extends IndexReader> extends IndexReaderDecorator<R>
+{
+	/**
+	 * Decorates a view of a reader already decorated.
+	 * Views are made for every new set of readers, state derived from the reader and kept in <code>decorated</code>
+	 * should be carried over rather than built again.
+	 * @param decorated the decoration of the reader <code>copy</code> is a view of
+	 * @param copy the view to decorate
+	 */
+	R redecorate(R decorated, ZoieIndexReader copy) throws IOException;
+}
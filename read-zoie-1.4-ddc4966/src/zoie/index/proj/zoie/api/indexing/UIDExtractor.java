@@ -0,0 +1,11 @@
+package proj.zoie.api.indexing;
+
+/**
+ * Cheaply extracts the UID of a source object without interpreting it.
+ * Lets zoie drop the older events of a batch that update the same UID before the interpreter runs.
+ * An interpreter may implement this interface itself.
+ * @param <V>
+ */
+public interface UIDExtractor<V> {
+	int extractUID(V src);
+}
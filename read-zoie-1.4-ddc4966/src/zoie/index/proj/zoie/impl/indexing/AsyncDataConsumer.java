@@ -1,12 +1,15 @@
 package proj.zoie.impl.indexing;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedList;
 
 import org.apache.log4j.Logger;
 
 import proj.zoie.api.DataConsumer;
 import proj.zoie.api.ZoieException;
+import proj.zoie.impl.indexing.internal.EventRingBuffer;
 /**
  * 数据的消费者，由ZoieSystem来继承，实际的的数据消费者 ，由StreamDataProvider.start()方法启动的线程DataThread来调用
  * 其中也有一个DataConsumer<V> _consumer，
@@ -23,6 +26,8 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
   private long _bufferedVersion;
   private LinkedList<DataEvent<V>> _batch;
   private int _batchSize;
+  private EventRingBuffer<V> _ringBuffer;
+  private WaitStrategy _waitStrategy;
 
   public AsyncDataConsumer()
   {
@@ -45,6 +50,32 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
     _consumerThread.terminate();
   }
   
+  /**
+   * Replaces the monitor guarded list between {@link #consume(Collection)} and the consumer thread
+   * with a preallocated ring buffer. Producers and the consumer thread then never take the monitor
+   * per event; only version sync still goes through it, once per batch.
+   * Must be called before {@link #start()}.
+   * @param capacity number of slots, rounded up to a power of 2
+   * @param waitStrategy what producers and the consumer thread do while the buffer is full or empty
+   */
+  public void setRingBuffer(int capacity, WaitStrategy waitStrategy)
+  {
+    synchronized(this)
+    {
+      if(_consumerThread != null)
+      {
+        throw new IllegalStateException("ring buffer must be set before start");
+      }
+      _ringBuffer = new EventRingBuffer<V>(Math.max(1, capacity));
+      _waitStrategy = (waitStrategy == null ? new WaitStrategy.Park() : waitStrategy);
+    }
+  }
+  
+  public boolean isRingBufferEnabled()
+  {
+    return _ringBuffer != null;
+  }
+  
   public void setDataConsumer(DataConsumer<V> consumer)
   {
     synchronized(this)
@@ -71,6 +102,8 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
   
   public int getCurrentBatchSize()
   {
+    if(_ringBuffer != null) return _ringBuffer.size();
+    
     synchronized(this)
     {
       return (_batch != null ? _batch.size() : 0);
@@ -87,7 +120,7 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
   
   public void flushEvents(long timeout) throws ZoieException
   {
-    syncWthVersion(timeout, _bufferedVersion);
+    syncWthVersion(timeout, (_ringBuffer != null ? _ringBuffer.getMaxVersion() : _bufferedVersion));
   }
   
   public void syncWthVersion(long timeInMillis, long version) throws ZoieException
@@ -126,6 +159,12 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
   {
     if (data == null || data.size() == 0) return;
     
+    if(_ringBuffer != null)
+    {
+      publishToRingBuffer(data);
+      return;
+    }
+    
     synchronized(this)
     {
       while(_batch.size() >= _batchSize)  //如果数据满了，则休眠自己一会让其他的方法（flushBuffer()）去flush掉数据到真正的ZoieSystem中，等使用完数据该方法会继续执行下去
@@ -150,6 +189,38 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
       this.notifyAll(); // wake up the thread waiting in flushBuffer()
     }
   }
+  
+  private void publishToRingBuffer(Collection<DataEvent<V>> data) throws ZoieException
+  {
+    EventRingBuffer<V> ring = _ringBuffer;
+    Iterator<DataEvent<V>> iter = data.iterator();
+    int remaining = data.size();
+    while(remaining > 0)
+    {
+      int n = Math.min(remaining, ring.getCapacity());
+      long seq;
+      int counter = 0;
+      while((seq = ring.tryClaim(n)) < 0)
+      {
+        if(_consumerThread == null || !_consumerThread.isAlive() || _consumerThread._stop)
+        {
+          throw new ZoieException("consumer thread has stopped");
+        }
+        _waitStrategy.idle(counter);
+        if(counter < WaitStrategy.MAX_COUNTER) counter++;
+      }
+      long maxVersion = -1L;
+      for(int i = 0; i < n; i++)
+      {
+        DataEvent<V> event = iter.next();
+        maxVersion = Math.max(maxVersion, event.getVersion());
+        ring.set(seq + i, event);
+      }
+      ring.publish(seq, n, maxVersion);
+      remaining -= n;
+    }
+  }
+  
   //该对象启动时自动创建一个守护进程，然后不停的来掉这个方法
   /**
    * 该方法会不停的被一个守护进程ConsumerThread来调用，每次取"吃掉"外界传来的在LinkedList<DataEvent<V>> _batch中存的数据，
@@ -157,6 +228,12 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
    */
   protected final void flushBuffer()
   {
+    if(_ringBuffer != null)
+    {
+      flushRingBuffer();
+      return;
+    }
+    
     long version;
     LinkedList<DataEvent<V>> currentBatch;
     
@@ -198,10 +275,47 @@ public class AsyncDataConsumer<V> implements DataConsumer<V>
       this.notifyAll(); // wake up the thread waiting in syncWthVersion()
     }    
   }
+  
+  private void flushRingBuffer()
+  {
+    EventRingBuffer<V> ring = _ringBuffer;
+    ArrayList<DataEvent<V>> currentBatch = new ArrayList<DataEvent<V>>(Math.min(ring.getCapacity(), 1024));
+    int counter = 0;
+    while(ring.drainTo(currentBatch, ring.getCapacity()) == 0)
+    {
+      if(_consumerThread._stop) return;
+      _waitStrategy.idle(counter);
+      if(counter < WaitStrategy.MAX_COUNTER) counter++;
+    }
+    
+    long version = _currentVersion;
+    for(DataEvent<V> event : currentBatch)
+    {
+      version = Math.max(version, event.getVersion());
+    }
+    
+    if(_consumer != null)
+    {
+      try
+      {
+        _consumer.consume(currentBatch);
+      }
+      catch (Exception e)
+      {
+        log.error(e.getMessage(), e);
+      }
+    }
+    
+    synchronized(this)
+    {
+      _currentVersion = version;
+      this.notifyAll(); // wake up the thread waiting in syncWthVersion()
+    }
+  }
 //内启动的线程，不停的调用父对象的flushBuffer（）
   private final class ConsumerThread extends IndexingThread
   {
-    boolean _stop = false;
+    volatile boolean _stop = false;
     
     ConsumerThread()
     {
@@ -5,12 +5,16 @@ import java.io.IOException;
 import org.apache.lucene.index.IndexReader;
 
 import proj.zoie.api.ZoieIndexReader;
-import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.RedecoratingIndexReaderDecorator;
 
-public class DefaultIndexReaderDecorator implements IndexReaderDecorator<IndexReader> {
+public class DefaultIndexReaderDecorator implements RedecoratingIndexReaderDecorator<IndexReader> {
 
 	public IndexReader decorate(ZoieIndexReader indexReader) throws IOException {
 		return indexReader;
 	}
 
+	public IndexReader redecorate(IndexReader decorated, ZoieIndexReader copy) throws IOException {
+		return copy;
+	}
+
 }
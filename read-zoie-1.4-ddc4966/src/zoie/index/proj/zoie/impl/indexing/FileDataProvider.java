@@ -1,19 +1,49 @@
 package proj.zoie.impl.indexing;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.Stack;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
 
 import proj.zoie.api.DataConsumer.DataEvent;
 
 public class FileDataProvider extends StreamDataProvider<File>
 {
+	private static final Logger log = Logger.getLogger(FileDataProvider.class);
+
 	private final File _dir;
 	private long _currentVersion;
 	private Stack<Iterator<File>> _stack;
 	private Iterator<File> _currentIterator;
-	
+
+	// crawler mode
+	private int _crawlThreads = 0;
+	private int _prefetchSize = ParallelFileCrawler.DEFAULT_PREFETCH_SIZE;
+	private File _crawlStateFile = null;
+	private ZoieSystem<?,File> _zoie = null;
+	private IndexingEventListener _stateCommitter = null;
+	private final Object _stateLock = new Object();
+	private Map<String,long[]> _crawlState = null;                  // indexed files, read by the crawler threads
+	private final SortedMap<Long,PrefetchedFile> _uncommitted = new TreeMap<Long,PrefetchedFile>();  // version -> handed over file, guarded by _stateLock
+	private Set<String> _crawledPaths = null;                       // files seen by the last completed crawl, guarded by _stateLock
+	private long _nextCrawlVersion = 0L;
+	private volatile ParallelFileCrawler _crawler = null;
+	private boolean _crawlDone = false;
+
 	public FileDataProvider(File dir)
 	{
 		super();
@@ -23,16 +53,123 @@ public class FileDataProvider extends StreamDataProvider<File>
 		_stack=new Stack<Iterator<File>>();
 		reset();
 	}
-	
+
 	public File getDir()
 	{
 		return _dir;
 	}
 
+	/**
+	 * Switches to the parallel crawler: directories are walked by <code>numThreads</code> threads
+	 * and file contents are prefetched, see {@link ParallelFileCrawler}. Files unchanged since the
+	 * last crawl are skipped. Takes effect on the next {@link #start()}.
+	 * @param numThreads number of crawler threads, 0 for the default single threaded walk
+	 * @param prefetchSize maximum number of prefetched files held in memory
+	 */
+	public void setParallelCrawl(int numThreads, int prefetchSize)
+	{
+		_crawlThreads = Math.max(0, numThreads);
+		_prefetchSize = Math.max(1, prefetchSize);
+	}
+
+	public int getCrawlThreads()
+	{
+		return _crawlThreads;
+	}
+
+	/**
+	 * Persists the mtime and size of crawled files to <code>stateFile</code>, so unchanged files
+	 * are also skipped across restarts. Only used by the parallel crawler.
+	 * <p>
+	 * A file handed to the indexer is only recorded once the disk index of <code>zoie</code> has committed
+	 * its version, files still queued or in the RAM index when the process dies are crawled again.
+	 * Crawl versions continue from the disk version of <code>zoie</code>.
+	 * @param stateFile file holding the crawl state
+	 * @param zoie system indexing the files of this provider, null to record files as soon as they are handed over
+	 */
+	public void setCrawlStateFile(File stateFile, final ZoieSystem<?,File> zoie)
+	{
+		synchronized(_stateLock)
+		{
+			_crawlStateFile = stateFile;
+			_crawlState = null;
+			_uncommitted.clear();
+			_crawledPaths = null;
+			if (_zoie != zoie)
+			{
+				_zoie = zoie;
+				_stateCommitter = null;
+			}
+			if (zoie != null && _stateCommitter == null)
+			{
+				_stateCommitter = new IndexingEventListener()
+				{
+					public void handleIndexingEvent(IndexingEvent evt)
+					{
+						if (evt instanceof IndexUpdatedEvent && _stateCommitter == this)
+						{
+							try
+							{
+								commitCrawlState(zoie.getCurrentDiskVersion());
+							}
+							catch(IOException e)
+							{
+								log.error(e.getMessage(), e);
+							}
+						}
+					}
+				};
+				zoie.addIndexingEventListener(_stateCommitter);
+			}
+		}
+	}
+
+	/**
+	 * Records the files handed over with a version up to <code>version</code> as indexed, they are
+	 * skipped by later crawls while unchanged. Saves the crawl state if it changed.
+	 * @param version committed version of the disk index
+	 */
+	public void commitCrawlState(long version)
+	{
+		synchronized(_stateLock)
+		{
+			if (_crawlState == null) return;
+			boolean changed = false;
+			SortedMap<Long,PrefetchedFile> committed = (version < Long.MAX_VALUE ? _uncommitted.headMap(version + 1) : _uncommitted);
+			for (PrefetchedFile file : committed.values())
+			{
+				_crawlState.put(file.getAbsolutePath(), file.getCrawlState());
+				changed = true;
+			}
+			committed.clear();
+			if (_uncommitted.isEmpty() && _crawledPaths != null)
+			{
+				// every file of the completed crawl is indexed, forget the deleted ones
+				changed |= _crawlState.keySet().retainAll(_crawledPaths);
+				_crawledPaths = null;
+			}
+			if (changed)
+			{
+				saveCrawlState(_crawlState);
+			}
+		}
+	}
+
+	/**
+	 * @return number of files skipped as unchanged by the current crawl
+	 */
+	public long getNumSkipped()
+	{
+		ParallelFileCrawler crawler = _crawler;
+		return crawler == null ? 0L : crawler.getNumSkipped();
+	}
+
 	@Override
 	protected void reset()
 	{
 		_currentVersion = 0L;
+		stopCrawler();
+		_crawlDone = false;
 		if (_dir.isFile())
 		{
 			_currentIterator=Arrays.asList(new File[]{_dir}).iterator();
@@ -42,9 +179,31 @@ public class FileDataProvider extends StreamDataProvider<File>
 			_currentIterator=Arrays.asList(_dir.listFiles()).iterator();
 		}
 	}
-	
+
+	@Override
+	public void stop()
+	{
+		// unblocks the data thread waiting for the crawler
+		stopCrawler();
+		super.stop();
+	}
+
+	private void stopCrawler()
+	{
+		ParallelFileCrawler crawler = _crawler;
+		if (crawler != null)
+		{
+			crawler.stop();
+			_crawler = null;
+		}
+	}
+
 	@Override
 	public DataEvent<File> next() {
+		if (_crawlThreads > 0)
+		{
+			return nextCrawled();
+		}
 		if(_currentIterator.hasNext())
 		{
 			File next=_currentIterator.next();
@@ -72,4 +231,167 @@ public class FileDataProvider extends StreamDataProvider<File>
 			}
 		}
 	}
+
+	private DataEvent<File> nextCrawled()
+	{
+		if (_crawlDone) return null;
+		ParallelFileCrawler crawler = _crawler;
+		if (crawler == null)
+		{
+			Map<String,long[]> lastState;
+			synchronized(_stateLock)
+			{
+				if (_crawlState == null)
+				{
+					_crawlState = loadCrawlState();
+				}
+				lastState = _crawlState;
+				// files of an earlier crawl still in flight are crawled again if they did not make it
+				_uncommitted.clear();
+				_crawledPaths = null;
+			}
+			_currentVersion = Math.max(_nextCrawlVersion, getDiskVersion() + 1);
+			crawler = new ParallelFileCrawler(_dir, _crawlThreads, _prefetchSize, lastState);
+			_crawler = crawler;
+			crawler.start();
+		}
+		try
+		{
+			File file = crawler.take();
+			if (file != null)
+			{
+				long version = _currentVersion++;
+				_nextCrawlVersion = _currentVersion;
+				recordHandedOver(version, (PrefetchedFile)file);
+				return new DataEvent<File>(version, file);
+			}
+			_crawlDone = true;
+			if (crawler.isCompleted())
+			{
+				synchronized(_stateLock)
+				{
+					_crawledPaths = crawler.getState().keySet();
+				}
+				commitCrawlState(_zoie == null ? Long.MAX_VALUE : getDiskVersion());
+				log.info("crawl of " + _dir + " done: " + crawler.getNumFiles() + " files, " + crawler.getNumSkipped() + " unchanged");
+			}
+			return null;
+		}
+		catch(InterruptedException e)
+		{
+			log.warn("crawl interrupted");
+			return null;
+		}
+	}
+
+	private void recordHandedOver(long version, PrefetchedFile file)
+	{
+		synchronized(_stateLock)
+		{
+			if (_crawlState == null)
+			{
+				// state file changed during the crawl
+				return;
+			}
+			if (_zoie == null)
+			{
+				// no indexer to wait for, the state only lives in memory
+				_crawlState.put(file.getAbsolutePath(), file.getCrawlState());
+			}
+			else
+			{
+				_uncommitted.put(version, file);
+			}
+		}
+	}
+
+	private long getDiskVersion()
+	{
+		if (_zoie == null) return -1L;
+		try
+		{
+			return _zoie.getCurrentDiskVersion();
+		}
+		catch(IOException e)
+		{
+			log.warn("unable to read the disk version: " + e.getMessage());
+			return -1L;
+		}
+	}
+
+	private Map<String,long[]> loadCrawlState()
+	{
+		Map<String,long[]> state = new ConcurrentHashMap<String,long[]>();
+		if (_crawlStateFile == null || !_crawlStateFile.exists()) return state;
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(_crawlStateFile)));
+			int count = in.readInt();
+			for (int i = 0; i < count; ++i)
+			{
+				String path = in.readUTF();
+				long mtime = in.readLong();
+				long size = in.readLong();
+				state.put(path, new long[]{mtime, size});
+			}
+		}
+		catch(IOException e)
+		{
+			log.warn("unable to load crawl state from " + _crawlStateFile + ", crawling everything: " + e.getMessage());
+			state.clear();
+		}
+		finally
+		{
+			if (in != null)
+			{
+				try {
+					in.close();
+				} catch (IOException e) {
+					log.warn(e.getMessage());
+				}
+			}
+		}
+		return state;
+	}
+
+	private void saveCrawlState(Map<String,long[]> state)
+	{
+		if (_crawlStateFile == null) return;
+		File tmp = new File(_crawlStateFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(state.size());
+			for (Map.Entry<String,long[]> entry : state.entrySet())
+			{
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue()[0]);
+				out.writeLong(entry.getValue()[1]);
+			}
+			out.close();
+			out = null;
+			_crawlStateFile.delete();
+			if (!tmp.renameTo(_crawlStateFile))
+			{
+				log.warn("unable to rename " + tmp + " to " + _crawlStateFile);
+			}
+		}
+		catch(IOException e)
+		{
+			log.error("unable to save crawl state to " + _crawlStateFile, e);
+		}
+		finally
+		{
+			if (out != null)
+			{
+				try {
+					out.close();
+				} catch (IOException e) {
+					log.warn(e.getMessage());
+				}
+			}
+		}
+	}
 }
@@ -4,6 +4,8 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.document.Document;
@@ -46,6 +48,17 @@ public class FileIndexableInterpreter implements ZoieIndexableInterpreter<File>
 			StringBuilder sb=new StringBuilder();
 			sb.append(_file.getAbsoluteFile()).append("\n");
 			doc.add(new Field("path",_file.getAbsolutePath(),Store.YES,Index.ANALYZED));
+			if (_file instanceof PrefetchedFile)
+			{
+				// content already read or mapped by the crawler
+				ByteBuffer content=((PrefetchedFile)_file).getContent();
+				if (content!=null)
+				{
+					sb.append(Charset.defaultCharset().decode(content));
+					doc.add(new Field("content",sb.toString(),Store.YES,Index.ANALYZED));
+					return doc;
+				}
+			}
 			FileReader freader=null;
 			try
 			{
@@ -1,47 +1,96 @@
 package proj.zoie.impl.indexing;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
 import proj.zoie.api.DataConsumer.DataEvent;
 
+/**
+ * In-memory data provider backed by a circular array.
+ * By default the queue grows as needed. When constructed with a capacity, the queue is bounded
+ * and {@link #addEvents(List)} / {@link #addEvent(DataEvent)} block while it is full,
+ * pushing back on producers when the indexer falls behind.
+ */
 public class MemoryStreamDataProvider<V> extends StreamDataProvider<V> {
 
-	  private List<DataEvent<V>> _list;
+	  public static final int UNBOUNDED = Integer.MAX_VALUE;
+	  private static final int INITIAL_SIZE = 16;
+
+	  private DataEvent<V>[] _queue;
+	  private int _head;           // index of the oldest event
+	  private int _size;           // number of queued events
+	  private final int _capacity;
+	  private int _waiters;        // producers and flushers waiting for the queue to drain
 	  private int _count;
 	  private boolean _stop;
-	  
+
 	  // private static final double DEFAULT_ITERS_PER_SECOND=100.0;
 	  private static final Logger log = Logger.getLogger(MemoryStreamDataProvider.class);
-	  
+
 	  public MemoryStreamDataProvider()
+	  {
+	    this(UNBOUNDED);
+	  }
+
+	  /**
+	   * @param capacity maximum number of queued events, {@link #UNBOUNDED} for a growing queue
+	   */
+	  @SuppressWarnings("unchecked")
+	  public MemoryStreamDataProvider(int capacity)
 	  {
 	    super();
-	    _list= new LinkedList<DataEvent<V>>();
+	    if (capacity<=0)
+	    {
+	      throw new IllegalArgumentException("capacity must be positive: "+capacity);
+	    }
+	    _capacity=capacity;
+	    _queue=(DataEvent<V>[])new DataEvent[Math.min(capacity, INITIAL_SIZE)];
+	    _head=0;
+	    _size=0;
+	    _waiters=0;
 	    _count=0;
 	    _stop=false;
 	  }
-	  
+
+	  public int getCapacity()
+	  {
+	    return _capacity;
+	  }
+
+	  /**
+	   * @return number of events queued and not yet pulled by the data thread
+	   */
+	  public int getQueueSize()
+	  {
+	    synchronized(this)
+	    {
+	      return _size;
+	    }
+	  }
+
 	  @Override
 	  public void reset()
 	  {
 	    synchronized(this)
 	    {
-	      _list.clear();
+	      Arrays.fill(_queue, null);
+	      _head=0;
+	      _size=0;
 	      this.notifyAll();
 	    }
 	  }
-	  
+
 	  public void flush()
 	  {
         synchronized(this)
         {
-          while(!_list.isEmpty() && !_stop)
+          while(_size>0 && !_stop)
           {
-            this.notifyAll();			
+            this.notifyAll();
+            _waiters++;
             try
             {
               this.wait();
@@ -50,67 +99,176 @@ public class MemoryStreamDataProvider<V> extends StreamDataProvider<V> {
             {
               log.warn(e.getMessage());
             }
-          }    	    	
-	    } 
+            finally
+            {
+              _waiters--;
+            }
+          }
+	    }
 	  }
-	  
+
       public void addEvents(List<DataEvent<V>> list)
       {
         if (list!=null && !list.isEmpty())
         {
-          Iterator<DataEvent<V>> iter=list.iterator();
+          @SuppressWarnings("unchecked")
+          DataEvent<V>[] events=(DataEvent<V>[])list.toArray(new DataEvent[list.size()]);
           synchronized(this)
           {
-            while(iter.hasNext())
-            {
-              DataEvent<V> obj=iter.next();
-              _count++;
-              _list.add(obj);
-            }
-            this.notifyAll();
+            enqueue(events);
           }
         }
       }
 
+      @SuppressWarnings("unchecked")
       public void addEvent(DataEvent<V> event)
       {
         if (event!=null)
         {
           synchronized(this)
           {
-            _count++;
-            _list.add(event);
-            this.notifyAll();
+            enqueue((DataEvent<V>[])new DataEvent[]{event});
+          }
+        }
+      }
+
+      /**
+       * Copies the events into the queue, waiting for room whenever it is full.
+       * Once the provider is stopped nobody drains the queue anymore, so it grows instead of blocking.
+       * Must be called holding the monitor.
+       */
+      private void enqueue(DataEvent<V>[] events)
+      {
+        int off=0;
+        while(off<events.length)
+        {
+          int room=_capacity-_size;
+          if (room<=0 && !_stop)
+          {
+            _waiters++;
+            try
+            {
+              this.wait();
+            }
+            catch(InterruptedException e)
+            {
+              log.warn(e.getMessage());
+            }
+            finally
+            {
+              _waiters--;
+            }
+            continue;
+          }
+          int n=_stop ? events.length-off : Math.min(room, events.length-off);
+          ensureSize(_size+n);
+          boolean wasEmpty=(_size==0);
+          int tail=(_head+_size)%_queue.length;
+          int first=Math.min(n, _queue.length-tail);
+          System.arraycopy(events, off, _queue, tail, first);
+          if (first<n)
+          {
+            System.arraycopy(events, off+first, _queue, 0, n-first);
+          }
+          _size+=n;
+          _count+=n;
+          off+=n;
+          if (wasEmpty)
+          {
+            this.notifyAll();   // wake up the data thread
+          }
+        }
+      }
+
+      @SuppressWarnings("unchecked")
+      private void ensureSize(int size)
+      {
+        if (size<=_queue.length) return;
+        int newLength=_queue.length;
+        while(newLength<size)
+        {
+          newLength=(newLength>(Integer.MAX_VALUE>>1)) ? Integer.MAX_VALUE : newLength<<1;
+        }
+        DataEvent<V>[] newQueue=(DataEvent<V>[])new DataEvent[newLength];
+        int first=Math.min(_size, _queue.length-_head);
+        System.arraycopy(_queue, _head, newQueue, 0, first);
+        System.arraycopy(_queue, 0, newQueue, first, _size-first);
+        _queue=newQueue;
+        _head=0;
+      }
+
+      /**
+       * Waits until an event is queued or the provider is stopped. Must be called holding the monitor.
+       */
+      private void awaitEvents()
+      {
+        while(_size==0 && !_stop)
+        {
+          try
+          {
+            this.wait();
+          }
+          catch (InterruptedException e)
+          {
+            log.warn(e.getMessage());
           }
         }
       }
-	  
+
+      /**
+       * Removes the oldest event. Must be called holding the monitor with a non empty queue.
+       */
+      private DataEvent<V> poll()
+      {
+        DataEvent<V> obj=_queue[_head];
+        _queue[_head]=null;
+        _head=(_head+1)%_queue.length;
+        _size--;
+        return obj;
+      }
+
 	  @Override
 	  public DataEvent<V> next()
 	  {
 		DataEvent<V> obj=null;
         synchronized(this)
         {
-          while(_list.isEmpty() && !_stop)
+          awaitEvents();
+          if (_size>0)
           {
-            try 
+            obj=poll();
+            if (_waiters>0)
             {
-              this.wait();
-            }
-            catch (InterruptedException e) 
-            {
-              log.warn(e.getMessage());
+              this.notifyAll();
             }
           }
-          if (!_list.isEmpty())
+        }
+	    return obj;
+	  }
+
+	  /**
+	   * Drains up to <code>max</code> queued events under a single lock acquisition.
+	   */
+	  @Override
+	  public int nextBatch(Collection<DataEvent<V>> batch, int max)
+	  {
+	    int count=0;
+        synchronized(this)
+        {
+          awaitEvents();
+          while(count<max && _size>0)
+          {
+            batch.add(poll());
+            count++;
+          }
+          if (count>0 && _waiters>0)
           {
-            obj=_list.remove(0);
             this.notifyAll();
           }
         }
-	    return obj;
+	    return count;
 	  }
-	  
+
 	  public int getCount()
 	  {
 	    synchronized(this)
@@ -0,0 +1,379 @@
+package proj.zoie.impl.indexing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Walks a directory tree on a pool of threads, one task per directory.
+ * Files are prefetched on a separate bounded pool, so the files of a single large directory are
+ * read in parallel too: small files are read into a heap buffer, large ones are memory mapped.
+ * When the prefetch backlog is full the listing thread prefetches the file itself.
+ * Prefetched files are handed over through a bounded queue, so the crawl never gets more than
+ * <code>prefetchSize</code> files ahead of the indexer.
+ * Files whose modification time and size match the state of the previous crawl are skipped.
+ */
+public class ParallelFileCrawler
+{
+	private static final Logger log = Logger.getLogger(ParallelFileCrawler.class);
+
+	public static final int DEFAULT_PREFETCH_SIZE = 1000;
+	public static final long DEFAULT_MAP_THRESHOLD = 64 * 1024;
+
+	private static final File END = new File("");    // marks the end of the crawl in the queue
+
+	private final File _root;
+	private final int _numThreads;
+	private final int _numPrefetchThreads;
+	private final int _prefetchBacklog;
+	private final long _mapThreshold;
+	private final BlockingQueue<File> _queue;
+	private final Map<String,long[]> _lastState;     // path -> {mtime, size} of the previous crawl
+	private final ConcurrentHashMap<String,long[]> _state;
+	private final AtomicInteger _pending;            // directory and prefetch tasks submitted and not finished
+	private final AtomicLong _numFiles;
+	private final AtomicLong _numSkipped;
+	private ExecutorService _pool;
+	private ExecutorService _prefetchPool;
+	private volatile boolean _stopped;
+	private volatile boolean _completed;
+
+	public ParallelFileCrawler(File root, int numThreads, int prefetchSize, Map<String,long[]> lastState)
+	{
+		this(root, numThreads, numThreads, prefetchSize, DEFAULT_MAP_THRESHOLD, lastState);
+	}
+
+	/**
+	 * @param root file or directory to crawl
+	 * @param numThreads number of threads listing directories
+	 * @param numPrefetchThreads number of threads reading files
+	 * @param prefetchSize maximum number of prefetched files waiting to be taken, also bounds the files waiting to be read
+	 * @param mapThreshold files of at least this many bytes are memory mapped instead of read
+	 * @param lastState state of the previous crawl, path -> {mtime, size}, may be null. It is read by the crawler
+	 * threads and must be safe for concurrent reads.
+	 */
+	public ParallelFileCrawler(File root, int numThreads, int numPrefetchThreads, int prefetchSize, long mapThreshold, Map<String,long[]> lastState)
+	{
+		_root = root;
+		_numThreads = Math.max(1, numThreads);
+		_numPrefetchThreads = Math.max(1, numPrefetchThreads);
+		_prefetchBacklog = Math.max(1, prefetchSize);
+		_mapThreshold = mapThreshold;
+		_queue = new ArrayBlockingQueue<File>(Math.max(1, prefetchSize));
+		_lastState = lastState == null ? Collections.<String,long[]>emptyMap() : lastState;
+		_state = new ConcurrentHashMap<String,long[]>();
+		_pending = new AtomicInteger(0);
+		_numFiles = new AtomicLong(0L);
+		_numSkipped = new AtomicLong(0L);
+		_stopped = false;
+		_completed = false;
+	}
+
+	public void start()
+	{
+		_pool = Executors.newFixedThreadPool(_numThreads, new CrawlerThreadFactory("zoie file crawler "));
+		// a full backlog is rejected and the file is prefetched by the listing thread
+		_prefetchPool = new ThreadPoolExecutor(_numPrefetchThreads, _numPrefetchThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(_prefetchBacklog), new CrawlerThreadFactory("zoie file prefetcher "));
+		submit(_root);
+	}
+
+	/**
+	 * Takes the next prefetched file, waiting for the crawler if necessary.
+	 * @return the next file, or null once the crawl is finished or stopped
+	 */
+	public File take() throws InterruptedException
+	{
+		File file = _queue.take();
+		if (file == END)
+		{
+			_queue.offer(END);    // keep answering null to later calls
+			return null;
+		}
+		return file;
+	}
+
+	/**
+	 * Stops the crawl. Threads blocked in {@link #take()} return null.
+	 */
+	public void stop()
+	{
+		_stopped = true;
+		if (_pool != null)
+		{
+			_pool.shutdownNow();
+			_prefetchPool.shutdownNow();
+		}
+		_queue.clear();
+		_queue.offer(END);
+	}
+
+	/**
+	 * @return true if every file under the root has been handed over and the crawl was not stopped
+	 */
+	public boolean isCompleted()
+	{
+		return _completed;
+	}
+
+	/**
+	 * @return path -> {mtime, size} of every file seen by this crawl, skipped or handed over. The state of a
+	 * handed over file must only be passed to the next crawl once the file is indexed, see {@link PrefetchedFile#getCrawlState()}.
+	 */
+	public Map<String,long[]> getState()
+	{
+		return _state;
+	}
+
+	public long getNumFiles()
+	{
+		return _numFiles.get();
+	}
+
+	public long getNumSkipped()
+	{
+		return _numSkipped.get();
+	}
+
+	private void submit(File dir)
+	{
+		_pending.incrementAndGet();
+		try
+		{
+			_pool.execute(new CrawlTask(dir));
+		}
+		catch(RejectedExecutionException e)
+		{
+			// pool shut down by stop()
+			_pending.decrementAndGet();
+		}
+	}
+
+	private void submitPrefetch(PrefetchTask task) throws InterruptedException
+	{
+		_pending.incrementAndGet();
+		try
+		{
+			_prefetchPool.execute(task);
+		}
+		catch(RejectedExecutionException e)
+		{
+			if (_stopped || _prefetchPool.isShutdown())
+			{
+				_pending.decrementAndGet();
+				return;
+			}
+			// backlog full, prefetch on this thread
+			task.prefetch();
+		}
+	}
+
+	private void finish()
+	{
+		_pool.shutdown();
+		_prefetchPool.shutdown();
+		if (!_stopped)
+		{
+			_completed = true;
+			try
+			{
+				_queue.put(END);
+			}
+			catch(InterruptedException e)
+			{
+				_queue.offer(END);
+			}
+		}
+	}
+
+	private void handleFile(File file) throws InterruptedException
+	{
+		long mtime = file.lastModified();
+		long size = file.length();
+		String path = file.getAbsolutePath();
+		_state.put(path, new long[]{mtime, size});
+
+		long[] last = _lastState.get(path);
+		if (last != null && last[0] == mtime && last[1] == size)
+		{
+			_numSkipped.incrementAndGet();
+			return;
+		}
+
+		submitPrefetch(new PrefetchTask(file, mtime, size));
+	}
+
+	private ByteBuffer prefetch(File file, long size)
+	{
+		if (size > Integer.MAX_VALUE)
+		{
+			return null;
+		}
+		RandomAccessFile raf = null;
+		try
+		{
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			if (size >= _mapThreshold)
+			{
+				// the mapping stays valid after the channel is closed
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			ByteBuffer buf = ByteBuffer.allocate((int)size);
+			while(buf.hasRemaining() && channel.read(buf) >= 0);
+			buf.flip();
+			return buf;
+		}
+		catch(IOException e)
+		{
+			log.warn("unable to prefetch " + file + ": " + e.getMessage());
+			return null;
+		}
+		finally
+		{
+			if (raf != null)
+			{
+				try
+				{
+					raf.close();
+				}
+				catch(IOException e)
+				{
+					log.warn(e.getMessage());
+				}
+			}
+		}
+	}
+
+	private class CrawlTask implements Runnable
+	{
+		private final File _file;
+
+		CrawlTask(File file)
+		{
+			_file = file;
+		}
+
+		public void run()
+		{
+			try
+			{
+				if (_file.isFile())
+				{
+					handleFile(_file);
+					return;
+				}
+				File[] files = _file.listFiles();
+				if (files == null) return;
+				for (File file : files)
+				{
+					if (_stopped) break;
+					if (file.isDirectory())
+					{
+						submit(file);
+					}
+					else if (file.isFile())
+					{
+						handleFile(file);
+					}
+				}
+			}
+			catch(InterruptedException e)
+			{
+				// stopped
+			}
+			catch(Exception e)
+			{
+				log.error("error crawling " + _file, e);
+			}
+			finally
+			{
+				if (_pending.decrementAndGet() == 0)
+				{
+					finish();
+				}
+			}
+		}
+	}
+
+	private class PrefetchTask implements Runnable
+	{
+		private final File _file;
+		private final long _mtime;
+		private final long _size;
+
+		PrefetchTask(File file, long mtime, long size)
+		{
+			_file = file;
+			_mtime = mtime;
+			_size = size;
+		}
+
+		public void run()
+		{
+			try
+			{
+				prefetch();
+			}
+			catch(InterruptedException e)
+			{
+				// stopped
+			}
+		}
+
+		void prefetch() throws InterruptedException
+		{
+			try
+			{
+				ByteBuffer content = ParallelFileCrawler.this.prefetch(_file, _size);
+				if (!_stopped)
+				{
+					_queue.put(new PrefetchedFile(_file, content, _mtime, _size));
+					_numFiles.incrementAndGet();
+				}
+			}
+			finally
+			{
+				if (_pending.decrementAndGet() == 0)
+				{
+					finish();
+				}
+			}
+		}
+	}
+
+	private static class CrawlerThreadFactory implements ThreadFactory
+	{
+		private final String _prefix;
+		private final AtomicInteger _count = new AtomicInteger(0);
+
+		CrawlerThreadFactory(String prefix)
+		{
+			_prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, _prefix + _count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package proj.zoie.impl.indexing;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * A file whose content has already been read (or memory mapped) by the crawler of {@link FileDataProvider}.
+ * Interpreters can use {@link #getContent()} instead of opening the file again.
+ */
+public class PrefetchedFile extends File
+{
+	private static final long serialVersionUID = 1L;
+
+	private final transient ByteBuffer _content;
+	private final long _crawlMtime;
+	private final long _crawlSize;
+
+	public PrefetchedFile(File file, ByteBuffer content)
+	{
+		this(file, content, file.lastModified(), file.length());
+	}
+
+	/**
+	 * @param mtime modification time of the file when it was crawled
+	 * @param size size of the file when it was crawled
+	 */
+	public PrefetchedFile(File file, ByteBuffer content, long mtime, long size)
+	{
+		super(file.getPath());
+		_content = content;
+		_crawlMtime = mtime;
+		_crawlSize = size;
+	}
+
+	/**
+	 * @return {mtime, size} of the file as seen by the crawler, to be recorded once the file is indexed
+	 */
+	public long[] getCrawlState()
+	{
+		return new long[]{_crawlMtime, _crawlSize};
+	}
+
+	/**
+	 * @return a read-only view on the file content positioned at 0, or null if the content could not be prefetched
+	 */
+	public ByteBuffer getContent()
+	{
+		return _content == null ? null : _content.asReadOnlyBuffer();
+	}
+}
@@ -1,5 +1,6 @@
 package proj.zoie.impl.indexing;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 
@@ -37,6 +38,23 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 
 	public abstract DataEvent<V> next();   //实现者继承的方法，取数据，在这个方法里面定义自定义的数据来源
 	
+	/**
+	 * Pulls up to <code>max</code> events into <code>batch</code> in one call.
+	 * Providers that can fetch several events at once (log segments, cursors, in-memory queues)
+	 * should override this; the default implementation delegates to {@link #next()} for a single event.
+	 * Like {@link #next()}, it may block until data is available.
+	 * @param batch collection receiving the events
+	 * @param max maximum number of events to add, at least 1
+	 * @return the number of events added, 0 means the provider has no more data (same as {@link #next()} returning null)
+	 */
+	public int nextBatch(Collection<DataEvent<V>> batch, int max)
+	{
+		DataEvent<V> data = next();
+		if (data == null) return 0;
+		batch.add(data);
+		return 1;
+	}
+	
 	protected abstract void reset();       
 	
 	public int getBatchSize() {
@@ -97,6 +115,7 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 	private static final class DataThread<V> extends Thread
 	{
 	    private Collection<DataEvent<V>> _batch;
+	    private final ArrayList<DataEvent<V>> _fetched;  //events pulled by one nextBatch() call
 		private long _currentVersion;   //已经从DataProvider取出来的DateEvent<V>的最大的_currentVersion
 		private final StreamDataProvider<V> _dataProvider;
 		private boolean _paused;       //通过该参数来暂停该线程的运行
@@ -111,6 +130,7 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
 			_paused = false;
 			_stop = false;
 			_batch = new LinkedList<DataEvent<V>>();
+			_fetched = new ArrayList<DataEvent<V>>();
 		}
 		
 		void terminate()
@@ -212,20 +232,28 @@ public abstract class StreamDataProvider<V> implements DataProvider<V>,DataProvi
                 }
 				if (!_stop)
 				{
-					DataEvent<V> data = _dataProvider.next();    //调用_dataProvider.next()取得数据，然后现在自己的list中缓存起来
+					//调用_dataProvider.nextBatch()一次取得至多能填满当前批量的数据，然后现在自己的list中缓存起来
+					int max = Math.max(1, _dataProvider._batchSize - _batch.size());
+					int count = _dataProvider.nextBatch(_fetched, max);
 					//该处会一直取数据，指导达到_dataProvider._batchSize 或者 从_dataProvider取不到数据，则将数据刷新给索引
 					//若是达到最大的取数据限制_dataProvider._batchSize，则在刷新完数据给索引后会继续取数据 。
 					//若是从_dataProvider中取不到数据，则该线程run()方法结束 。
-					if (data!=null)
+					if (count > 0)
 					{
 					  synchronized(this)
 					  {
-						_batch.add(data);
+						long version = _currentVersion;
+						for (DataEvent<V> data : _fetched)
+						{
+						  version = Math.max(version, data.getVersion());
+						}
+						_batch.addAll(_fetched);
+						_fetched.clear();
 						if (_batch.size()>=_dataProvider._batchSize)    //达到批量处理数量缓存起来
 						{
 							flush();
 						}
-						_currentVersion=Math.max(_currentVersion, data.getVersion());
+						_currentVersion=version;
 						this.notifyAll();
 					  }
 					}
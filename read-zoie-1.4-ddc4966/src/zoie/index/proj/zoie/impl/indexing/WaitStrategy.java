@@ -0,0 +1,103 @@
+package proj.zoie.impl.indexing;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides what a thread does while it waits on the ring buffer of {@link AsyncDataConsumer},
+ * i.e. a producer waiting for free slots or the consumer thread waiting for published events.
+ * Implementations must not block indefinitely, the caller re-checks its condition after every call.
+ */
+public interface WaitStrategy
+{
+  /**
+   * Callers stop counting at this value, a long idle wait keeps the counter there instead of overflowing.
+   */
+  public static final int MAX_COUNTER = 1 << 16;
+
+  /**
+   * Called each time the awaited condition is found unsatisfied.
+   * @param counter number of calls made so far for the current wait, starting at 0, at most {@link #MAX_COUNTER}
+   */
+  void idle(int counter);
+
+  /**
+   * Busy spins. Lowest latency, but keeps a core busy while there is nothing to do.
+   */
+  public static final class Spin implements WaitStrategy
+  {
+    public void idle(int counter)
+    {
+    }
+  }
+
+  /**
+   * Spins for a short while, then yields the processor to other threads.
+   */
+  public static final class Yield implements WaitStrategy
+  {
+    private static final int SPIN_TRIES = 100;
+
+    public void idle(int counter)
+    {
+      if(counter >= SPIN_TRIES)
+      {
+        Thread.yield();
+      }
+    }
+  }
+
+  /**
+   * Spins, then yields, then parks the thread, doubling the park time on every call up to a maximum.
+   * Suited for feeds that go idle: an idle thread wakes up once per maximum park time, at the cost of
+   * up to that much latency for the first event after a long pause.
+   */
+  public static final class Park implements WaitStrategy
+  {
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 200;
+    public static final long DEFAULT_PARK_NANOS = 100000L; // 0.1ms
+    public static final long DEFAULT_MAX_PARK_NANOS = 10000000L; // 10ms
+
+    private final long _parkNanos;
+    private final long _maxParkNanos;
+
+    public Park()
+    {
+      this(DEFAULT_PARK_NANOS);
+    }
+
+    public Park(long parkNanos)
+    {
+      this(parkNanos, Math.max(parkNanos, DEFAULT_MAX_PARK_NANOS));
+    }
+
+    /**
+     * @param parkNanos first park time
+     * @param maxParkNanos park time reached by backing off while the wait goes on
+     */
+    public Park(long parkNanos, long maxParkNanos)
+    {
+      _parkNanos = Math.max(1L, parkNanos);
+      _maxParkNanos = Math.max(_parkNanos, maxParkNanos);
+    }
+
+    public void idle(int counter)
+    {
+      if(counter < SPIN_TRIES)
+      {
+        return;
+      }
+      if(counter < YIELD_TRIES)
+      {
+        Thread.yield();
+        return;
+      }
+      long nanos = _parkNanos;
+      for(int i = YIELD_TRIES; i < counter && nanos < _maxParkNanos; i++)
+      {
+        nanos <<= 1;
+      }
+      LockSupport.parkNanos(Math.min(nanos, _maxParkNanos));
+    }
+  }
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
@@ -13,28 +14,35 @@ import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.index.ThrottledMergeScheduler;
 import org.apache.lucene.search.DefaultSimilarity;
 import org.apache.lucene.search.Similarity;
 
 import proj.zoie.api.DataConsumer;
-import proj.zoie.api.IndexReaderFactory;
+import proj.zoie.api.DataSerializer;
+import proj.zoie.api.IndexReaderLease;
+import proj.zoie.api.LeasingIndexReaderFactory;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.indexing.DefaultOptimizeScheduler;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 import proj.zoie.api.indexing.IndexableInterpreter;
 import proj.zoie.api.indexing.OptimizeScheduler;
+import proj.zoie.api.indexing.UIDExtractor;
 import proj.zoie.api.indexing.ZoieIndexable;
 import proj.zoie.api.indexing.ZoieIndexableInterpreter;
+import proj.zoie.impl.indexing.internal.AdaptiveBatchController;
 import proj.zoie.impl.indexing.internal.BatchedIndexDataLoader;
 import proj.zoie.impl.indexing.internal.CopyingIndexDataLoader;
 import proj.zoie.impl.indexing.internal.DelegateIndexDataConsumer;
 import proj.zoie.impl.indexing.internal.DiskLuceneIndexDataLoader;
+import proj.zoie.impl.indexing.internal.EventLog;
 import proj.zoie.impl.indexing.internal.IndexReaderDispenser;
 import proj.zoie.impl.indexing.internal.RAMLuceneIndexDataLoader;
 import proj.zoie.impl.indexing.internal.SearchIndexManager;
 import proj.zoie.mbean.ZoieSystemAdminMBean;
 
-public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> implements DataConsumer<V>,IndexReaderFactory<R> {
+public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> implements DataConsumer<V>,LeasingIndexReaderFactory<R> {
 
 	private static final Logger log = Logger.getLogger(ZoieSystem.class);
 	
@@ -47,6 +55,10 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 	private RAMLuceneIndexDataLoader<R> _ramLoader;
 	private BatchedIndexDataLoader<R,ZoieIndexable>  _batchedDiskLoader;
 	private DiskLuceneIndexDataLoader<R> _diskLoader;
+	private volatile long _targetFlushTime=AdaptiveBatchController.DEFAULT_TARGET_FLUSH_TIME;
+	private volatile long _targetLag=AdaptiveBatchController.DEFAULT_TARGET_LAG;
+	private volatile EventLog<V> _eventLog=null;
+	private volatile boolean _started=false;
 	private DelegateIndexDataConsumer<V> _delegateConsumer;
 	private List<IndexingEventListener> _lsnrList;       //
 	
@@ -90,6 +102,21 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 	      }
 	      
 	      _delegateConsumer = new DelegateIndexDataConsumer<V>(_batchedDiskLoader,_ramLoader,_interpreter);
+	      if (_interpreter instanceof UIDExtractor)
+	      {
+	    	  _delegateConsumer.setUIDExtractor((UIDExtractor<V>)_interpreter);
+	      }
+	      // spilled events are read back as the disk indexer makes room
+	      _lsnrList.add(new IndexingEventListener()
+	      {
+	    	  public void handleIndexingEvent(IndexingEvent evt)
+	    	  {
+	    		  if (evt instanceof IndexUpdatedEvent)
+	    		  {
+	    			  _delegateConsumer.drainOverflow();
+	    		  }
+	    	  }
+	      });
 	      super.setBatchSize(100); // realtime memory batch size
 	      super.setDataConsumer(_delegateConsumer);
 	}
@@ -123,27 +150,369 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 		return _similarity;
 	}
 	
+	/**
+	 * Turns on the write-ahead event log: events are appended to memory mapped segment files in <code>dir</code>
+	 * before they are indexed, and on {@link #start()} the logged events above {@link #getCurrentDiskVersion()}
+	 * are indexed again. Segments are deleted once the disk index has caught up with them.
+	 * Must be called before {@link #start()}.
+	 * @param dir log directory, null to turn the log off
+	 * @param serializer serializer of the event data
+	 * @throws IllegalStateException if zoie is already started
+	 */
+	public void setEventLog(File dir, DataSerializer<V> serializer)
+	{
+		if (_started) throw new IllegalStateException("event log must be set before zoie is started");
+		_eventLog=(dir==null ? null : new EventLog<V>(dir, serializer));
+	}
+	
+	/**
+	 * Starts indexing.
+	 * @throws IllegalStateException if the event log cannot be opened or replayed, zoie is then shut down
+	 * as events could otherwise be neither logged nor indexed
+	 */
 	public void start()
 	{
 		log.info("starting zoie...");
+		_started=true;
+		try
+		{
+			_searchIdxMgr.openDiskIndexWriter(_analyzer, _similarity);
+		}
+		catch(IOException e)
+		{
+			log.error("unable to open disk index writer: "+e.getMessage(),e);
+		}
+		final EventLog<V> eventLog=_eventLog;
+		if (eventLog!=null)
+		{
+			try
+			{
+				eventLog.open();
+			}
+			catch(IOException e)
+			{
+				_searchIdxMgr.closeDiskIndexWriter();
+				throw new IllegalStateException("unable to open event log "+eventLog.getDir()+": "+e.getMessage(),e);
+			}
+		}
 		_batchedDiskLoader.start();
         super.start();
+        _delegateConsumer.drainOverflow();  // events left in the overflow log by an earlier run
+        if (eventLog!=null)
+        {
+          try
+          {
+            replayEventLog(eventLog);
+          }
+          catch(Exception e)
+          {
+            shutdown();
+            throw new IllegalStateException("event log replay failed: "+e.getMessage(),e);
+          }
+        }
 		log.info("zoie started...");
 	}
 	
+	private void replayEventLog(final EventLog<V> eventLog) throws IOException, ZoieException
+	{
+		long diskVersion=getCurrentDiskVersion();
+		// replayed events are already in the log, bypass consume()
+		int count=eventLog.replay(diskVersion, new DataConsumer<V>()
+		{
+			public void consume(Collection<DataEvent<V>> data) throws ZoieException
+			{
+				ZoieSystem.super.consume(data);
+			}
+		}, 1000);
+		log.info("replayed "+count+" events above version "+diskVersion+" from event log "+eventLog.getDir());
+		
+		addIndexingEventListener(new IndexingEventListener()
+		{
+			public void handleIndexingEvent(IndexingEvent evt)
+			{
+				if (evt instanceof IndexUpdatedEvent)
+				{
+					try
+					{
+						eventLog.truncate(getCurrentDiskVersion());
+					}
+					catch (IOException e)
+					{
+						log.error(e.getMessage(),e);
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Appends the events to the event log, if any, before handing them to the indexer.
+	 */
+	@Override
+	public void consume(Collection<DataEvent<V>> data) throws ZoieException
+	{
+		EventLog<V> eventLog=_eventLog;
+		if (eventLog!=null && data!=null && data.size()>0)
+		{
+			try
+			{
+				eventLog.append(data);
+			}
+			catch(IOException e)
+			{
+				throw new ZoieException("unable to write event log: "+e.getMessage(),e);
+			}
+		}
+		super.consume(data);
+	}
+	
 	public void shutdown()
 	{
 		log.info("shutting down zoie...");
 		_batchedDiskLoader.shutdown();
         super.stop();
+        _delegateConsumer.shutdown();
+        _searchIdxMgr.closeDiskIndexWriter();
+        if (_eventLog!=null)
+        {
+          _eventLog.close();
+        }
 		log.info("zoie shutdown successfully.");
 		
 	}
 	
+	/**
+	 * Keeps one disk index writer open from {@link #start()} to {@link #shutdown()} instead of opening
+	 * a writer for every disk batch. Must be called before {@link #start()}.
+	 */
+	public void setPersistentDiskWriter(boolean persistentWriter)
+	{
+		_searchIdxMgr.setPersistentDiskWriter(persistentWriter);
+	}
+	
+	public boolean isPersistentDiskWriter()
+	{
+		return _searchIdxMgr.isPersistentDiskWriter();
+	}
+	
+	/**
+	 * Number of disk batches committed together by the persistent disk writer, batches are also committed
+	 * whenever the disk indexer queue runs empty. In realtime mode every batch is committed, the
+	 * memory index holding it is dropped once it is on disk.
+	 */
+	public void setDiskCommitGroupSize(int commitGroupSize)
+	{
+		_searchIdxMgr.setDiskCommitGroupSize(commitGroupSize);
+	}
+	
+	public int getDiskCommitGroupSize()
+	{
+		return _searchIdxMgr.getDiskCommitGroupSize();
+	}
+	
+	/**
+	 * Sets the number of threads building large disk batches, see
+	 * {@link proj.zoie.impl.indexing.internal.DiskSearchIndex#setBuildThreads(int)}. Only batches indexed
+	 * directly on disk are built in parallel, that is without realtime indexing. The analyzers and similarity
+	 * must be thread safe when more than one thread is used.
+	 */
+	public void setDiskBuildThreads(int numThreads)
+	{
+		_searchIdxMgr.setDiskBuildThreads(numThreads);
+	}
+	
+	public int getDiskBuildThreads()
+	{
+		return _searchIdxMgr.getDiskBuildThreads();
+	}
+	
+	/**
+	 * Smallest disk batch, in documents, built in parallel.
+	 */
+	public void setDiskParallelBuildThreshold(int threshold)
+	{
+		_searchIdxMgr.setDiskParallelBuildThreshold(threshold);
+	}
+	
+	public int getDiskParallelBuildThreshold()
+	{
+		return _searchIdxMgr.getDiskParallelBuildThreshold();
+	}
+	
+	/**
+	 * Merge scheduler of the disk index writers, serial by default. With a {@link ThrottledMergeScheduler}
+	 * and the persistent disk writer, disk merges run in the background at a bounded write rate and the
+	 * merged segments are published when the disk indexer is idle. Must be called before {@link #start()}.
+	 */
+	public void setDiskMergeScheduler(MergeScheduler mergeScheduler)
+	{
+		_searchIdxMgr.setDiskMergeScheduler(mergeScheduler);
+	}
+	
+	public MergeScheduler getDiskMergeScheduler()
+	{
+		return _searchIdxMgr.getDiskMergeScheduler();
+	}
+	
+	/**
+	 * Sets the write rate of the background disk merges, 0 for no limit. Only applies to a {@link ThrottledMergeScheduler}.
+	 */
+	public void setDiskMergeMaxMBPerSec(double maxMBPerSec)
+	{
+		MergeScheduler scheduler = getDiskMergeScheduler();
+		if (scheduler instanceof ThrottledMergeScheduler)
+		{
+			((ThrottledMergeScheduler)scheduler).setMaxMBPerSec(maxMBPerSec);
+		}
+		else
+		{
+			log.warn("disk merges are not throttled by " + scheduler);
+		}
+	}
+	
+	public double getDiskMergeMaxMBPerSec()
+	{
+		MergeScheduler scheduler = getDiskMergeScheduler();
+		return (scheduler instanceof ThrottledMergeScheduler) ? ((ThrottledMergeScheduler)scheduler).getMaxMBPerSec() : 0.0;
+	}
+	
+	/**
+	 * Keeps the realtime memory indexes in off heap buffers instead of heap allocated RAMDirectories,
+	 * see {@link proj.zoie.impl.indexing.internal.OffHeapDirectory}. Should be called before {@link #start()}.
+	 */
+	public void setOffHeapRamIndex(boolean offHeap)
+	{
+		_searchIdxMgr.setOffHeapRamIndex(offHeap);
+	}
+	
+	public boolean isOffHeapRamIndex()
+	{
+		return _searchIdxMgr.isOffHeapRamIndex();
+	}
+	
 	public void refreshDiskReader() throws IOException
 	{
 		_searchIdxMgr.refreshDiskReader();
 	}
+	
+	/**
+	 * Sets the number of threads used to interpret incoming events, see
+	 * {@link DelegateIndexDataConsumer#setInterpreterThreads(int)}.
+	 * The interpreter must be thread safe when more than one thread is used.
+	 */
+	public void setInterpreterThreads(int numThreads)
+	{
+		_delegateConsumer.setInterpreterThreads(numThreads);
+	}
+	
+	public int getInterpreterThreads()
+	{
+		return _delegateConsumer.getInterpreterThreads();
+	}
+	
+	/**
+	 * Turns on UID coalescing before interpretation, see {@link DelegateIndexDataConsumer#setUIDExtractor(UIDExtractor)}.
+	 * Interpreters implementing {@link UIDExtractor} are used automatically.
+	 */
+	public void setUIDExtractor(UIDExtractor<V> uidExtractor)
+	{
+		_delegateConsumer.setUIDExtractor(uidExtractor);
+	}
+	
+	public long getNumCoalesced()
+	{
+		return _delegateConsumer.getNumCoalesced();
+	}
+	
+	/**
+	 * Turns adaptive batching of the disk indexer on or off. When on, the disk batch size and delay
+	 * are recomputed after every flush to meet the target flush time and target lag,
+	 * see {@link AdaptiveBatchController}.
+	 */
+	public void setAdaptiveBatching(boolean adaptive)
+	{
+		if (adaptive)
+		{
+			if (_batchedDiskLoader.getAdaptiveController()==null)
+			{
+				_batchedDiskLoader.setAdaptiveController(new AdaptiveBatchController(_targetFlushTime,_targetLag));
+			}
+		}
+		else
+		{
+			_batchedDiskLoader.setAdaptiveController(null);
+		}
+	}
+	
+	public boolean isAdaptiveBatching()
+	{
+		return _batchedDiskLoader.getAdaptiveController()!=null;
+	}
+	
+	/**
+	 * @param targetFlushTime wanted duration of a disk flush in milliseconds when batching is adaptive
+	 */
+	public void setTargetFlushTime(long targetFlushTime)
+	{
+		_targetFlushTime=targetFlushTime;
+		AdaptiveBatchController controller=_batchedDiskLoader.getAdaptiveController();
+		if (controller!=null)
+		{
+			controller.setTargetFlushTime(targetFlushTime);
+		}
+	}
+	
+	public long getTargetFlushTime()
+	{
+		return _targetFlushTime;
+	}
+	
+	/**
+	 * @param targetLag wanted maximum delay, in milliseconds, for an event to reach the disk index when batching is adaptive
+	 */
+	public void setTargetLag(long targetLag)
+	{
+		_targetLag=targetLag;
+		AdaptiveBatchController controller=_batchedDiskLoader.getAdaptiveController();
+		if (controller!=null)
+		{
+			controller.setTargetLag(targetLag);
+		}
+	}
+	
+	public long getTargetLag()
+	{
+		return _targetLag;
+	}
+	
+	/**
+	 * Spills events arriving while the disk indexer holds more than {@link #setMaxBatchSize(int) max batch size}
+	 * events to <code>file</code>, before interpretation, instead of blocking the data consumer,
+	 * see {@link DelegateIndexDataConsumer#setOverflowLog(File, DataSerializer)}. Spilled events are interpreted
+	 * and indexed, to memory as well with realtime indexing, once read back as the disk indexer catches up.
+	 * @param file overflow log file, null to turn overflow off
+	 * @param serializer serializer of the event data
+	 */
+	public void setOverflowLog(File file, DataSerializer<V> serializer)
+	{
+		_delegateConsumer.setOverflowLog(file, serializer);
+	}
+	
+	public int getOverflowSize()
+	{
+		return _delegateConsumer.getOverflowSize();
+	}
+	
+	/**
+	 * Also waits for the events up to <code>version</code> spilled to the overflow log to be read back and indexed.
+	 */
+	@Override
+	public void syncWthVersion(long timeInMillis, long version) throws ZoieException
+	{
+		long due = System.currentTimeMillis() + timeInMillis;
+		super.syncWthVersion(timeInMillis, version);
+		_delegateConsumer.syncOverflow(Math.max(0L, due - System.currentTimeMillis()), version);
+	}
 	/**
 	 * Flush the memory index into disk.
 	 * @throws ZoieException 
@@ -162,11 +531,17 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
 		return _realtimeIndexing;
 	}
 	
+	/** @deprecated the readers may be closed while in use, use {@link #leaseIndexReaders()} */
 	public List<R> getIndexReaders() throws IOException
 	{
 	  return _searchIdxMgr.getIndexReaders();
 	}
 	
+	public IndexReaderLease<R> leaseIndexReaders() throws IOException
+	{
+	  return _searchIdxMgr.leaseIndexReaders();
+	}
+	
     /** @deprecated will be removed in a future release */    
 	public R getDiskIndexReader() throws IOException
 	{
@@ -397,5 +772,125 @@ public class ZoieSystem<R extends IndexReader,V> extends AsyncDataConsumer<V> im
         {
           return ZoieSystem.this.getCurrentDiskBatchSize(); 
         }
+        
+        public int getInterpreterThreads()
+        {
+          return ZoieSystem.this.getInterpreterThreads();
+        }
+        
+        public void setInterpreterThreads(int numThreads)
+        {
+          ZoieSystem.this.setInterpreterThreads(numThreads);
+        }
+        
+        public long getLastInterpretTime()
+        {
+          return ZoieSystem.this._delegateConsumer.getLastInterpretTime();
+        }
+        
+        public long getLastRAMIndexTime()
+        {
+          return ZoieSystem.this._delegateConsumer.getLastRAMIndexTime();
+        }
+        
+        public long getLastDiskIndexTime()
+        {
+          return ZoieSystem.this._delegateConsumer.getLastDiskIndexTime();
+        }
+        
+        public long getAverageInterpretTime()
+        {
+          return ZoieSystem.this._delegateConsumer.getAverageInterpretTime();
+        }
+        
+        public boolean isAdaptiveBatching()
+        {
+          return ZoieSystem.this.isAdaptiveBatching();
+        }
+        
+        public void setAdaptiveBatching(boolean adaptive)
+        {
+          ZoieSystem.this.setAdaptiveBatching(adaptive);
+        }
+        
+        public long getTargetFlushTime()
+        {
+          return ZoieSystem.this.getTargetFlushTime();
+        }
+        
+        public void setTargetFlushTime(long targetFlushTime)
+        {
+          ZoieSystem.this.setTargetFlushTime(targetFlushTime);
+        }
+        
+        public long getTargetLag()
+        {
+          return ZoieSystem.this.getTargetLag();
+        }
+        
+        public void setTargetLag(long targetLag)
+        {
+          ZoieSystem.this.setTargetLag(targetLag);
+        }
+        
+        public int getOverflowSize()
+        {
+          return ZoieSystem.this.getOverflowSize();
+        }
+        
+        public long getNumCoalesced()
+        {
+          return ZoieSystem.this.getNumCoalesced();
+        }
+        
+        public boolean isPersistentDiskWriter()
+        {
+          return ZoieSystem.this.isPersistentDiskWriter();
+        }
+        
+        public int getDiskCommitGroupSize()
+        {
+          return ZoieSystem.this.getDiskCommitGroupSize();
+        }
+        
+        public void setDiskCommitGroupSize(int commitGroupSize)
+        {
+          ZoieSystem.this.setDiskCommitGroupSize(commitGroupSize);
+        }
+        
+        public boolean isOffHeapRamIndex()
+        {
+          return ZoieSystem.this.isOffHeapRamIndex();
+        }
+        
+        public long getRamASizeInBytes()
+        {
+          return ZoieSystem.this._searchIdxMgr.getRamASizeInBytes();
+        }
+        
+        public long getRamBSizeInBytes()
+        {
+          return ZoieSystem.this._searchIdxMgr.getRamBSizeInBytes();
+        }
+        
+        public double getDiskMergeMaxMBPerSec()
+        {
+          return ZoieSystem.this.getDiskMergeMaxMBPerSec();
+        }
+        
+        public void setDiskMergeMaxMBPerSec(double maxMBPerSec)
+        {
+          ZoieSystem.this.setDiskMergeMaxMBPerSec(maxMBPerSec);
+        }
+        
+        public int getDiskBuildThreads()
+        {
+          return ZoieSystem.this.getDiskBuildThreads();
+        }
+        
+        public void setDiskBuildThreads(int numThreads)
+        {
+          ZoieSystem.this.setDiskBuildThreads(numThreads);
+        }
 	}
 }
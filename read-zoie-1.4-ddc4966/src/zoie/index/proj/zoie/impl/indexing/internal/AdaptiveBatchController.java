@@ -0,0 +1,109 @@
+package proj.zoie.impl.indexing.internal;
+
+/**
+ * Computes the batch size and delay of a {@link BatchedIndexDataLoader} from the flushes it observes.
+ * <p>
+ * The controller keeps a moving average of the cost of indexing one event and of the flush duration.
+ * The batch size is chosen so that a flush takes about <code>targetFlushTime</code>, and the delay so that
+ * an event waits at most about <code>targetLag</code> before it reaches the disk index.
+ * When the backlog keeps growing the loader is falling behind, so the delay drops to its minimum and the loader
+ * flushes back to back with full size batches.
+ */
+public class AdaptiveBatchController
+{
+  public static final long DEFAULT_TARGET_FLUSH_TIME = 1000L;
+  public static final long DEFAULT_TARGET_LAG = 30000L;
+
+  private static final double ALPHA = 0.3;  // weight of the last flush in the moving averages
+  private static final long MIN_DELAY = 10L; // keeps an idle loader thread from spinning
+
+  private volatile long _targetFlushTime;
+  private volatile long _targetLag;
+
+  private double _costPerEvent;  // ms per event
+  private double _flushTime;     // ms per flush
+  private int _lastBacklog;
+  private int _batchSize;
+  private long _delay;
+
+  public AdaptiveBatchController()
+  {
+    this(DEFAULT_TARGET_FLUSH_TIME, DEFAULT_TARGET_LAG);
+  }
+
+  /**
+   * @param targetFlushTime wanted duration of one flush in milliseconds
+   * @param targetLag wanted maximum time, in milliseconds, between an event being queued and being on disk
+   */
+  public AdaptiveBatchController(long targetFlushTime, long targetLag)
+  {
+    setTargetFlushTime(targetFlushTime);
+    setTargetLag(targetLag);
+    _costPerEvent = -1.0;
+    _flushTime = 0.0;
+    _lastBacklog = 0;
+    _batchSize = 1;
+    _delay = MIN_DELAY;
+  }
+
+  public long getTargetFlushTime()
+  {
+    return _targetFlushTime;
+  }
+
+  public void setTargetFlushTime(long targetFlushTime)
+  {
+    _targetFlushTime = Math.max(1L, targetFlushTime);
+  }
+
+  public long getTargetLag()
+  {
+    return _targetLag;
+  }
+
+  public void setTargetLag(long targetLag)
+  {
+    _targetLag = Math.max(0L, targetLag);
+  }
+
+  /**
+   * Records a flush and recomputes the batch size and delay.
+   * @param eventCount number of events flushed
+   * @param duration time the flush took in milliseconds
+   * @param backlog number of events still waiting after the flush
+   * @param maxBatchSize upper bound of the batch size
+   */
+  public synchronized void update(int eventCount, long duration, int backlog, int maxBatchSize)
+  {
+    if (eventCount <= 0) return;
+
+    double cost = Math.max(duration, 1L) / (double)eventCount;
+    _costPerEvent = (_costPerEvent < 0.0) ? cost : ALPHA * cost + (1.0 - ALPHA) * _costPerEvent;
+    _flushTime = (_flushTime <= 0.0) ? duration : ALPHA * duration + (1.0 - ALPHA) * _flushTime;
+
+    long size = (long)(_targetFlushTime / _costPerEvent);
+    _batchSize = (int)Math.max(1L, Math.min(size, (long)maxBatchSize));
+
+    boolean fallingBehind = backlog > _batchSize && backlog >= _lastBacklog;
+    _delay = fallingBehind ? MIN_DELAY : Math.max(MIN_DELAY, _targetLag - (long)_flushTime);
+    _lastBacklog = backlog;
+  }
+
+  public synchronized int getBatchSize()
+  {
+    return _batchSize;
+  }
+
+  public synchronized long getDelay()
+  {
+    return _delay;
+  }
+
+  /**
+   * @return moving average of the time spent indexing one event, in microseconds
+   */
+  public synchronized long getCostPerEvent()
+  {
+    return _costPerEvent < 0.0 ? 0L : (long)(_costPerEvent * 1000.0);
+  }
+}
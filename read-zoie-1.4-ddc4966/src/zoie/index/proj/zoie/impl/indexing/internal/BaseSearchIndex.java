@@ -1,11 +1,16 @@
 package proj.zoie.impl.indexing.internal;
 
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.ints.IntSet;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
@@ -13,9 +18,11 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.Similarity;
 import org.apache.lucene.store.Directory;
 
+import proj.zoie.api.DocIDMapper;
 import proj.zoie.api.ZoieIndexReader;
 import proj.zoie.api.impl.util.IntSetAccelerator;
 import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
@@ -26,6 +33,9 @@ public abstract class BaseSearchIndex {
 	  private int _eventsHandled=0;
 	  protected MergeScheduler _mergeScheduler;     //合并索引的合并器
 	  
+	  // uids of the writer's segments no reader knows yet, decoded by the delete filters
+	  private final Map<String,int[]> _decodedSegmentUIDs = new HashMap<String,int[]>();
+	  
 	  /**
 	   * gets index version, e.g. SCN
 	   * @return index version
@@ -95,16 +105,34 @@ public abstract class BaseSearchIndex {
 	    {
 	      if (idxMod!=null)
 	      {
-	        idxMod.close();
+	        releaseIndexWriter(idxMod);
 	      }
 	    }
 	  }
+	  
+	  /**
+	   * Gives back a writer obtained from {@link #openIndexWriter(Analyzer, Similarity)}, by default it is closed.
+	   * Indexes keeping a long lived writer leave it open.
+	   */
+	  protected void releaseIndexWriter(IndexWriter writer) throws IOException
+	  {
+	    writer.close();
+	  }
+	  
+	  /**
+	   * Makes the changes pending in a long lived writer durable and visible to new readers.
+	   * Nothing to do for indexes whose writer is closed after each use.
+	   */
+	  public void commit() throws IOException
+	  {
+	  }
+	  
 	  /**
 	   * 删除delDocs中uid对应的文档
 	   * @param delDocs   待删除文档的uid
 	   * @throws IOException
 	   */
-	  private void deleteDocs(IntSet delDocs) throws IOException
+	  protected void deleteDocs(IntSet delDocs) throws IOException
 	  {
 	    int[] delArray=null;
 	    if (delDocs!=null && delDocs.size() > 0)
@@ -112,19 +140,7 @@ public abstract class BaseSearchIndex {
 	      ZoieIndexReader reader= openIndexReader();
 	      if (reader!=null)
 	      {
-	          //存储的是docId和uid的一个对应关系，下标是docId ，值是uid
-	    	  int[] uidArray = reader.getUIDArray();
-	        
-	        IntList delList = new IntArrayList(delDocs.size());
-	        for (int i=0;i<uidArray.length;++i)
-	        {
-	          int uid = uidArray[i];
-	          if (uid != ZoieIndexReader.DELETED_UID && delDocs.contains(uid))
-	          {
-	            delList.add(i);
-	          }
-	        }
-	        delArray = delList.toIntArray();
+	        delArray = findDocIDs(reader, delDocs).toIntArray();
 	      }
 	    }
 	    
@@ -159,6 +175,101 @@ public abstract class BaseSearchIndex {
 	    }
 	  }
 	  
+	  /**
+	   * Deletes through <code>writer</code> the documents whose uid is in <code>delDocs</code>. The uids of the
+	   * segments <code>reader</code> has loaded are taken from it, see {@link UIDDeleteFilter}.
+	   * @param readerIsCurrent true if the writer holds no document the reader does not see, the uids the reader
+	   * does not hold are then dropped first and nothing is issued if none is left
+	   */
+	  protected void deleteDocs(IndexWriter writer, ZoieIndexReader reader, IntSet delDocs, boolean readerIsCurrent) throws IOException
+	  {
+	    if (delDocs == null || delDocs.size() == 0) return;
+	    
+	    IntSet uids;
+	    if (reader != null && readerIsCurrent)
+	    {
+	      IntList docids = findDocIDs(reader, delDocs);
+	      if (docids.size() == 0) return;
+	      uids = new IntOpenHashSet(docids.size());
+	      for (int i = 0; i < docids.size(); ++i)
+	      {
+	        uids.add(reader.getUID(docids.getInt(i)));
+	      }
+	    }
+	    else
+	    {
+	      // the delete may be applied after the caller reuses its set, keep a copy
+	      uids = new IntOpenHashSet(delDocs);
+	    }
+	    if (reader != null) forgetDecodedSegments(reader);
+	    writer.deleteDocuments(new ConstantScoreQuery(new UIDDeleteFilter(uids, reader, _decodedSegmentUIDs)));
+	  }
+	  
+	  /**
+	   * Drops the decoded uids of the segments <code>reader</code> has loaded, it holds them from now on.
+	   */
+	  private void forgetDecodedSegments(ZoieIndexReader reader)
+	  {
+	    synchronized(_decodedSegmentUIDs)
+	    {
+	      Iterator<Map.Entry<String,int[]>> iter = _decodedSegmentUIDs.entrySet().iterator();
+	      while (iter.hasNext())
+	      {
+	        Map.Entry<String,int[]> entry = iter.next();
+	        if (reader.getSegmentUIDs(entry.getKey(), entry.getValue().length) != null) iter.remove();
+	      }
+	    }
+	  }
+	  
+	  /**
+	   * Drops all the decoded uids. To be called when the writer is closed: a writer opened on a recreated
+	   * index gives the same names to other segments.
+	   */
+	  protected void clearDecodedSegmentUIDs()
+	  {
+	    synchronized(_decodedSegmentUIDs)
+	    {
+	      _decodedSegmentUIDs.clear();
+	    }
+	  }
+	  
+	  /**
+	   * Finds the docids of <code>reader</code> holding a uid of <code>delDocs</code>.
+	   * A small delete set is looked up uid by uid in the reader's {@link DocIDMapper}, so that the cost
+	   * follows the number of deletes; a large one is matched by a scan of the uid array.
+	   */
+	  protected static IntList findDocIDs(ZoieIndexReader reader, IntSet delDocs)
+	  {
+	    int[] uidArray = reader.getUIDArray();
+	    IntList delList = new IntArrayList(delDocs.size());
+	    if ((long)delDocs.size() * ZoieIndexReader.MAPPER_LOOKUP_RATIO < uidArray.length)
+	    {
+	      DocIDMapper mapper = reader.getDocIDMaper();
+	      IntIterator iter = delDocs.iterator();
+	      while (iter.hasNext())
+	      {
+	        int docid = mapper.getDocID(iter.nextInt());
+	        if (docid >= 0)
+	        {
+	          delList.add(docid);
+	        }
+	      }
+	    }
+	    else
+	    {
+	      //存储的是docId和uid的一个对应关系，下标是docId ，值是uid
+	      for (int i=0;i<uidArray.length;++i)
+	      {
+	        int uid = uidArray[i];
+	        if (uid != ZoieIndexReader.DELETED_UID && delDocs.contains(uid))
+	        {
+	          delList.add(i);
+	        }
+	      }
+	    }
+	    return delList;
+	  }
+	  
 	  public void loadFromIndex(BaseSearchIndex index) throws IOException
 	  {
 	    ZoieIndexReader reader = index.openIndexReader();
@@ -177,7 +288,7 @@ public abstract class BaseSearchIndex {
 	    }
 	    finally
 	    {
-	      if(writer != null) writer.close();
+	      if(writer != null) releaseIndexWriter(writer);
 	    }
 	  }
 	      
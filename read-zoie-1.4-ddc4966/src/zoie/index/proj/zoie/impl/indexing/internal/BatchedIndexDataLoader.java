@@ -1,5 +1,6 @@
 package proj.zoie.impl.indexing.internal;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
@@ -18,6 +19,8 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 
 	protected int _batchSize;
 	protected long _delay;
+	private int _configuredBatchSize;     // static settings, restored when adaptive batching is turned off
+	private long _configuredDelay;
 	protected DataConsumer<V> _dataLoader;
 	protected List<DataEvent<V>> _batchList;
 	protected LoaderThread _loadMgrThread;
@@ -27,6 +30,7 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	protected boolean _stop;
 	protected boolean _flush;
 	protected SearchIndexManager<R> _idxMgr;
+	protected volatile AdaptiveBatchController _controller;
 	private final List<IndexingEventListener> _lsnrList;
 	  
 	  private static Logger log = Logger.getLogger(BatchedIndexDataLoader.class);
@@ -36,6 +40,8 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	    _maxBatchSize=Math.max(maxBatchSize, 1);
 	    _batchSize=Math.min(batchSize, _maxBatchSize);
 	    _delay=delay;
+	    _configuredBatchSize=batchSize;
+	    _configuredDelay=delay;
 	    _dataLoader=dataLoader;
 	    _batchList=new LinkedList<DataEvent<V>>();
 	    _lastFlushTime=0L;
@@ -79,7 +85,8 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	  
 	  public void setBatchSize(int batchSize)
 	  {
-	    _batchSize=Math.min(Math.max(1, batchSize), _maxBatchSize);
+	    _configuredBatchSize=Math.max(1, batchSize);
+	    _batchSize=Math.min(_configuredBatchSize, _maxBatchSize);
 	  }
 	  
 	  public long getDelay()
@@ -89,9 +96,44 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
 	  
 	  public void setDelay(long delay)
 	  {
+	    _configuredDelay=delay;
 	    _delay=delay;
 	  }
 	  
+	  /**
+	   * Lets <code>controller</code> drive the batch size and delay from the observed flushes.
+	   * While a controller is set, values passed to {@link #setBatchSize(int)} and {@link #setDelay(long)}
+	   * only last until the next flush. Pass null to go back to the last static settings.
+	   */
+	  public synchronized void setAdaptiveController(AdaptiveBatchController controller)
+	  {
+	    _controller=controller;
+	    if (controller==null)
+	    {
+	      _batchSize=Math.min(_configuredBatchSize, _maxBatchSize);
+	      _delay=_configuredDelay;
+	    }
+	  }
+	  
+	  public AdaptiveBatchController getAdaptiveController()
+	  {
+	    return _controller;
+	  }
+	  
+	  /**
+	   * Feeds a finished flush to the adaptive controller, if any. Must be called holding the monitor.
+	   */
+	  protected void adapt(int eventCount, long duration)
+	  {
+	    AdaptiveBatchController controller=_controller;
+	    if (controller!=null)
+	    {
+	      controller.update(eventCount, duration, _eventCount, _maxBatchSize);
+	      _batchSize=Math.min(controller.getBatchSize(), _maxBatchSize);
+	      _delay=controller.getDelay();
+	    }
+	  }
+	  
 	  public synchronized int getEventCount()
 	  {
 	    return _eventCount;
@@ -217,10 +259,12 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
           }
           finally
           {
+            commitIfDrained(eventCount);
             long t2=System.currentTimeMillis();
             synchronized(this)
             {
               _eventCount -= eventCount;
+              adapt(eventCount, t2-t1);
               log.info(this+" flushed batch of "+eventCount+" events to disk indexer, took: "+(t2-t1)+" current event count: "+_eventCount);
               IndexUpdatedEvent evt = new IndexUpdatedEvent(eventCount,t1,t2,_eventCount);
               fireIndexingEvent(evt);
@@ -231,9 +275,51 @@ public class BatchedIndexDataLoader<R extends IndexReader,V> implements DataCons
         else
         {
           log.debug("batch size is 0");
+          commitMerged();
         }
 	  }
 	  
+	  /**
+	   * When nothing is queued behind the batch just indexed, commits the batches a grouped commit
+	   * of the disk index still holds, so that they do not wait for more events to become visible.
+	   * Done before the event count drops, flushEvents() returns once the events are searchable.
+	   */
+	  protected void commitIfDrained(int eventCount)
+	  {
+	    boolean drained;
+	    synchronized(this)
+	    {
+	      drained = (_eventCount == eventCount);
+	    }
+	    if (drained)
+	    {
+	      try
+	      {
+	        _idxMgr.commitDiskIndex();
+	      }
+	      catch(IOException e)
+	      {
+	        log.error("disk index commit failed: "+e.getMessage(),e);
+	      }
+	    }
+	  }
+	  
+	  /**
+	   * Publishes the disk index segments merged in the background, done from the loader thread
+	   * while no batch is being indexed.
+	   */
+	  protected void commitMerged()
+	  {
+	    try
+	    {
+	      _idxMgr.commitMergedDiskIndex();
+	    }
+	    catch(IOException e)
+	    {
+	      log.error("disk index commit failed: "+e.getMessage(),e);
+	    }
+	  }
+	  
 	  protected class LoaderThread extends IndexingThread
 	  {		  
 	    LoaderThread()
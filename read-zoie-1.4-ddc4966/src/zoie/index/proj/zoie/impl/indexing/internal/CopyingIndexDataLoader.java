@@ -119,6 +119,7 @@ public class CopyingIndexDataLoader<R extends IndexReader,V> extends BatchedInde
         synchronized(this)
         {
           _eventCount -= eventCount;
+          adapt(eventCount, t2-t1);
           log.info(this+" flushed batch of "+eventCount+" events to disk indexer, took: "+(t2-t1)+" current event count: "+_eventCount);
           IndexUpdatedEvent evt = new IndexUpdatedEvent(eventCount,t1,t2,_eventCount);
           fireIndexingEvent(evt);
@@ -129,6 +130,7 @@ public class CopyingIndexDataLoader<R extends IndexReader,V> extends BatchedInde
     else
     {
       log.debug("batch size is 0");
+      commitMerged();
     }
   }
 }
@@ -1,17 +1,31 @@
 package proj.zoie.impl.indexing.internal;
 
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.document.Document;
 
 import proj.zoie.api.DataConsumer;
+import proj.zoie.api.DataSerializer;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.indexing.AbstractZoieIndexable;
 import proj.zoie.api.indexing.Indexable;
 import proj.zoie.api.indexing.IndexableInterpreter;
+import proj.zoie.api.indexing.UIDExtractor;
 import proj.zoie.api.indexing.ZoieIndexable;
 import proj.zoie.api.indexing.ZoieIndexableInterpreter;
 
@@ -20,6 +34,25 @@ public class DelegateIndexDataConsumer<V> implements DataConsumer<V> {
 	private final DataConsumer<ZoieIndexable> _diskConsumer;
 	private final DataConsumer<ZoieIndexable> _ramConsumer;
 	private final IndexableInterpreter<V> _interpreter;
+	private final BatchedIndexDataLoader<?,ZoieIndexable> _diskLoader;  // the disk consumer if it is a batched loader
+	
+	// overflow mode, guarded by _diskLoader
+	private OverflowLog<V> _overflow;
+	private long _indexedVersion;  // highest version handed to the indexers
+	
+	private ExecutorService _interpreterPool;
+	private int _numInterpreterThreads;
+	private volatile UIDExtractor<V> _uidExtractor;
+	private volatile long _numCoalesced;
+	
+	// per-stage timings in milliseconds
+	private volatile long _lastInterpretTime;
+	private volatile long _lastRAMIndexTime;
+	private volatile long _lastDiskIndexTime;
+	private volatile long _totalInterpretTime;
+	private volatile long _totalRAMIndexTime;
+	private volatile long _totalDiskIndexTime;
+	private volatile long _numBatches;
 	
 	private static class ZoieIndexableDecorator extends AbstractZoieIndexable{
 		private final Indexable _inner;
@@ -60,32 +93,430 @@ public class DelegateIndexDataConsumer<V> implements DataConsumer<V> {
 	  	_diskConsumer=diskConsumer;
 	  	_ramConsumer=ramConsumer;
 	  	_interpreter=interpreter;
+	  	_diskLoader=(diskConsumer instanceof BatchedIndexDataLoader ? (BatchedIndexDataLoader<?,ZoieIndexable>)diskConsumer : null);
+	  	_overflow=null;
+	  	_indexedVersion=-1L;
+	  	_interpreterPool=null;
+	  	_numInterpreterThreads=1;
+	  	_uidExtractor=null;
+	  	_numCoalesced=0L;
+	}
+	
+	/**
+	 * Turns on UID coalescing: within a batch only the newest event of each UID is interpreted and indexed.
+	 * The newest event is the one with the highest version, the last one on ties, so the max version of the
+	 * batch is always kept. Pass null to turn coalescing off.
+	 */
+	public void setUIDExtractor(UIDExtractor<V> uidExtractor)
+	{
+	  _uidExtractor=uidExtractor;
+	}
+	
+	public UIDExtractor<V> getUIDExtractor()
+	{
+	  return _uidExtractor;
+	}
+	
+	/**
+	 * @return number of events dropped by UID coalescing so far
+	 */
+	public long getNumCoalesced()
+	{
+	  return _numCoalesced;
+	}
+	
+	/**
+	 * Keeps the newest event of each UID, in arrival order.
+	 * Events whose UID cannot be extracted are kept.
+	 */
+	private Collection<DataEvent<V>> coalesce(Collection<DataEvent<V>> data, UIDExtractor<V> extractor)
+	{
+	  int size=data.size();
+	  if (size<2) return data;
+	  
+	  ArrayList<DataEvent<V>> events=new ArrayList<DataEvent<V>>(data);
+	  boolean[] dropped=new boolean[size];
+	  Int2IntOpenHashMap newest=new Int2IntOpenHashMap(size);  // uid -> index of its newest event
+	  newest.defaultReturnValue(-1);
+	  int numDropped=0;
+	  for (int i=0;i<size;++i)
+	  {
+	    int uid;
+	    try
+	    {
+	      uid=extractor.extractUID(events.get(i).getData());
+	    }
+	    catch(Exception e)
+	    {
+	      log.error(e.getMessage(),e);
+	      continue;
+	    }
+	    int j=newest.get(uid);
+	    if (j<0)
+	    {
+	      newest.put(uid, i);
+	    }
+	    else if (events.get(i).getVersion()>=events.get(j).getVersion())
+	    {
+	      dropped[j]=true;
+	      newest.put(uid, i);
+	      numDropped++;
+	    }
+	    else
+	    {
+	      dropped[i]=true;
+	      numDropped++;
+	    }
+	  }
+	  if (numDropped==0) return events;
+	  
+	  ArrayList<DataEvent<V>> coalesced=new ArrayList<DataEvent<V>>(size-numDropped);
+	  for (int i=0;i<size;++i)
+	  {
+	    if (!dropped[i]) coalesced.add(events.get(i));
+	  }
+	  _numCoalesced+=numDropped;
+	  return coalesced;
+	}
+	
+	/**
+	 * Sets the number of threads interpreting events. With more than one thread a batch is split into
+	 * chunks that are interpreted in parallel; the results are still handed to the RAM and disk consumers
+	 * in the order the events arrived. The interpreter must be thread safe in that case.
+	 * @param numThreads number of interpreter threads, 1 interprets on the calling thread
+	 */
+	public synchronized void setInterpreterThreads(int numThreads)
+	{
+	  numThreads = Math.max(1, numThreads);
+	  if (numThreads == _numInterpreterThreads) return;
+	  
+	  ExecutorService oldPool = _interpreterPool;
+	  _interpreterPool = (numThreads > 1 ? Executors.newFixedThreadPool(numThreads, new InterpreterThreadFactory()) : null);
+	  _numInterpreterThreads = numThreads;
+	  if (oldPool != null)
+	  {
+	    oldPool.shutdown();
+	  }
+	}
+	
+	public synchronized int getInterpreterThreads()
+	{
+	  return _numInterpreterThreads;
+	}
+	
+	/**
+	 * Stops the interpreter threads, if any, and closes the overflow log keeping the events not indexed yet.
+	 */
+	public void shutdown()
+	{
+	  // not under the monitor of this consumer, interpretAll() takes it while the disk loader is locked
+	  BatchedIndexDataLoader<?,ZoieIndexable> loader = _diskLoader;
+	  if (loader != null)
+	  {
+	    synchronized(loader)
+	    {
+	      if (_overflow != null)
+	      {
+	        _overflow.close();
+	      }
+	    }
+	  }
+	  synchronized(this)
+	  {
+	    if (_interpreterPool != null)
+	    {
+	      _interpreterPool.shutdown();
+	      _interpreterPool = null;
+	    }
+	    _numInterpreterThreads = 1;
+	  }
+	}
+	
+	public long getLastInterpretTime()
+	{
+	  return _lastInterpretTime;
+	}
+	
+	public long getLastRAMIndexTime()
+	{
+	  return _lastRAMIndexTime;
+	}
+	
+	public long getLastDiskIndexTime()
+	{
+	  return _lastDiskIndexTime;
+	}
+	
+	public long getAverageInterpretTime()
+	{
+	  long n = _numBatches;
+	  return n == 0 ? 0 : _totalInterpretTime/n;
+	}
+	
+	public long getAverageRAMIndexTime()
+	{
+	  long n = _numBatches;
+	  return n == 0 ? 0 : _totalRAMIndexTime/n;
+	}
+	
+	public long getAverageDiskIndexTime()
+	{
+	  long n = _numBatches;
+	  return n == 0 ? 0 : _totalDiskIndexTime/n;
+	}
+	
+	private ZoieIndexable interpret(V data)
+	{
+	  if (_interpreter instanceof ZoieIndexableInterpreter){
+	    return ((ZoieIndexableInterpreter<V>)_interpreter).convertAndInterpret(data);
+	  }
+	  else{
+	    return ZoieIndexableDecorator.decorate(_interpreter.interpret(data));     //兼容以前的版本
+	  }
+	}
+	
+	private void interpret(Iterator<DataEvent<V>> iter, int count, List<DataEvent<ZoieIndexable>> indexableList)
+	{
+	  while(count-- > 0 && iter.hasNext())
+	  {
+	    try{
+	      DataEvent<V> event=iter.next();
+	      ZoieIndexable indexable = interpret(event.getData());
+	      DataEvent<ZoieIndexable> newEvent=new DataEvent<ZoieIndexable>(event.getVersion(),indexable);
+	      indexableList.add(newEvent);
+	    }
+	    catch(Exception e){
+	      log.error(e.getMessage(),e);
+	    }
+	  }
+	}
+	
+	private ArrayList<DataEvent<ZoieIndexable>> interpretAll(Collection<DataEvent<V>> data) throws ZoieException
+	{
+	  int size = data.size();
+	  ArrayList<DataEvent<ZoieIndexable>> indexableList=new ArrayList<DataEvent<ZoieIndexable>>(size);
+	  
+	  ExecutorService pool;
+	  int numThreads;
+	  synchronized(this)
+	  {
+	    pool = _interpreterPool;
+	    numThreads = _numInterpreterThreads;
+	  }
+	  
+	  if (pool == null || size < 2)
+	  {
+	    interpret(data.iterator(), size, indexableList);
+	    return indexableList;
+	  }
+	  
+	  ArrayList<DataEvent<V>> events = new ArrayList<DataEvent<V>>(data);
+	  int numChunks = Math.min(numThreads, size);
+	  int chunkSize = (size + numChunks - 1) / numChunks;
+	  ArrayList<Future<List<DataEvent<ZoieIndexable>>>> futures = new ArrayList<Future<List<DataEvent<ZoieIndexable>>>>(numChunks);
+	  for (int start = 0; start < size; start += chunkSize)
+	  {
+	    futures.add(pool.submit(new InterpretTask(events.subList(start, Math.min(size, start + chunkSize)))));
+	  }
+	  
+	  // collect in submission order to keep the original event order
+	  for (Future<List<DataEvent<ZoieIndexable>>> future : futures)
+	  {
+	    try
+	    {
+	      indexableList.addAll(future.get());
+	    }
+	    catch (InterruptedException e)
+	    {
+	      throw new ZoieException(e.getMessage(), e);
+	    }
+	    catch (ExecutionException e)
+	    {
+	      // the whole batch fails, dropping a chunk would still let its version be committed
+	      Throwable cause = (e.getCause() == null ? e : e.getCause());
+	      throw new ZoieException("interpreter chunk failed: " + cause.getMessage(), cause);
+	    }
+	  }
+	  return indexableList;
+	}
+	
+	/**
+	 * Turns on overflow mode: instead of blocking in the disk loader, events arriving while it holds more than
+	 * {@link BatchedIndexDataLoader#getMaxBatchSize()} events are appended to <code>file</code> before interpretation,
+	 * and interpreted and indexed by {@link #drainOverflow()} as the disk loader catches up. Events left in the file
+	 * by an earlier {@link #shutdown()} are read back first. Pass a null file to turn it off.
+	 * @throws IllegalStateException if the disk consumer is not a {@link BatchedIndexDataLoader},
+	 * or if the current overflow log still holds events
+	 */
+	public void setOverflowLog(File file, DataSerializer<V> serializer)
+	{
+	  BatchedIndexDataLoader<?,ZoieIndexable> loader = _diskLoader;
+	  if (loader == null)
+	  {
+	    if (file == null) return;
+	    throw new IllegalStateException("overflow mode needs a batched disk loader");
+	  }
+	  synchronized(loader)
+	  {
+	    if (_overflow != null)
+	    {
+	      if (!_overflow.isEmpty())
+	      {
+	        throw new IllegalStateException("overflow log "+_overflow.getFile()+" is not drained");
+	      }
+	      _overflow.discard();
+	      _overflow = null;
+	    }
+	    if (file != null)
+	    {
+	      OverflowLog<V> overflow = new OverflowLog<V>(file, serializer);
+	      try
+	      {
+	        int count = overflow.recover();
+	        if (count > 0)
+	        {
+	          log.info("recovered "+count+" events from overflow log "+file);
+	        }
+	      }
+	      catch (IOException e)
+	      {
+	        log.error("unable to recover overflow log "+file, e);
+	        overflow.discard();
+	      }
+	      _overflow = overflow;
+	    }
+	  }
+	}
+	
+	/**
+	 * @return number of events waiting in the overflow log
+	 */
+	public int getOverflowSize()
+	{
+	  BatchedIndexDataLoader<?,ZoieIndexable> loader = _diskLoader;
+	  if (loader == null) return 0;
+	  synchronized(loader)
+	  {
+	    return (_overflow != null ? _overflow.size() : 0);
+	  }
+	}
+	
+	/**
+	 * Appends the events to the overflow log, if any, when the disk loader is full or earlier events are still spilled.
+	 * @return true if the events were spilled
+	 */
+	private boolean spill(Collection<DataEvent<V>> data) throws ZoieException
+	{
+	  BatchedIndexDataLoader<?,ZoieIndexable> loader = _diskLoader;
+	  if (loader == null) return false;
+	  synchronized(loader)
+	  {
+	    // once events are spilled, later ones go to the log as well to keep them in order
+	    if (_overflow == null || (_overflow.isEmpty() && loader.getCurrentBatchSize() <= loader.getMaxBatchSize())) return false;
+	    try
+	    {
+	      _overflow.append(data);
+	    }
+	    catch (IOException e)
+	    {
+	      throw new ZoieException("unable to write overflow log "+_overflow.getFile(), e);
+	    }
+	    return true;
+	  }
+	}
+	
+	/**
+	 * Interprets and indexes events read back from the overflow log, as many as the disk loader has room for.
+	 * Called after every disk flush, and once on start for events recovered from an earlier run.
+	 */
+	public void drainOverflow()
+	{
+	  BatchedIndexDataLoader<?,ZoieIndexable> loader = _diskLoader;
+	  if (loader == null) return;
+	  synchronized(loader)
+	  {
+	    if (_overflow == null || _overflow.isEmpty()) return;
+	    int room = loader.getMaxBatchSize() - loader.getCurrentBatchSize();
+	    if (room <= 0) return;
+	    ArrayList<DataEvent<V>> events = new ArrayList<DataEvent<V>>(Math.min(room, _overflow.size()));
+	    try
+	    {
+	      _overflow.drainTo(events, room);
+	    }
+	    catch (IOException e)
+	    {
+	      log.error("unable to read overflow log "+_overflow.getFile()+", "+_overflow.size()+" events lost", e);
+	      _overflow.discard();
+	    }
+	    if (events.size() > 0)
+	    {
+	      try
+	      {
+	        index(events);
+	      }
+	      catch (ZoieException e)
+	      {
+	        log.error("unable to index "+events.size()+" events read back from overflow log", e);
+	      }
+	    }
+	    loader.notifyAll();    // wakes up syncOverflow()
+	  }
+	}
+	
+	/**
+	 * Waits until the events up to <code>version</code> that were spilled to the overflow log are indexed.
+	 */
+	public void syncOverflow(long timeInMillis, long version) throws ZoieException
+	{
+	  BatchedIndexDataLoader<?,ZoieIndexable> loader = _diskLoader;
+	  if (loader == null) return;
+	  long now = System.currentTimeMillis();
+	  long due = now + timeInMillis;
+	  synchronized(loader)
+	  {
+	    while (_overflow != null && !_overflow.isEmpty() && _indexedVersion < version)
+	    {
+	      if (now >= due)
+	      {
+	        throw new ZoieException("sync timed out");
+	      }
+	      try
+	      {
+	        loader.wait(due - now);
+	      }
+	      catch (InterruptedException e)
+	      {
+	        log.warn(e.getMessage(), e);
+	      }
+	      now = System.currentTimeMillis();
+	    }
+	  }
 	}
 	
 	public void consume(Collection<DataEvent<V>> data)
 			throws ZoieException {
-		if (data!=null)
+		if (data!=null && !spill(data))
 		{
-		  ArrayList<DataEvent<ZoieIndexable>> indexableList=new ArrayList<DataEvent<ZoieIndexable>>(data.size());
-		  Iterator<DataEvent<V>> iter=data.iterator();
-		  while(iter.hasNext())
+		  index(data);
+		}
+	}
+	
+	private void index(Collection<DataEvent<V>> data) throws ZoieException
+	{
+		  long maxVersion = -1L;
+		  for (DataEvent<V> event : data)
+		  {
+		    maxVersion = Math.max(maxVersion, event.getVersion());
+		  }
+		  long t0 = System.currentTimeMillis();
+		  UIDExtractor<V> extractor=_uidExtractor;
+		  if (extractor!=null)
 		  {
-			  try{
-			    DataEvent<V> event=iter.next();
-			    ZoieIndexable indexable = null;
-			    if (_interpreter instanceof ZoieIndexableInterpreter){
-			    	indexable = ((ZoieIndexableInterpreter<V>)_interpreter).convertAndInterpret(event.getData());
-			    }
-			    else{
-			    	indexable = ZoieIndexableDecorator.decorate(_interpreter.interpret(event.getData()));     //兼容以前的版本
-			    }
-			    DataEvent<ZoieIndexable> newEvent=new DataEvent<ZoieIndexable>(event.getVersion(),indexable);
-			    indexableList.add(newEvent);
-			  }
-			  catch(Exception e){
-				log.error(e.getMessage(),e);
-			  }
+		    data=coalesce(data, extractor);
 		  }
+		  ArrayList<DataEvent<ZoieIndexable>> indexableList=interpretAll(data);
+		  long t1 = System.currentTimeMillis();
+		  long t2 = t1;
 		  
 		  if(_diskConsumer != null)
 		  {
@@ -96,7 +527,9 @@ public class DelegateIndexDataConsumer<V> implements DataConsumer<V> {
 	            ArrayList<DataEvent<ZoieIndexable>> ramList=new ArrayList<DataEvent<ZoieIndexable>>(indexableList);
 	            _ramConsumer.consume(ramList);
 	          }
+	          t2 = System.currentTimeMillis();
 	          _diskConsumer.consume(indexableList);
+	          _indexedVersion = Math.max(_indexedVersion, maxVersion);
 		    }
 		  }
 		  else
@@ -105,7 +538,45 @@ public class DelegateIndexDataConsumer<V> implements DataConsumer<V> {
 		    {
 			  _ramConsumer.consume(indexableList);
 		    }
+		    t2 = System.currentTimeMillis();
 		  }
-		}
+		  long t3 = System.currentTimeMillis();
+		  
+		  _lastInterpretTime = t1 - t0;
+		  _lastRAMIndexTime = t2 - t1;
+		  _lastDiskIndexTime = t3 - t2;
+		  _totalInterpretTime += _lastInterpretTime;
+		  _totalRAMIndexTime += _lastRAMIndexTime;
+		  _totalDiskIndexTime += _lastDiskIndexTime;
+		  _numBatches++;
+	}
+	
+	private final class InterpretTask implements Callable<List<DataEvent<ZoieIndexable>>>
+	{
+	  private final List<DataEvent<V>> _events;
+	  
+	  InterpretTask(List<DataEvent<V>> events)
+	  {
+	    _events = events;
+	  }
+	  
+	  public List<DataEvent<ZoieIndexable>> call()
+	  {
+	    ArrayList<DataEvent<ZoieIndexable>> indexableList=new ArrayList<DataEvent<ZoieIndexable>>(_events.size());
+	    interpret(_events.iterator(), _events.size(), indexableList);
+	    return indexableList;
+	  }
+	}
+	
+	private static final class InterpreterThreadFactory implements ThreadFactory
+	{
+	  private final AtomicInteger _count = new AtomicInteger(0);
+	  
+	  public Thread newThread(Runnable r)
+	  {
+	    Thread thread = new Thread(r, "zoie interpreter " + _count.incrementAndGet());
+	    thread.setDaemon(true);
+	    return thread;
+	  }
 	}
 }
@@ -65,6 +65,7 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
 		      _optScheduler.finished();
 		      _idxMgr.setPartialExpunge(false);
 		    }
+		    commitDiskIndex(false);
 		    
 		    if(optType == OptimizeType.FULL)
 		    {
@@ -109,6 +110,8 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
             _optScheduler.finished();
             _idxMgr.setPartialExpunge(false);
           }
+          // the RAM index is dropped right after, its documents must be visible on disk
+          commitDiskIndex(true);
           
           if(optType == OptimizeType.FULL)
           {
@@ -133,6 +136,29 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
       }
     }
     
+	/**
+	 * Commits the disk index writer when it is kept open, either at once or as part of a group of batches.
+	 */
+	private void commitDiskIndex(boolean force) throws ZoieException
+	{
+	  DiskSearchIndex idx = (DiskSearchIndex)getSearchIndex();
+	  try
+	  {
+	    if (force)
+	    {
+	      idx.commit();
+	    }
+	    else
+	    {
+	      idx.groupCommit();
+	    }
+	  }
+	  catch(IOException ioe)
+	  {
+	    throw new ZoieException(ioe.getMessage(),ioe);
+	  }
+	}
+	
 	public void expungeDeletes() throws IOException
 	{
 		log.info("expunging deletes...");
@@ -150,7 +176,8 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
 	        	if (writer!=null)
 	        	{
 	        		try {
-						writer.close();
+						idx.releaseIndexWriter(writer);
+						idx.commit();
 					} catch (CorruptIndexException e) {
 						log.fatal("possible index corruption! "+e.getMessage());
 					} catch (IOException e) {
@@ -183,7 +210,8 @@ public class DiskLuceneIndexDataLoader<R extends IndexReader> extends LuceneInde
 	        	if (writer!=null)
 	        	{
 	        		try {
-						writer.close();
+						idx.releaseIndexWriter(writer);
+						idx.commit();
 					} catch (CorruptIndexException e) {
 						log.fatal("possible index corruption! "+e.getMessage());
 					} catch (IOException e) {
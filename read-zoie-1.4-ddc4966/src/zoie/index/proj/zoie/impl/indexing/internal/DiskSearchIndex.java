@@ -1,22 +1,40 @@
 package proj.zoie.impl.indexing.internal;
 
+import it.unimi.dsi.fastutil.ints.IntSet;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeScheduler;
 import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.index.ThrottledMergeScheduler;
 import org.apache.lucene.index.IndexWriter.MaxFieldLength;
 import org.apache.lucene.search.Similarity;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.NIOFSDirectory;
 
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.impl.util.FileUtil;
 import proj.zoie.api.indexing.IndexReaderDecorator;
+import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
 
 public class DiskSearchIndex extends BaseSearchIndex{
 	  private final File                 _location;
@@ -24,6 +42,23 @@ public class DiskSearchIndex extends BaseSearchIndex{
 	  
 	  private MergePolicy _mergePolicy;
 	  private ZoieIndexDeletionPolicy _deletionPolicy;
+	  
+	  private boolean _persistentWriter;
+	  private int _commitGroupSize;
+	  private IndexWriter _writer;          // long lived writer, only in persistent writer mode
+	  private Analyzer _analyzer;
+	  private Similarity _similarity;
+	  private int _uncommittedBatches;
+	  private long _pendingVersion;         // version to publish with the next commit, -1 if none
+	  private final AtomicBoolean _merged;  // a background merge finished since the last takeMerged()
+	  private volatile IndexSignature _signature;  // in memory copy of index.directory, null until read
+	  
+	  public static final int DEFAULT_PARALLEL_BUILD_THRESHOLD = 10000;
+	  private static final String BUILD_DIR_PREFIX = "build-";
+	  
+	  private ExecutorService _buildPool;   // segment builders, null when batches are built by the indexing thread
+	  private int _numBuildThreads;
+	  private int _parallelBuildThreshold;
 
 	  public static final Logger log = Logger.getLogger(DiskSearchIndex.class);
 
@@ -36,11 +71,133 @@ public class DiskSearchIndex extends BaseSearchIndex{
 	    _mergePolicy = mergePolicy;
 	    _mergeScheduler = new SerialMergeScheduler();
 	    _deletionPolicy = new ZoieIndexDeletionPolicy();
+	    
+	    _persistentWriter = false;
+	    _commitGroupSize = 1;
+	    _writer = null;
+	    _uncommittedBatches = 0;
+	    _pendingVersion = -1L;
+	    _merged = new AtomicBoolean(false);
+	    _buildPool = null;
+	    _numBuildThreads = 1;
+	    _parallelBuildThreshold = DEFAULT_PARALLEL_BUILD_THRESHOLD;
+	  }
+	  
+	  /**
+	   * In persistent writer mode one writer is kept open across batches instead of opening one per batch,
+	   * the changes are committed by {@link #groupCommit()} and {@link #commit()}.
+	   * Must be set before the writer is first opened.
+	   */
+	  public synchronized void setPersistentWriter(boolean persistentWriter)
+	  {
+	    _persistentWriter = persistentWriter;
+	  }
+	  
+	  public synchronized boolean isPersistentWriter()
+	  {
+	    return _persistentWriter;
+	  }
+	  
+	  /**
+	   * @param commitGroupSize number of batches committed together in persistent writer mode, default 1.
+	   * Until the commit, the changes are neither durable nor visible to new disk readers.
+	   */
+	  public synchronized void setCommitGroupSize(int commitGroupSize)
+	  {
+	    _commitGroupSize = Math.max(1, commitGroupSize);
+	  }
+	  
+	  public synchronized int getCommitGroupSize()
+	  {
+	    return _commitGroupSize;
+	  }
+	  
+	  /**
+	   * Sets the merge scheduler of the writers, {@link SerialMergeScheduler} by default. Takes effect with the next
+	   * writer opened. A {@link ThrottledMergeScheduler} gets its write rate applied to the index directory and
+	   * reports the merges it finishes to {@link #takeMerged()}.
+	   * <p>
+	   * Merges only run in the background with a persistent writer. The writer of a batch merges at full speed
+	   * on a {@link SerialMergeScheduler} instead of a ThrottledMergeScheduler, its close would wait on the throttled merges.
+	   */
+	  public synchronized void setMergeScheduler(MergeScheduler mergeScheduler)
+	  {
+	    _mergeScheduler = (mergeScheduler == null) ? new SerialMergeScheduler() : mergeScheduler;
+	    if (_mergeScheduler instanceof ThrottledMergeScheduler)
+	    {
+	      ((ThrottledMergeScheduler)_mergeScheduler).setMergeListener(new ThrottledMergeScheduler.MergeListener()
+	      {
+	        public void mergeFinished(MergePolicy.OneMerge merge)
+	        {
+	          // runs on the merge thread, must not wait on this index: closing the writer joins the merge threads
+	          _merged.set(true);
+	        }
+	      });
+	    }
+	  }
+	  
+	  public synchronized MergeScheduler getMergeScheduler()
+	  {
+	    return _mergeScheduler;
+	  }
+	  
+	  /**
+	   * @return true if a background merge finished since the last call. The merged segment replaces
+	   * the old ones in the index after the next commit.
+	   */
+	  public boolean takeMerged()
+	  {
+	    // a merge finishing between a read and a clear would be lost
+	    return _merged.getAndSet(false);
 	  }
 
+	  /**
+	   * Sets the number of threads building the documents of a large batch. With more than one thread a batch of
+	   * at least {@link #getParallelBuildThreshold()} documents is split in as many slices, each slice is indexed
+	   * by its own writer into a temporary directory and the resulting segments are added to the index.
+	   * The analyzers and similarity must be thread safe in that case.
+	   * @param numThreads number of builder threads, 1 builds on the indexing thread
+	   */
+	  public synchronized void setBuildThreads(int numThreads)
+	  {
+	    numThreads = Math.max(1, numThreads);
+	    if (numThreads == _numBuildThreads) return;
+	    
+	    ExecutorService oldPool = _buildPool;
+	    _buildPool = (numThreads > 1 ? Executors.newFixedThreadPool(numThreads, new BuilderThreadFactory()) : null);
+	    _numBuildThreads = numThreads;
+	    if (oldPool != null)
+	    {
+	      oldPool.shutdown();
+	    }
+	  }
+	  
+	  public synchronized int getBuildThreads()
+	  {
+	    return _numBuildThreads;
+	  }
+	  
+	  /**
+	   * @param threshold smallest number of documents of a batch built in parallel, smaller batches are
+	   * not worth the temporary directories
+	   */
+	  public synchronized void setParallelBuildThreshold(int threshold)
+	  {
+	    _parallelBuildThreshold = Math.max(1, threshold);
+	  }
+	  
+	  public synchronized int getParallelBuildThreshold()
+	  {
+	    return _parallelBuildThreshold;
+	  }
+	  
+	  /**
+	   * @return the version last published, kept in memory once index.directory has been read
+	   */
 	  public long getVersion()
 	  {
-	    return _dispenser.getCurrentVersion();
+	    IndexSignature sig = _signature;
+	    return (sig != null) ? sig.getVersion() : _dispenser.getCurrentVersion();
 	  }
 	  
 	  /**
@@ -65,6 +222,8 @@ public class DiskSearchIndex extends BaseSearchIndex{
 	   */
 	  public void close()
 	  {
+	    closeIndexWriter();
+	    setBuildThreads(1);
 	    // close the dispenser
 	    if (_dispenser != null)
 	    {
@@ -78,6 +237,8 @@ public class DiskSearchIndex extends BaseSearchIndex{
       public void refresh()
       {
         _dispenser.closeReader();
+        // the index may have been removed or replaced underneath
+        _signature = null;
       }
 
 	  @Override
@@ -87,6 +248,14 @@ public class DiskSearchIndex extends BaseSearchIndex{
 	  }
 	  
 	  public static FSDirectory getIndexDir(File location) throws IOException
+	  {
+	    return NIOFSDirectory.getDirectory(new File(location, loadSignature(location).getIndexPath()));
+	  }
+	  
+	  /**
+	   * Reads index.directory, creating it for an empty index.
+	   */
+	  private static IndexSignature loadSignature(File location) throws IOException
 	  {
 		IndexSignature sig = null;
 		if (location.exists())
@@ -107,41 +276,361 @@ public class DiskSearchIndex extends BaseSearchIndex{
 	        throw e;
 	      }
 	    }
-		
-
-	    File idxDir = new File(location, sig.getIndexPath());
-	    FSDirectory directory = NIOFSDirectory.getDirectory(idxDir);
-	    
-	    return directory;
+		return sig;
+	  }
+	  
+	  /**
+	   * @return the signature of the index, read from index.directory on first use only
+	   */
+	  private synchronized IndexSignature getSignature() throws IOException
+	  {
+	    if (_signature == null)
+	    {
+	      _location.mkdirs();
+	      _signature = loadSignature(_location);
+	    }
+	    return _signature;
+	  }
+	  
+	  private FSDirectory getIndexDir() throws IOException
+	  {
+	    return NIOFSDirectory.getDirectory(new File(_location, getSignature().getIndexPath()));
 	  }
 
 	  /**
-	   * Opens an index modifier.
+	   * Opens an index modifier. In persistent writer mode the long lived writer is returned, opening it
+	   * on first use with the last analyzer and similarity given.
 	   * @param analyzer Analyzer
 	   * @return IndexModifer instance
 	   */
-	  public IndexWriter openIndexWriter(Analyzer analyzer,Similarity similarity) throws IOException
+	  public synchronized IndexWriter openIndexWriter(Analyzer analyzer,Similarity similarity) throws IOException
 	  {
-	    // create the parent directory
-	    _location.mkdirs();
+	    if (_persistentWriter)
+	    {
+	      if (analyzer != null) _analyzer = analyzer;
+	      if (similarity != null) _similarity = similarity;
+	      if (_writer != null) return _writer;
+	      analyzer = _analyzer;
+	      similarity = _similarity;
+	    }
 	    
-	    FSDirectory directory = getIndexDir(_location);
+	    // create the parent directory
+	    FSDirectory directory = getIndexDir();
 
 	    log.info("opening index writer at: "+directory.getFile().getAbsolutePath());
 	    
 	    // create a new modifier to the index, assuming at most one instance is running at any given time
 	    boolean create = !IndexReader.indexExists(directory);  
-	    IndexWriter idxWriter = new IndexWriter(directory, analyzer, create, _deletionPolicy, MaxFieldLength.UNLIMITED);
-        idxWriter.setMergeScheduler(_mergeScheduler);
+	    Directory writerDir = directory;
+	    MergeScheduler mergeScheduler = _mergeScheduler;
+	    if (mergeScheduler instanceof ThrottledMergeScheduler)
+	    {
+	      if (_persistentWriter)
+	      {
+	        writerDir = ((ThrottledMergeScheduler)mergeScheduler).wrap(directory);
+	      }
+	      else
+	      {
+	        // the writer is closed at the end of the batch, which would wait on rate limited merges
+	        mergeScheduler = new SerialMergeScheduler();
+	      }
+	    }
+	    IndexWriter idxWriter = new IndexWriter(writerDir, analyzer, create, _deletionPolicy, MaxFieldLength.UNLIMITED);
+        idxWriter.setMergeScheduler(mergeScheduler);
         idxWriter.setMergePolicy(_mergePolicy);
 	    
 	    if (similarity != null)
 	    {
 	    	idxWriter.setSimilarity(similarity);
 	    }
+	    if (_persistentWriter)
+	    {
+	      _writer = idxWriter;
+	    }
 	    return idxWriter;
 	  }
 	  
+	  @Override
+	  protected synchronized void releaseIndexWriter(IndexWriter writer) throws IOException
+	  {
+	    if (writer != _writer)
+	    {
+	      writer.close();
+	    }
+	  }
+	  
+	  /**
+	   * Counts a finished batch and commits once {@link #getCommitGroupSize()} batches are pending.
+	   * Only meaningful in persistent writer mode.
+	   */
+	  public synchronized void groupCommit() throws IOException
+	  {
+	    if (_writer == null) return;
+	    _uncommittedBatches++;
+	    if (_uncommittedBatches >= _commitGroupSize)
+	    {
+	      commit();
+	    }
+	  }
+	  
+	  /**
+	   * Commits the long lived writer, then publishes the version of the committed batches.
+	   * The version is written after the commit so that it never gets ahead of the index.
+	   */
+	  @Override
+	  public synchronized void commit() throws IOException
+	  {
+	    if (_writer == null) return;
+	    _writer.commit();
+	    if (_pendingVersion >= 0L)
+	    {
+	      writeVersion(_pendingVersion);
+	      _pendingVersion = -1L;
+	    }
+	    _uncommittedBatches = 0;
+	  }
+	  
+	  /**
+	   * @return true if batches were written by the long lived writer and not committed yet
+	   */
+	  public synchronized boolean hasUncommitted()
+	  {
+	    return _writer != null && (_uncommittedBatches > 0 || _pendingVersion >= 0L);
+	  }
+	  
+	  /**
+	   * Commits and closes the long lived writer, if open. The writer is opened again by the next
+	   * {@link #openIndexWriter(Analyzer, Similarity)}.
+	   */
+	  public synchronized void closeIndexWriter()
+	  {
+	    if (_writer == null) return;
+	    try
+	    {
+	      commit();
+	    }
+	    catch(IOException e)
+	    {
+	      log.error("commit on close failed: "+e.getMessage(),e);
+	    }
+	    try
+	    {
+	      _writer.close();
+	    }
+	    catch(IOException e)
+	    {
+	      log.error(e.getMessage(),e);
+	    }
+	    _writer = null;
+	    _uncommittedBatches = 0;
+	    _pendingVersion = -1L;
+	    clearDecodedSegmentUIDs();
+	  }
+	  
+	  /**
+	   * Builds a large batch in parallel when builder threads are set, see {@link #setBuildThreads(int)}.
+	   * The deletes are applied first, as in a serial update, and the slices are added in batch order so
+	   * that the documents keep their relative order.
+	   */
+	  @Override
+	  public void updateIndex(IntSet delDocs, List<IndexingReq> insertDocs, Analyzer defaultAnalyzer, Similarity similarity)
+	      throws IOException
+	  {
+	    ExecutorService pool;
+	    int numSlices;
+	    synchronized(this)
+	    {
+	      pool = _buildPool;
+	      numSlices = _numBuildThreads;
+	      if (pool == null || insertDocs.size() < _parallelBuildThreshold)
+	      {
+	        pool = null;
+	      }
+	    }
+	    if (pool == null)
+	    {
+	      super.updateIndex(delDocs, insertDocs, defaultAnalyzer, similarity);
+	      return;
+	    }
+	    
+	    deleteDocs(delDocs);
+	    
+	    _location.mkdirs();
+	    int size = insertDocs.size();
+	    int sliceSize = (size + numSlices - 1) / numSlices;
+	    ArrayList<File> buildDirs = new ArrayList<File>(numSlices);
+	    ArrayList<Future<FSDirectory>> futures = new ArrayList<Future<FSDirectory>>(numSlices);
+	    ArrayList<Directory> dirs = new ArrayList<Directory>(numSlices);
+	    IOException failure = null;
+	    try
+	    {
+	      try
+	      {
+	        for (int start = 0; start < size; start += sliceSize)
+	        {
+	          File buildDir = new File(_location, BUILD_DIR_PREFIX + buildDirs.size());
+	          FileUtil.rmDir(buildDir);   // left over by a crash
+	          buildDirs.add(buildDir);
+	          List<IndexingReq> slice = insertDocs.subList(start, Math.min(size, start + sliceSize));
+	          futures.add(pool.submit(new BuildTask(buildDir, slice, defaultAnalyzer, similarity)));
+	        }
+	      }
+	      finally
+	      {
+	        // wait for every slice, in submission order so that the slices are added in batch order
+	        for (Future<FSDirectory> future : futures)
+	        {
+	          try
+	          {
+	            dirs.add(getBuiltDirectory(future));
+	          }
+	          catch (IOException e)
+	          {
+	            if (failure == null) failure = e;
+	          }
+	        }
+	      }
+	      if (failure != null) throw failure;
+	      
+	      IndexWriter writer = null;
+	      try
+	      {
+	        writer = openIndexWriter(defaultAnalyzer, similarity);
+	        writer.addIndexesNoOptimize(dirs.toArray(new Directory[dirs.size()]));
+	      }
+	      finally
+	      {
+	        if (writer != null) releaseIndexWriter(writer);
+	      }
+	    }
+	    finally
+	    {
+	      for (Directory dir : dirs)
+	      {
+	        dir.close();
+	      }
+	      for (File buildDir : buildDirs)
+	      {
+	        FileUtil.rmDir(buildDir);
+	      }
+	    }
+	  }
+	  
+	  /**
+	   * Waits for a slice to be built.
+	   */
+	  private static FSDirectory getBuiltDirectory(Future<FSDirectory> future) throws IOException
+	  {
+	    try
+	    {
+	      return future.get();
+	    }
+	    catch (InterruptedException e)
+	    {
+	      Thread.currentThread().interrupt();
+	      throw new IOException("interrupted while building a slice");
+	    }
+	    catch (ExecutionException e)
+	    {
+	      Throwable cause = e.getCause();
+	      if (cause instanceof IOException) throw (IOException)cause;
+	      IOException ioe = new IOException("slice build failed: " + cause.getMessage());
+	      ioe.initCause(cause);
+	      throw ioe;
+	    }
+	  }
+	  
+	  /**
+	   * Indexes a slice of a batch into a new index of its own.
+	   */
+	  private static final class BuildTask implements Callable<FSDirectory>
+	  {
+	    private final File _dir;
+	    private final List<IndexingReq> _docs;
+	    private final Analyzer _analyzer;
+	    private final Similarity _similarity;
+	    
+	    BuildTask(File dir, List<IndexingReq> docs, Analyzer analyzer, Similarity similarity)
+	    {
+	      _dir = dir;
+	      _docs = docs;
+	      _analyzer = analyzer;
+	      _similarity = similarity;
+	    }
+	    
+	    public FSDirectory call() throws IOException
+	    {
+	      FSDirectory directory = NIOFSDirectory.getDirectory(_dir);
+	      boolean built = false;
+	      try
+	      {
+	        IndexWriter writer = new IndexWriter(directory, _analyzer, true, MaxFieldLength.UNLIMITED);
+	        try
+	        {
+	          writer.setMergeScheduler(new SerialMergeScheduler());
+	          if (_similarity != null)
+	          {
+	            writer.setSimilarity(_similarity);
+	          }
+	          for (IndexingReq req : _docs)
+	          {
+	            Analyzer analyzer = req.getAnalyzer();
+	            Document doc = req.getDocument();
+	            if (analyzer == null)
+	            {
+	              writer.addDocument(doc);
+	            }
+	            else
+	            {
+	              writer.addDocument(doc, analyzer);
+	            }
+	          }
+	        }
+	        finally
+	        {
+	          writer.close();
+	        }
+	        built = true;
+	        return directory;
+	      }
+	      finally
+	      {
+	        if (!built) directory.close();
+	      }
+	    }
+	  }
+	  
+	  private static final class BuilderThreadFactory implements ThreadFactory
+	  {
+	    private final AtomicInteger _count = new AtomicInteger(0);
+	    
+	    public Thread newThread(Runnable r)
+	    {
+	      Thread thread = new Thread(r, "zoie segment builder " + _count.incrementAndGet());
+	      thread.setDaemon(true);
+	      return thread;
+	    }
+	  }
+	  
+	  /**
+	   * In persistent writer mode deletes go through the writer, an IndexReader can not delete
+	   * while the writer holds the write lock.
+	   */
+	  @Override
+	  protected void deleteDocs(IntSet delDocs) throws IOException
+	  {
+	    if (!isPersistentWriter())
+	    {
+	      super.deleteDocs(delDocs);
+	      return;
+	    }
+	    if (delDocs == null || delDocs.size() == 0) return;
+	    
+	    IndexWriter writer = openIndexWriter(null, null);
+	    // the disk reader only sees committed batches, it still holds the uids of the committed segments
+	    deleteDocs(writer, openIndexReader(), delDocs, !hasUncommitted());
+	  }
+	  
 	  /**
 	   * Gets the current reader
 	   */
@@ -155,8 +644,7 @@ public class DiskSearchIndex extends BaseSearchIndex{
 	  
 	  @Override
 	  protected IndexReader openIndexReaderForDelete() throws IOException {
-		_location.mkdirs();
-		FSDirectory directory = getIndexDir(_location);
+		FSDirectory directory = getIndexDir();
 		if (IndexReader.indexExists(directory)){		
 			return IndexReader.open(directory,false);
 		}
@@ -167,44 +655,48 @@ public class DiskSearchIndex extends BaseSearchIndex{
 
 	/**
 	   * Gets a new reader, force a reader refresh
-	   * @return
+	   * @return the new reader, leased to the caller who releases it, see {@link ZoieIndexReader#release()}
 	   * @throws IOException
 	   */
 	  public ZoieIndexReader getNewReader() throws IOException
 	  {
-	    return _dispenser.getNewReader();
+	    return _dispenser.getNewReader(getSignature());
 	  }
 	  
 	  /**
-	   * Writes the current version/SCN to the disk
+	   * Writes the current version/SCN to the disk. With a long lived writer open the version is
+	   * held until the batches are committed.
 	   */
-	  public void setVersion(long version)
+	  public synchronized void setVersion(long version)
 	      throws IOException
 	  {
-	    // update new index file
-	    File directoryFile = new File(_location, IndexReaderDispenser.INDEX_DIRECTORY);
-	    IndexSignature sig = IndexSignature.read(directoryFile);
-	    sig.updateVersion(version);
-	    try
-	    {
-	      // make sure atomicity of the index publication
-	      File tmpFile = new File(_location, IndexReaderDispenser.INDEX_DIRECTORY + ".new");
-	      sig.save(tmpFile);
-	      File tmpFile2 = new File(_location, IndexReaderDispenser.INDEX_DIRECTORY + ".tmp");
-	      directoryFile.renameTo(tmpFile2);
-	      tmpFile.renameTo(directoryFile);
-	      tmpFile2.delete();
-	    }
-	    catch (IOException e)
+	    if (_writer != null)
 	    {
-	      throw e;
+	      _pendingVersion = version;
+	      return;
 	    }
-
+	    writeVersion(version);
+	  }
+	  
+	  /**
+	   * Publishes <code>version</code> in index.directory with a single rename, and keeps it in memory
+	   * for {@link #getVersion()}.
+	   */
+	  private void writeVersion(long version)
+	      throws IOException
+	  {
+	    IndexSignature sig = new IndexSignature(getSignature().getIndexPath(), version);
+	    sig.publish(new File(_location, IndexReaderDispenser.INDEX_DIRECTORY));
+	    _signature = sig;
 	  }
 	  
 	  public DiskIndexSnapshot getSnapshot()
 	  {
-	    IndexSignature sig = IndexReaderDispenser.getCurrentIndexSignature(_location);
+	    IndexSignature sig = _signature;
+	    if (sig == null)
+	    {
+	      sig = IndexReaderDispenser.getCurrentIndexSignature(_location);
+	    }
 	    if(sig != null)
 	    {
 	      ZoieIndexDeletionPolicy.Snapshot snapshot = _deletionPolicy.getSnapshot();
@@ -222,5 +714,7 @@ public class DiskSearchIndex extends BaseSearchIndex{
         idxDir.mkdirs();
         
         DiskIndexSnapshot.readSnapshot(channel, _location);
+        _signature = null;
+        clearDecodedSegmentUIDs();
 	  }
 }
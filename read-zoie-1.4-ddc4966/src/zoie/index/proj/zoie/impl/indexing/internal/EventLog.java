@@ -0,0 +1,319 @@
+package proj.zoie.impl.indexing.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import proj.zoie.api.DataConsumer;
+import proj.zoie.api.DataSerializer;
+import proj.zoie.api.ZoieException;
+import proj.zoie.api.DataConsumer.DataEvent;
+
+/**
+ * Append only log of data events, made of memory mapped segment files of fixed size.
+ * <p>
+ * Each record is written as <code>length, version, data</code>; the length is written last, so a record
+ * torn by a crash reads as the end of the segment. Segments whose events are all at or below the disk
+ * version are deleted by {@link #truncate(long)}, and {@link #replay(long, DataConsumer, int)} feeds back the
+ * events above it after a restart.
+ * @param <V>
+ */
+public class EventLog<V>
+{
+  private static final Logger log = Logger.getLogger(EventLog.class);
+
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  private static final String SEGMENT_PREFIX = "events-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final int HEADER_SIZE = 12;  // length + version
+
+  private final File _dir;
+  private final DataSerializer<V> _serializer;
+  private final int _segmentSize;
+  private final List<Segment> _segments;
+  private final ByteArrayOutputStream _bytes;
+  private final DataOutputStream _out;
+  private boolean _syncOnAppend;
+  private Segment _current;
+
+  private static final class Segment
+  {
+    final File file;
+    final long seq;
+    MappedByteBuffer buffer;  // only kept for the segment being written
+    int position;
+    long maxVersion = -1L;
+
+    Segment(File file, long seq)
+    {
+      this.file = file;
+      this.seq = seq;
+    }
+  }
+
+  public EventLog(File dir, DataSerializer<V> serializer)
+  {
+    this(dir, serializer, DEFAULT_SEGMENT_SIZE);
+  }
+
+  public EventLog(File dir, DataSerializer<V> serializer, int segmentSize)
+  {
+    _dir = dir;
+    _serializer = serializer;
+    _segmentSize = Math.max(segmentSize, 4096);
+    _segments = new ArrayList<Segment>();
+    _bytes = new ByteArrayOutputStream();
+    _out = new DataOutputStream(_bytes);
+    _syncOnAppend = true;
+    _current = null;
+  }
+
+  public File getDir()
+  {
+    return _dir;
+  }
+
+  /**
+   * @param syncOnAppend whether every {@link #append(Collection)} forces the written records to disk (default true).
+   * Without it, records survive a process crash but not an operating system crash.
+   */
+  public synchronized void setSyncOnAppend(boolean syncOnAppend)
+  {
+    _syncOnAppend = syncOnAppend;
+  }
+
+  /**
+   * Scans the existing segments and prepares for appending.
+   */
+  public synchronized void open() throws IOException
+  {
+    if (!_dir.isDirectory() && !_dir.mkdirs())
+    {
+      throw new IOException("unable to create event log directory " + _dir);
+    }
+    _segments.clear();
+    File[] files = _dir.listFiles(new FilenameFilter()
+    {
+      public boolean accept(File dir, String name)
+      {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    Arrays.sort(files);  // sequence numbers are zero padded
+    for (File file : files)
+    {
+      String name = file.getName();
+      long seq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+      Segment segment = new Segment(file, seq);
+      scan(segment, null, Long.MIN_VALUE);
+      _segments.add(segment);
+    }
+    if (_segments.isEmpty())
+    {
+      _current = newSegment(0L, _segmentSize);
+    }
+    else
+    {
+      _current = _segments.get(_segments.size() - 1);
+      _current.buffer = map(_current.file, _current.file.length());
+    }
+  }
+
+  public synchronized void append(Collection<DataEvent<V>> events) throws IOException
+  {
+    if (_current == null) throw new IOException("event log is not open");
+    for (DataEvent<V> event : events)
+    {
+      _bytes.reset();
+      _serializer.serialize(event.getData(), _out);
+      _out.flush();
+      int length = _bytes.size();
+      int recordSize = HEADER_SIZE + length;
+
+      // keep room for the terminating zero length
+      if (_current.position + recordSize + 4 > _current.buffer.capacity())
+      {
+        roll(recordSize + 4);
+      }
+      MappedByteBuffer buf = _current.buffer;
+      int pos = _current.position;
+      buf.putLong(pos + 4, event.getVersion());
+      ByteBuffer dest = buf.duplicate();
+      dest.position(pos + HEADER_SIZE);
+      dest.put(_bytes.toByteArray(), 0, length);
+      buf.putInt(pos, length + 1);  // 0 means no record, so lengths are stored plus one
+      _current.position = pos + recordSize;
+      _current.maxVersion = Math.max(_current.maxVersion, event.getVersion());
+    }
+    if (_syncOnAppend)
+    {
+      _current.buffer.force();
+    }
+  }
+
+  /**
+   * Deletes the segments holding only events at or below <code>version</code>, except the one being written.
+   */
+  public synchronized void truncate(long version)
+  {
+    while (_segments.size() > 1)
+    {
+      Segment segment = _segments.get(0);
+      if (segment.maxVersion > version) break;
+      _segments.remove(0);
+      if (!segment.file.delete())
+      {
+        log.warn("unable to delete event log segment " + segment.file);
+      }
+    }
+  }
+
+  /**
+   * Feeds the logged events above <code>version</code> to <code>consumer</code>, in log order.
+   * @return number of events replayed
+   */
+  public synchronized int replay(long version, DataConsumer<V> consumer, int batchSize) throws IOException, ZoieException
+  {
+    ReplayTarget<V> target = new ReplayTarget<V>(consumer, batchSize);
+    int count = 0;
+    for (Segment segment : _segments)
+    {
+      if (segment.maxVersion <= version) continue;
+      count += scan(segment, target, version);
+    }
+    target.flush();
+    return count;
+  }
+
+  public synchronized void close()
+  {
+    if (_current != null && _current.buffer != null)
+    {
+      _current.buffer.force();
+      _current.buffer = null;
+    }
+    _current = null;
+    _segments.clear();
+  }
+
+  private static final class ReplayTarget<V>
+  {
+    final DataConsumer<V> consumer;
+    final int batchSize;
+    List<DataEvent<V>> batch;
+
+    ReplayTarget(DataConsumer<V> consumer, int batchSize)
+    {
+      this.consumer = consumer;
+      this.batchSize = Math.max(1, batchSize);
+      this.batch = new ArrayList<DataEvent<V>>(this.batchSize);
+    }
+
+    void add(DataEvent<V> event) throws ZoieException
+    {
+      batch.add(event);
+      if (batch.size() >= batchSize)
+      {
+        flush();
+      }
+    }
+
+    void flush() throws ZoieException
+    {
+      if (batch.isEmpty()) return;
+      // the consumer may hold on to the collection
+      List<DataEvent<V>> events = batch;
+      batch = new ArrayList<DataEvent<V>>(batchSize);
+      consumer.consume(events);
+    }
+  }
+
+  /**
+   * Reads the records of a segment, updating its write position and max version.
+   * Events above <code>version</code> are passed to <code>target</code> when it is not null.
+   */
+  private int scan(Segment segment, ReplayTarget<V> target, long version) throws IOException
+  {
+    MappedByteBuffer buf = (segment.buffer != null) ? segment.buffer : map(segment.file, segment.file.length());
+    int limit = buf.capacity();
+    int pos = 0;
+    int count = 0;
+    while (pos + HEADER_SIZE <= limit)
+    {
+      int length = buf.getInt(pos) - 1;
+      if (length < 0 || pos + HEADER_SIZE + length > limit) break;
+      long eventVersion = buf.getLong(pos + 4);
+      segment.maxVersion = Math.max(segment.maxVersion, eventVersion);
+      if (target != null && eventVersion > version)
+      {
+        byte[] data = new byte[length];
+        ByteBuffer src = buf.duplicate();
+        src.position(pos + HEADER_SIZE);
+        src.get(data);
+        V value = _serializer.deserialize(new DataInputStream(new ByteArrayInputStream(data)));
+        try
+        {
+          target.add(new DataEvent<V>(eventVersion, value));
+        }
+        catch (ZoieException e)
+        {
+          IOException ioe = new IOException("replay failed: " + e.getMessage());
+          ioe.initCause(e);
+          throw ioe;
+        }
+        count++;
+      }
+      pos += HEADER_SIZE + length;
+    }
+    segment.position = pos;
+    return count;
+  }
+
+  private void roll(int minSize) throws IOException
+  {
+    _current.buffer.force();
+    _current.buffer = null;
+    _current = newSegment(_current.seq + 1, Math.max(_segmentSize, minSize));
+  }
+
+  private Segment newSegment(long seq, int size) throws IOException
+  {
+    File file = new File(_dir, SEGMENT_PREFIX + String.format("%019d", seq) + SEGMENT_SUFFIX);
+    Segment segment = new Segment(file, seq);
+    segment.buffer = map(file, size);
+    segment.position = 0;
+    _segments.add(segment);
+    return segment;
+  }
+
+  private static MappedByteBuffer map(File file, long size) throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try
+    {
+      if (raf.length() < size)
+      {
+        raf.setLength(size);  // new space reads as zeros, i.e. no record
+      }
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package proj.zoie.impl.indexing.internal;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import proj.zoie.api.DataConsumer.DataEvent;
+
+/**
+ * A preallocated ring buffer of data events with multiple producers and a single consumer.
+ * Producers claim a range of sequences with one CAS, fill the slots and publish them.
+ * The consumer drains all contiguously published slots in one pass.
+ * No locks are taken and no per-event nodes are allocated.
+ * @param <V>
+ */
+public class EventRingBuffer<V>
+{
+  private final DataEvent<V>[] _slots;
+  private final AtomicLongArray _published;  // sequence currently published in each slot
+  private final int _mask;
+  private final AtomicLong _claimed;         // last claimed sequence
+  private volatile long _consumed;           // last consumed sequence
+  private final AtomicLong _maxVersion;      // max version ever published
+
+  @SuppressWarnings("unchecked")
+  public EventRingBuffer(int capacity)
+  {
+    int size = 1;
+    while(size < capacity) size <<= 1;
+
+    _slots = (DataEvent<V>[])new DataEvent[size];
+    _published = new AtomicLongArray(size);
+    for(int i = 0; i < size; i++)
+    {
+      _published.set(i, -1L);
+    }
+    _mask = size - 1;
+    _claimed = new AtomicLong(-1L);
+    _consumed = -1L;
+    _maxVersion = new AtomicLong(-1L);
+  }
+
+  public int getCapacity()
+  {
+    return _slots.length;
+  }
+
+  /**
+   * @return number of claimed slots that are not consumed yet
+   */
+  public int size()
+  {
+    return (int)(_claimed.get() - _consumed);
+  }
+
+  public long getMaxVersion()
+  {
+    return _maxVersion.get();
+  }
+
+  /**
+   * Claims <code>n</code> consecutive slots.
+   * @param n number of slots, must not exceed the capacity
+   * @return the first claimed sequence, or -1 if there is not enough room
+   */
+  public long tryClaim(int n)
+  {
+    while(true)
+    {
+      long current = _claimed.get();
+      long next = current + n;
+      if(next - _consumed > _slots.length) return -1L;
+      if(_claimed.compareAndSet(current, next)) return current + 1;
+    }
+  }
+
+  /**
+   * Fills a claimed slot. The event is not visible to the consumer until it is published.
+   */
+  public void set(long sequence, DataEvent<V> event)
+  {
+    _slots[(int)sequence & _mask] = event;
+  }
+
+  /**
+   * Publishes <code>n</code> slots starting at <code>sequence</code>.
+   * @param maxVersion max version of the events being published
+   */
+  public void publish(long sequence, int n, long maxVersion)
+  {
+    while(true)
+    {
+      long current = _maxVersion.get();
+      if(current >= maxVersion || _maxVersion.compareAndSet(current, maxVersion)) break;
+    }
+    for(long seq = sequence; seq < sequence + n; seq++)
+    {
+      _published.set((int)seq & _mask, seq);
+    }
+  }
+
+  /**
+   * Moves the published events into <code>batch</code>. Must be called from the consumer thread only.
+   * @return the number of events moved
+   */
+  public int drainTo(Collection<DataEvent<V>> batch, int max)
+  {
+    long next = _consumed + 1;
+    int count = 0;
+    while(count < max)
+    {
+      int idx = (int)next & _mask;
+      if(_published.get(idx) != next) break;
+
+      batch.add(_slots[idx]);
+      _slots[idx] = null;
+      next++;
+      count++;
+    }
+    if(count > 0)
+    {
+      _consumed = next - 1; // frees the slots for producers
+    }
+    return count;
+  }
+}
@@ -2,9 +2,12 @@ package proj.zoie.impl.indexing.internal;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexUtil;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 
@@ -21,18 +24,26 @@ public class IndexReaderDispenser {
 
 	private static final class InternalIndexReader extends ZoieIndexReader {
 		private IndexSignature _sig;
-		InternalIndexReader(IndexReader in,IndexReaderDecorator<?> decorator, IndexSignature sig) throws IOException
+		InternalIndexReader(IndexReader in,IndexReaderDecorator<?> decorator, IndexSignature sig, ZoieIndexReader previous) throws IOException
 		{
-			super(in, decorator);
+			super(in, decorator, previous);
 			_sig=sig;
 		}
 		
+		/**
+		 * Disk segments keep their uids in a sidecar file, decoded once per segment.
+		 */
 		@Override
-		public void decRef() throws IOException {			
-		}
-
-		@Override
-		public void incRef() {
+		protected int[] loadSegmentUIDArray(IndexReader segmentReader, String segmentName) throws IOException
+		{
+			Directory dir = segmentReader.directory();
+			int[] uids = SegmentUIDFile.read(dir, segmentName, segmentReader.maxDoc());
+			if (uids == null)
+			{
+				uids = loadUIDArray(segmentReader);
+				SegmentUIDFile.write(dir, segmentName, uids);
+			}
+			return uids;
 		}
 	}
 	
@@ -44,13 +55,15 @@ public class IndexReaderDispenser {
 	public static IndexSignature getCurrentIndexSignature(File indexHome)
 	{
 	    File directoryFile = new File(indexHome, INDEX_DIRECTORY);
-	    IndexSignature sig=IndexSignature.read(directoryFile);
+	    IndexSignature sig=IndexSignature.readPublished(directoryFile);
 	    return sig;
 	}
 
     private volatile InternalIndexReader _currentReader;
 	private final IndexReaderDecorator<?> _decorator;
 	private final File _indexHome;
+	private File _currentDir;           // lucene directory of the current reader
+	private Set<String> _uidFileSegments;  // segments of the current reader, whose uid files are kept
 	
 	public IndexReaderDispenser(File indexHome, IndexReaderDecorator<?> decorator)
 	{
@@ -62,7 +75,8 @@ public class IndexReaderDispenser {
 	  {
 	    try
 	    {
-	      getNewReader();
+	      ZoieIndexReader reader = getNewReader();
+	      if (reader != null) reader.release();
 	    }
 	    catch (IOException e)
 	    {
@@ -105,16 +119,17 @@ public class IndexReaderDispenser {
 	      
 	      try{
 	    	log.debug("opening index reader at: "+luceneDir.getAbsolutePath());
-	        IndexReader srcReader = IndexReader.open(dir,true);
+	    	InternalIndexReader previous = (luceneDir.equals(_currentDir) ? _currentReader : null);
+	        IndexReader srcReader = openSourceReader(dir, previous);
 	        
 	        try
 	        {
-	          reader=new InternalIndexReader(srcReader, decorator, signature);
+	          reader=new InternalIndexReader(srcReader, decorator, signature, previous);
 	        }
 	        catch(IOException ioe)
 	        {
-	          // close the source reader if InternalIndexReader construction fails
-	          if (srcReader!=null)
+	          // close the source reader if InternalIndexReader construction fails, unless it is shared with the previous reader
+	          if (srcReader!=null && (previous==null || srcReader!=previous.getInnerReader()))
 	          {
 	            srcReader.close();
 	          }
@@ -134,15 +149,82 @@ public class IndexReaderDispenser {
 	        }
 	      }
 	    }
+	    purgeUIDFiles(dir, luceneDir, reader);
+	    _currentDir = luceneDir;
 	    return reader;
 	  }
+	  
+	  /**
+	   * Deletes the uid sidecar files of the segments merged away, the readers on older versions have loaded theirs.
+	   * Only the first reader on a directory lists it, for files left by an earlier run; later ones delete the files
+	   * of the segments the current reader had and the new one has not.
+	   */
+	  private void purgeUIDFiles(Directory dir, File luceneDir, ZoieIndexReader reader)
+	  {
+	    IndexReader[] segmentReaders = IndexUtil.getSegmentReaders(reader.getInnerReader());
+	    if (segmentReaders == null) return;
+	    Set<String> liveSegments = new HashSet<String>();
+	    for (IndexReader segmentReader : segmentReaders)
+	    {
+	      liveSegments.add(IndexUtil.getSegmentName(segmentReader));
+	    }
+	    Set<String> lastSegments = (luceneDir.equals(_currentDir) ? _uidFileSegments : null);
+	    if (lastSegments == null)
+	    {
+	      SegmentUIDFile.purge(dir, liveSegments);
+	    }
+	    else
+	    {
+	      for (String segment : lastSegments)
+	      {
+	        if (!liveSegments.contains(segment)) SegmentUIDFile.delete(dir, segment);
+	      }
+	    }
+	    _uidFileSegments = liveSegments;
+	  }
+	  
+	  /**
+	   * Reopens the reader of the previous version when there is one, so that the unchanged segments are shared,
+	   * otherwise opens a new reader.
+	   */
+	  private static IndexReader openSourceReader(Directory dir, InternalIndexReader previous) throws IOException
+	  {
+	    if (previous != null)
+	    {
+	      try
+	      {
+	        return previous.reopenInnerReader();
+	      }
+	      catch(IOException ioe)
+	      {
+	        log.warn("unable to reopen index reader, opening a new one: "+ioe.getMessage());
+	      }
+	      catch(RuntimeException e)
+	      {
+	        // the previous reader may have been closed
+	        log.warn("unable to reopen index reader, opening a new one: "+e.getMessage());
+	      }
+	    }
+	    return IndexReader.open(dir,true);
+	  }
 
 	  /**
 	   * get a fresh new reader instance
-	   * @return an IndexReader instance, can be null if index does not yet exit
+	   * @return an IndexReader instance leased to the caller, who releases it, can be null if index does not yet exit
 	   * @throws IOException
 	   */
 	  public ZoieIndexReader getNewReader() throws IOException
+	  {
+	    return getNewReader(null);
+	  }
+	  
+	  /**
+	   * get a fresh new reader instance on the index of a known signature
+	   * @param signature current signature of the index, null to read it from index.directory
+	   * @return an IndexReader instance leased to the caller, who releases it, can be null if index does not yet exit
+	   * @throws IOException
+	   */
+	  public ZoieIndexReader getNewReader(IndexSignature signature) throws IOException
 	  {
 	      int numTries=INDEX_OPEN_NUM_RETRIES;   
 	      InternalIndexReader reader=null;
@@ -160,7 +242,7 @@ public class IndexReaderDispenser {
 	        }
 	        numTries--;
 	        try{
-	          IndexSignature sig = getCurrentIndexSignature(_indexHome);
+	          IndexSignature sig = (signature != null) ? signature : getCurrentIndexSignature(_indexHome);
 	    
 	          if (sig==null)
 	          {
@@ -196,8 +278,15 @@ public class IndexReaderDispenser {
 	      // do decoration before swapping
 	      if(reader != null) reader.getDecoratedReader();
 	      
-	      // swap the internal readers
-	      _currentReader = reader;
+	      // swap the internal readers, the replaced one is closed once its other leases are released
+	      InternalIndexReader oldReader;
+	      synchronized(this)
+	      {
+	        oldReader = _currentReader;
+	        _currentReader = reader;
+	        if (reader != null) reader.acquire();
+	      }
+	      release(oldReader);
 	      
 	      return reader;
 	    }
@@ -217,21 +306,31 @@ public class IndexReaderDispenser {
 	}
 	
 	/**
-	 * Closes the index reader
+	 * Releases the index reader, it is closed once the leases taken on it are released
 	 */
 	public void closeReader()
 	{
-	  if(_currentReader != null)
+	  InternalIndexReader reader;
+	  synchronized(this)
+	  {
+	    reader = _currentReader;
+	    _currentReader = null;
+	  }
+	  release(reader);
+	}
+	
+	private static void release(ZoieIndexReader reader)
+	{
+	  if(reader != null)
 	  {
 	    try
 	    {
-	      _currentReader.close();
+	      reader.release();
 	    }
 	    catch(IOException e)
 	    {
 	      log.error("problem closing reader", e);
 	    }
-	    _currentReader = null;
 	  }
 	}
 	
@@ -16,6 +16,9 @@ import org.apache.log4j.Logger;
 public class IndexSignature {
 	private static Logger log = Logger.getLogger(IndexSignature.class);
 	
+	private static final String NEW_SUFFIX = ".new";
+	private static final String OLD_SUFFIX = ".tmp";
+	
 	private final String indexPath;         // index directory
     private long   _version;                     // current SCN
 
@@ -68,6 +71,62 @@ public class IndexSignature {
       }
     }
     
+    /**
+     * Replaces <code>file</code> with this signature: the signature is written and synced to a new file
+     * which is then renamed over <code>file</code>, so that readers see either the old or the new signature.
+     * Where a rename can not replace a file, the old one is moved aside first and
+     * {@link #readPublished(File)} falls back to the new file.
+     */
+    public void publish(File file) throws IOException
+    {
+      File newFile = new File(file.getPath() + NEW_SUFFIX);
+      FileOutputStream fout = new FileOutputStream(newFile);
+      try
+      {
+        save(fout);
+        fout.getFD().sync();
+      }
+      finally
+      {
+        try
+        {
+          fout.close();
+        }
+        catch (IOException e)
+        {
+          log.warn("Problem closing index directory file: " + e.getMessage());
+        }
+      }
+      
+      if (newFile.renameTo(file)) return;
+      
+      File oldFile = new File(file.getPath() + OLD_SUFFIX);
+      oldFile.delete();
+      file.renameTo(oldFile);
+      if (!newFile.renameTo(file))
+      {
+        throw new IOException("unable to rename " + newFile + " to " + file);
+      }
+      oldFile.delete();
+    }
+    
+    /**
+     * Reads a signature written by {@link #publish(File)}, including one caught between its two renames.
+     */
+    public static IndexSignature readPublished(File file)
+    {
+      if (!file.exists())
+      {
+        File newFile = new File(file.getPath() + NEW_SUFFIX);
+        if (newFile.exists() && new File(file.getPath() + OLD_SUFFIX).exists())
+        {
+          log.warn("recovering index directory file from " + newFile);
+          return read(newFile);
+        }
+      }
+      return read(file);
+    }
+    
     public void save(OutputStream out) throws IOException
     {
       StringBuilder builder = new StringBuilder();
@@ -1,16 +1,12 @@
 package proj.zoie.impl.indexing.internal;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
-import it.unimi.dsi.fastutil.ints.IntSet;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Collections;
 
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
@@ -30,6 +26,15 @@ public abstract class LuceneIndexDataLoader<R extends IndexReader> implements Da
 	protected final Analyzer _analyzer;
 	protected final Similarity _similarity;
 	protected final SearchIndexManager<R> _idxMgr;
+	
+	// batch buffers reused across calls to consume(), guarded by _batchLock
+	private static final int MIN_BUFFER_CAPACITY = 1024;
+	private final Object _batchLock = new Object();
+	private IntOpenHashSet _delSet;
+	private IntArrayList _updates;          // positions in _sortedEvents of the events to index, newest first
+	private ArrayList<DataEvent<ZoieIndexable>> _sortedEvents;
+	private ArrayList<IndexingReq> _docList;
+	private int _bufferCapacity;
 
 	protected LuceneIndexDataLoader(Analyzer analyzer, Similarity similarity,SearchIndexManager<R> idxMgr) {
 		_analyzer = analyzer;
@@ -45,67 +50,69 @@ public abstract class LuceneIndexDataLoader<R extends IndexReader> implements Da
 			return;
 
 		BaseSearchIndex idx = getSearchIndex();
-
-		Int2ObjectMap<List<IndexingReq>> addList = new Int2ObjectOpenHashMap<List<IndexingReq>>();
 		long version = idx.getVersion();		// current version
 
-		IntSet delSet =new IntOpenHashSet();
-
-		// sort events by version number
-		PriorityQueue<DataEvent<ZoieIndexable>> queue = new PriorityQueue<DataEvent<ZoieIndexable>>(eventCount, DataEvent.getComparator());
-		for(DataEvent<ZoieIndexable> e : events)
+		synchronized(_batchLock)
 		{
-		  if(e != null) queue.offer(e);
-		}
-		events.clear(); // clear the event collection, so that GC can reclaim memory from indexed events
-		events = null;
-		
-		DataEvent<ZoieIndexable> evt = null;
-		try {
-			while ((evt = queue.poll()) != null) {
+		  prepareBuffers(eventCount);
+		  try {
+			// sort events by version number, input coming from a StreamDataProvider is usually sorted already
+			boolean sorted = true;
+			long lastVersion = Long.MIN_VALUE;
+			for(DataEvent<ZoieIndexable> e : events)
+			{
+			  if(e != null)
+			  {
+			    sorted &= (e.getVersion() >= lastVersion);
+			    lastVersion = e.getVersion();
+			    _sortedEvents.add(e);
+			  }
+			}
+			events.clear(); // clear the event collection, so that GC can reclaim memory from indexed events
+			events = null;
+			if (!sorted)
+			{
+			  Collections.sort(_sortedEvents, DataEvent.getComparator());  // stable, equal versions keep arrival order
+			}
+
+			// walk from the newest event, the first event seen for a uid is the one that counts
+			for (int i = _sortedEvents.size() - 1; i >= 0; --i) {
+				DataEvent<ZoieIndexable> evt = _sortedEvents.get(i);
 				version = Math.max(version, evt.getVersion());
-				// interpret and get get the indexable instance
 				ZoieIndexable indexable = evt.getData();
 				if (indexable == null || indexable.isSkip())
 					continue;
 
-				int uid = indexable.getUID();
-				delSet.add(uid);
-				addList.remove(uid);
-				if (!indexable.isDeleted()) // update event
+				if (_delSet.add(indexable.getUID()) && !indexable.isDeleted()) // newest update event of the uid
 				{
-					IndexingReq[] reqs = indexable.buildIndexingReqs();
-					for (IndexingReq req : reqs) {
-						if (req != null) // if doc is provided, interpret as
-											// a delete, e.g. update with
-											// nothing
-						{
-							Document doc = req.getDocument();
-							if (doc!=null){
-							  ZoieIndexReader.fillDocumentID(doc, uid);
-							}
-							// add to the insert list
-							List<IndexingReq> docList = addList.get(uid);
-							if (docList == null) {
-								docList = new LinkedList<IndexingReq>();
-								addList.put(uid, docList);
-							}
-							docList.add(req);
-						}
-					}
-				} else {
-					addList.remove(uid);
+					_updates.add(i);
 				}
 			}
 
-			List<IndexingReq> docList = new ArrayList<IndexingReq>(addList.size());
-			for (List<IndexingReq> tmpList : addList.values()) {
-				docList.addAll(tmpList);
+			// build documents in version order
+			for (int j = _updates.size() - 1; j >= 0; --j) {
+				ZoieIndexable indexable = _sortedEvents.get(_updates.getInt(j)).getData();
+				int uid = indexable.getUID();
+				IndexingReq[] reqs = indexable.buildIndexingReqs();
+				for (IndexingReq req : reqs) {
+					if (req != null) // if doc is provided, interpret as
+										// a delete, e.g. update with
+										// nothing
+					{
+						Document doc = req.getDocument();
+						if (doc!=null){
+						  ZoieIndexReader.fillDocumentID(doc, uid);
+						}
+						// add to the insert list
+						_docList.add(req);
+					}
+				}
 			}
-			idx.updateIndex(new IntSetAccelerator(delSet), docList, _analyzer,_similarity);
-		} catch (IOException ioe) {
+			idx.updateIndex(new IntSetAccelerator(_delSet), _docList, _analyzer,_similarity);
+		  } catch (IOException ioe) {
 			log.error("Problem indexing batch: " + ioe.getMessage(), ioe);
-		} finally {
+		  } finally {
+			releaseBuffers();
 			try {
 				if (idx != null) {
 					idx.incrementEventCount(eventCount);
@@ -121,9 +128,41 @@ public abstract class LuceneIndexDataLoader<R extends IndexReader> implements Da
 					log.info("disk indexing requests flushed.");
 				}
 			}
+		  }
 		}
 	}
 	
+	/**
+	 * Makes the reusable batch buffers ready for a batch of <code>eventCount</code> events.
+	 * Buffers left much larger than needed by an exceptionally large batch are reallocated.
+	 */
+	private void prepareBuffers(int eventCount)
+	{
+	  if (_delSet == null || _bufferCapacity > Math.max(MIN_BUFFER_CAPACITY, eventCount * 4))
+	  {
+	    _bufferCapacity = Math.max(MIN_BUFFER_CAPACITY, eventCount);
+	    _delSet = new IntOpenHashSet(_bufferCapacity);
+	    _updates = new IntArrayList(_bufferCapacity);
+	    _sortedEvents = new ArrayList<DataEvent<ZoieIndexable>>(_bufferCapacity);
+	    _docList = new ArrayList<IndexingReq>(_bufferCapacity);
+	  }
+	  else if (eventCount > _bufferCapacity)
+	  {
+	    _bufferCapacity = eventCount;
+	  }
+	}
+	
+	/**
+	 * Clears the batch buffers so they do not hold on to indexed events and documents.
+	 */
+	private void releaseBuffers()
+	{
+	  _delSet.clear();
+	  _updates.clear();
+	  _sortedEvents.clear();
+	  _docList.clear();
+	}
+	
     public void loadFromIndex(RAMSearchIndex ramIndex) throws ZoieException
     {
       try
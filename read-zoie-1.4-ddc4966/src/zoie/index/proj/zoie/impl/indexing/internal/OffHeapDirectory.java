@@ -0,0 +1,368 @@
+package proj.zoie.impl.indexing.internal;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.store.BufferedIndexInput;
+import org.apache.lucene.store.BufferedIndexOutput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.SingleInstanceLockFactory;
+
+/**
+ * In memory Directory keeping the file contents in direct buffers, outside of the java heap, so that
+ * the realtime indexes do not load the garbage collector.
+ * <p>
+ * The memory of a file is released as soon as it is deleted and the inputs opened on it are closed,
+ * {@link #close()} deletes every file. Files still open at that point are released by the last close
+ * of their inputs, or by the garbage collector for inputs never closed.
+ */
+public class OffHeapDirectory extends Directory
+{
+  private static final Logger log = Logger.getLogger(OffHeapDirectory.class);
+
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+  private final int _chunkSize;
+  private final HashMap<String,OffHeapFile> _files;
+  private final AtomicLong _sizeInBytes;
+
+  public OffHeapDirectory()
+  {
+    this(DEFAULT_CHUNK_SIZE);
+  }
+
+  public OffHeapDirectory(int chunkSize)
+  {
+    _chunkSize = chunkSize;
+    _files = new HashMap<String,OffHeapFile>();
+    _sizeInBytes = new AtomicLong();
+    setLockFactory(new SingleInstanceLockFactory());
+  }
+
+  /**
+   * @return off heap memory held by the files of this directory, including deleted files still open
+   */
+  public long sizeInBytes()
+  {
+    return _sizeInBytes.get();
+  }
+
+  public synchronized String[] list()
+  {
+    return _files.keySet().toArray(new String[_files.size()]);
+  }
+
+  public synchronized boolean fileExists(String name)
+  {
+    return _files.containsKey(name);
+  }
+
+  public long fileModified(String name) throws IOException
+  {
+    return getFile(name).lastModified;
+  }
+
+  public void touchFile(String name) throws IOException
+  {
+    getFile(name).lastModified = System.currentTimeMillis();
+  }
+
+  public long fileLength(String name) throws IOException
+  {
+    return getFile(name).length();
+  }
+
+  public void deleteFile(String name) throws IOException
+  {
+    OffHeapFile file;
+    synchronized(this)
+    {
+      file = _files.remove(name);
+    }
+    if (file == null) throw new FileNotFoundException(name);
+    file.delete();
+  }
+
+  public synchronized void renameFile(String from, String to) throws IOException
+  {
+    OffHeapFile file = _files.remove(from);
+    if (file == null) throw new FileNotFoundException(from);
+    OffHeapFile old = _files.put(to, file);
+    if (old != null) old.delete();
+  }
+
+  public IndexOutput createOutput(String name) throws IOException
+  {
+    OffHeapFile file = new OffHeapFile();
+    OffHeapFile old;
+    synchronized(this)
+    {
+      old = _files.put(name, file);
+    }
+    if (old != null) old.delete();
+    return new OffHeapOutput(file);
+  }
+
+  public IndexInput openInput(String name) throws IOException
+  {
+    OffHeapFile file = getFile(name);
+    file.acquire();
+    return new OffHeapInput(file);
+  }
+
+  /**
+   * Deletes all files, releasing the memory of the ones not open.
+   */
+  public void close()
+  {
+    ArrayList<OffHeapFile> files;
+    synchronized(this)
+    {
+      files = new ArrayList<OffHeapFile>(_files.values());
+      _files.clear();
+    }
+    for (OffHeapFile file : files)
+    {
+      file.delete();
+    }
+  }
+
+  private synchronized OffHeapFile getFile(String name) throws FileNotFoundException
+  {
+    OffHeapFile file = _files.get(name);
+    if (file == null) throw new FileNotFoundException(name);
+    return file;
+  }
+
+  private final class OffHeapFile
+  {
+    private final ArrayList<ByteBuffer> _chunks = new ArrayList<ByteBuffer>();
+    private long _length = 0L;
+    private int _openInputs = 0;
+    private boolean _deleted = false;
+    private boolean _released = false;
+    volatile long lastModified = System.currentTimeMillis();
+
+    synchronized long length()
+    {
+      return _length;
+    }
+
+    synchronized void setLength(long length)
+    {
+      _length = length;
+    }
+
+    synchronized ByteBuffer getChunk(int idx)
+    {
+      if (_released) throw new IllegalStateException("file released");
+      while (idx >= _chunks.size())
+      {
+        _chunks.add(ByteBuffer.allocateDirect(_chunkSize));
+        _sizeInBytes.addAndGet(_chunkSize);
+      }
+      return _chunks.get(idx);
+    }
+
+    /**
+     * @return the chunks written so far, they do not change once the file is closed for writing
+     */
+    synchronized ByteBuffer[] getChunks()
+    {
+      if (_released) throw new IllegalStateException("file released");
+      return _chunks.toArray(new ByteBuffer[_chunks.size()]);
+    }
+
+    synchronized void acquire()
+    {
+      _openInputs++;
+    }
+
+    synchronized void release()
+    {
+      _openInputs--;
+      releaseIfUnused();
+    }
+
+    synchronized void delete()
+    {
+      _deleted = true;
+      releaseIfUnused();
+    }
+
+    private void releaseIfUnused()
+    {
+      if (!_deleted || _openInputs > 0 || _released) return;
+      _released = true;
+      for (ByteBuffer chunk : _chunks)
+      {
+        free(chunk);
+        _sizeInBytes.addAndGet(-_chunkSize);
+      }
+      _chunks.clear();
+    }
+  }
+
+  private static Method _cleanerMethod = null;
+  private static boolean _cleanerUnavailable = false;
+
+  /**
+   * Releases a direct buffer at once through its cleaner, when the runtime gives access to it,
+   * otherwise the buffer is left to the garbage collector.
+   */
+  private static void free(ByteBuffer buffer)
+  {
+    if (_cleanerUnavailable) return;
+    try
+    {
+      if (_cleanerMethod == null)
+      {
+        Method method = buffer.getClass().getMethod("cleaner");
+        method.setAccessible(true);
+        _cleanerMethod = method;
+      }
+      Object cleaner = _cleanerMethod.invoke(buffer);
+      if (cleaner != null)
+      {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    }
+    catch (Exception e)
+    {
+      log.info("direct buffers are released by the garbage collector: " + e);
+      _cleanerUnavailable = true;
+    }
+  }
+
+  private final class OffHeapOutput extends BufferedIndexOutput
+  {
+    private final OffHeapFile _file;
+    private long _pos = 0L;
+
+    OffHeapOutput(OffHeapFile file)
+    {
+      _file = file;
+    }
+
+    @Override
+    protected void flushBuffer(byte[] b, int offset, int len) throws IOException
+    {
+      while (len > 0)
+      {
+        int chunkOffset = (int)(_pos % _chunkSize);
+        int n = Math.min(len, _chunkSize - chunkOffset);
+        ByteBuffer dest = _file.getChunk((int)(_pos / _chunkSize)).duplicate();
+        dest.position(chunkOffset);
+        dest.put(b, offset, n);
+        _pos += n;
+        offset += n;
+        len -= n;
+      }
+      if (_pos > _file.length())
+      {
+        _file.setLength(_pos);
+      }
+      _file.lastModified = System.currentTimeMillis();
+    }
+
+    @Override
+    public void seek(long pos) throws IOException
+    {
+      super.seek(pos);
+      _pos = pos;
+    }
+
+    @Override
+    public long length() throws IOException
+    {
+      return _file.length();
+    }
+  }
+
+  /**
+   * Reads the chunks of the file as they were when the input was opened, without locking the file.
+   * Each input and clone keeps its own view on the chunk it reads, made once per chunk.
+   */
+  private final class OffHeapInput extends BufferedIndexInput
+  {
+    private final OffHeapFile _file;
+    private final long _length;
+    private final ByteBuffer[] _chunks;    // shared with the clones, never modified
+    private ByteBuffer _current = null;    // view on the chunk being read, not shared
+    private int _currentIdx = -1;
+    private boolean _isClone = false;
+    private boolean _closed = false;
+
+    OffHeapInput(OffHeapFile file)
+    {
+      _file = file;
+      _length = file.length();
+      _chunks = file.getChunks();
+    }
+
+    @Override
+    protected void readInternal(byte[] b, int offset, int len) throws IOException
+    {
+      long pos = getFilePointer();
+      if (pos + len > _length) throw new IOException("read past EOF");
+      while (len > 0)
+      {
+        int chunkOffset = (int)(pos % _chunkSize);
+        int n = Math.min(len, _chunkSize - chunkOffset);
+        int idx = (int)(pos / _chunkSize);
+        if (idx != _currentIdx)
+        {
+          _current = _chunks[idx].duplicate();
+          _currentIdx = idx;
+        }
+        ByteBuffer src = _current;
+        src.position(chunkOffset);
+        src.get(b, offset, n);
+        pos += n;
+        offset += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    protected void seekInternal(long pos)
+    {
+      // positions are read from getFilePointer()
+    }
+
+    @Override
+    public long length()
+    {
+      return _length;
+    }
+
+    @Override
+    public Object clone()
+    {
+      OffHeapInput clone = (OffHeapInput)super.clone();
+      clone._isClone = true;
+      clone._current = null;
+      clone._currentIdx = -1;
+      return clone;
+    }
+
+    @Override
+    public void close()
+    {
+      // clones share the file of the input they come from and are never closed by lucene
+      if (!_isClone && !_closed)
+      {
+        _closed = true;
+        _file.release();
+      }
+    }
+  }
+}
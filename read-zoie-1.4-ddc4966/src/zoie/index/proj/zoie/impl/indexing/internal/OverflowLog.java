@@ -0,0 +1,270 @@
+package proj.zoie.impl.indexing.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+import org.apache.log4j.Logger;
+
+import proj.zoie.api.DataSerializer;
+import proj.zoie.api.DataConsumer.DataEvent;
+
+/**
+ * A first in, first out queue of data events kept in a sequential local file.
+ * Events are appended at the end of the file and read back from the head; once every
+ * event has been read back the file is deleted. Events still in the file on {@link #close()}
+ * are kept and picked up by {@link #recover()}. Not thread safe, callers synchronize.
+ * @param <V>
+ */
+public class OverflowLog<V>
+{
+  private static final Logger log = Logger.getLogger(OverflowLog.class);
+
+  private final File _file;
+  private final DataSerializer<V> _serializer;
+  private DataOutputStream _out;
+  private DataInputStream _in;
+  private int _size;
+
+  public OverflowLog(File file, DataSerializer<V> serializer)
+  {
+    _file = file;
+    _serializer = serializer;
+    _out = null;
+    _in = null;
+    _size = 0;
+  }
+
+  public File getFile()
+  {
+    return _file;
+  }
+
+  /**
+   * @return number of events appended and not read back yet
+   */
+  public int size()
+  {
+    return _size;
+  }
+
+  public boolean isEmpty()
+  {
+    return _size == 0;
+  }
+
+  public void append(Collection<DataEvent<V>> events) throws IOException
+  {
+    if (_out == null)
+    {
+      File parent = _file.getAbsoluteFile().getParentFile();
+      if (parent != null && !parent.exists())
+      {
+        parent.mkdirs();
+      }
+      // a recovered file is appended to, otherwise start over
+      _out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_file, _size > 0)));
+    }
+    for (DataEvent<V> event : events)
+    {
+      _out.writeLong(event.getVersion());
+      _serializer.serialize(event.getData(), _out);
+      _size++;
+    }
+  }
+
+  /**
+   * Reads back up to <code>max</code> of the oldest events.
+   * @return the number of events added to <code>events</code>
+   */
+  public int drainTo(Collection<DataEvent<V>> events, int max) throws IOException
+  {
+    if (_size == 0 || max <= 0) return 0;
+
+    if (_out != null)
+    {
+      _out.flush();
+    }
+    if (_in == null)
+    {
+      _in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+    }
+    int count = 0;
+    while (count < max && _size > 0)
+    {
+      long version = _in.readLong();
+      V data = _serializer.deserialize(_in);
+      events.add(new DataEvent<V>(version, data));
+      _size--;
+      count++;
+    }
+    if (_size == 0)
+    {
+      // everything is read back, start over with an empty file
+      discard();
+    }
+    return count;
+  }
+
+  /**
+   * Picks up the events left in the file by an earlier {@link #close()}. An incomplete event at
+   * the end of the file, as left by a crash, is dropped.
+   * @return number of events recovered
+   */
+  public int recover() throws IOException
+  {
+    closeStreams();
+    _size = 0;
+    if (!_file.exists()) return 0;
+
+    int count = 0;
+    boolean truncated = false;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+    try
+    {
+      while (in.available() > 0)
+      {
+        try
+        {
+          in.readLong();
+          _serializer.deserialize(in);
+        }
+        catch (IOException e)
+        {
+          truncated = true;
+          break;
+        }
+        count++;
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+    if (truncated)
+    {
+      log.warn("dropping incomplete event at the end of overflow log " + _file);
+      _in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+      rewrite(count);
+    }
+    _size = count;
+    if (_size == 0)
+    {
+      discard();
+    }
+    return _size;
+  }
+
+  /**
+   * Closes the file, the events not read back yet are kept in it for {@link #recover()}.
+   */
+  public void close()
+  {
+    if (_size == 0)
+    {
+      discard();
+      return;
+    }
+    try
+    {
+      if (_in != null)
+      {
+        // drop the events already read back
+        if (_out != null)
+        {
+          _out.close();
+          _out = null;
+        }
+        rewrite(_size);
+      }
+      log.info("keeping " + _size + " events in overflow log " + _file);
+    }
+    catch (IOException e)
+    {
+      log.error("unable to keep overflow log " + _file + ", " + _size + " events lost", e);
+      _size = 0;
+      closeStreams();
+      _file.delete();
+      return;
+    }
+    closeStreams();
+    _size = 0;
+  }
+
+  /**
+   * Copies the next <code>count</code> events of the input to a new file that replaces the log.
+   */
+  private void rewrite(int count) throws IOException
+  {
+    File tmp = new File(_file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp, false)));
+    try
+    {
+      for (int i = 0; i < count; ++i)
+      {
+        out.writeLong(_in.readLong());
+        _serializer.serialize(_serializer.deserialize(_in), out);
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+    closeStreams();
+    if (!_file.delete() || !tmp.renameTo(_file))
+    {
+      throw new IOException("unable to replace overflow log " + _file);
+    }
+  }
+
+  /**
+   * Discards the remaining events and deletes the file.
+   */
+  public void discard()
+  {
+    closeStreams();
+    if (_size > 0)
+    {
+      log.warn("discarding " + _size + " events from overflow log " + _file);
+      _size = 0;
+    }
+    if (_file.exists() && !_file.delete())
+    {
+      log.warn("unable to delete overflow log " + _file);
+    }
+  }
+
+  private void closeStreams()
+  {
+    if (_out != null)
+    {
+      try
+      {
+        _out.close();
+      }
+      catch (IOException e)
+      {
+        log.warn(e.getMessage());
+      }
+      _out = null;
+    }
+    if (_in != null)
+    {
+      try
+      {
+        _in.close();
+      }
+      catch (IOException e)
+      {
+        log.warn(e.getMessage());
+      }
+      _in = null;
+    }
+  }
+}
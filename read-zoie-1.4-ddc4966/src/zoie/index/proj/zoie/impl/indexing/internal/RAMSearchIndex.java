@@ -1,6 +1,5 @@
 package proj.zoie.impl.indexing.internal;
 
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
 
 import java.io.IOException;
@@ -13,9 +12,11 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriter.MaxFieldLength;
 import org.apache.lucene.search.Similarity;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
 
 import proj.zoie.api.ZoieIndexReader;
+import proj.zoie.api.impl.util.PersistentIntSet;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
 
@@ -26,35 +27,129 @@ import proj.zoie.api.indexing.ZoieIndexable.IndexingReq;
  */
 public class RAMSearchIndex extends BaseSearchIndex {
 	  private long         _version;
-	  private final RAMDirectory _directory;
-	  private final IntOpenHashSet       _deletedSet;
+	  private final Directory _directory;       // RAMDirectory, or OffHeapDirectory
+	  private PersistentIntSet   _deletedSet;   // shared with the snapshots given to readers
 	  private final IndexReaderDecorator<?> _decorator;
+	  private IndexWriter _writer;      // long lived writer, open while the index is writable
 	  
 	  // a consistent pair of reader and deleted set
       private volatile ZoieIndexReader _currentReader;
+	  private int _openReaders = 0;     // readers on _directory not closed yet, guarded by this
+	  private boolean _closed = false;  // guarded by this
 	  
 	  public static final Logger log = Logger.getLogger(RAMSearchIndex.class);
 
 	  RAMSearchIndex(long version, IndexReaderDecorator<?> decorator)
 	  {
-	    _directory = new RAMDirectory();
+	    this(version, decorator, false);
+	  }
+	  
+	  /**
+	   * @param offHeap keep the index in an {@link OffHeapDirectory} instead of a RAMDirectory
+	   */
+	  RAMSearchIndex(long version, IndexReaderDecorator<?> decorator, boolean offHeap)
+	  {
+	    _directory = (offHeap ? new OffHeapDirectory() : new RAMDirectory());
 	    _version = version;
-	    _deletedSet = new IntOpenHashSet();
+	    _deletedSet = PersistentIntSet.EMPTY;
 	    _decorator = decorator;
 	    _currentReader = null;
+	    _writer = null;
 	    ConcurrentMergeScheduler cms = new ConcurrentMergeScheduler();
 	    cms.setMaxThreadCount(1);
 	    _mergeScheduler = cms;
 	  }
 	  
+	  /**
+	   * Closes the writer and gives back the lease on the current reader. A RAMDirectory is closed
+	   * once the last reader opened on it is closed, when the snapshots still reading it are released.
+	   * An {@link OffHeapDirectory} is closed at once: it frees the files no reader has open right away,
+	   * and the others when the readers close their inputs.
+	   */
 	  public void close()
 	  {
-	    if (_directory!=null)
+	    synchronized(this)
+	    {
+	      if (_closed) return;
+	    }
+	    closeIndexWriter();
+	    ZoieIndexReader reader = _currentReader;
+	    _currentReader = null;
+	    if (reader != null)
+	    {
+	      // still open for the snapshots holding a lease on it
+	      try
+	      {
+	        reader.release();
+	      }
+	      catch(IOException e)
+	      {
+	        log.error(e.getMessage(),e);
+	      }
+	    }
+	    synchronized(this)
+	    {
+	      _closed = true;
+	      if (_openReaders == 0 || _directory instanceof OffHeapDirectory)
+	      {
+	        _directory.close();
+	      }
+	    }
+	  }
+	  
+	  private synchronized void readerClosed()
+	  {
+	    if (--_openReaders == 0 && _closed)
 	    {
 	      _directory.close();
 	    }
 	  }
 	  
+	  /**
+	   * A reader on the directory of this index, which stays open as long as one of them is.
+	   */
+	  private final class RAMIndexReader extends ZoieIndexReader
+	  {
+	    RAMIndexReader(IndexReader in, ZoieIndexReader previous) throws IOException
+	    {
+	      super(in, _decorator, previous);
+	      synchronized(RAMSearchIndex.this)
+	      {
+	        _openReaders++;
+	      }
+	    }
+	    
+	    @Override
+	    protected void doClose() throws IOException
+	    {
+	      try
+	      {
+	        super.doClose();
+	      }
+	      finally
+	      {
+	        readerClosed();
+	      }
+	    }
+	  }
+	  
+	  public boolean isOffHeap()
+	  {
+	    return _directory instanceof OffHeapDirectory;
+	  }
+	  
+	  /**
+	   * @return memory held by the index files, off the heap for an off heap index
+	   */
+	  public long getSizeInBytes()
+	  {
+	    if (_directory instanceof OffHeapDirectory)
+	    {
+	      return ((OffHeapDirectory)_directory).sizeInBytes();
+	    }
+	    return ((RAMDirectory)_directory).sizeInBytes();
+	  }
+	  
 	  public long getVersion()
 	  {
 	    return _version;
@@ -110,17 +205,18 @@ public class RAMSearchIndex extends BaseSearchIndex {
 	    {
 	      IndexReader srcReader=null;
 	      ZoieIndexReader finalReader=null;
+	      ZoieIndexReader previous=_currentReader;
 	      try
 	      {
-	        // for RAM indexes, just get a new index reader
-	    	srcReader=IndexReader.open(_directory,true);
-	    	finalReader=new ZoieIndexReader(srcReader, _decorator);
+	        // reopen the last reader so that only the new segments are loaded
+	    	srcReader=(previous != null ? previous.reopenInnerReader() : IndexReader.open(_directory,true));
+	    	finalReader=new RAMIndexReader(srcReader, previous);
 	        return finalReader;
 	      }
 	      catch(IOException ioe)
 	      {
 	        // if reader decoration fails, still need to close the source reader
-	        if (srcReader!=null)
+	        if (srcReader!=null && (previous==null || srcReader!=previous.getInnerReader()))
 	        {
 	        	srcReader.close();
 	        }
@@ -132,10 +228,16 @@ public class RAMSearchIndex extends BaseSearchIndex {
 	    }
 	  }
 
+      /**
+       * Returns the writer of this index, opening it on first use. The writer stays open until
+       * {@link #closeIndexWriter()} and must not be closed by the caller.
+       */
       @Override
-	  public IndexWriter openIndexWriter(Analyzer analyzer,Similarity similarity)
+	  public synchronized IndexWriter openIndexWriter(Analyzer analyzer,Similarity similarity)
 	    throws IOException
 	  {
+	    if (_writer != null) return _writer;
+	    
 	    // if index does not exist, create empty index
 	    boolean create = !IndexReader.indexExists(_directory); 
 	    IndexWriter idxWriter = new IndexWriter(_directory, analyzer, create, MaxFieldLength.UNLIMITED); 
@@ -147,20 +249,78 @@ public class RAMSearchIndex extends BaseSearchIndex {
 	    {
 	      idxWriter.setSimilarity(similarity);
 	    }
+	    _writer = idxWriter;
 	    return idxWriter;
 	  }
 	  
+	  @Override
+	  protected void releaseIndexWriter(IndexWriter writer)
+	  {
+	    // the writer stays open until closeIndexWriter()
+	  }
+	  
+	  /**
+	   * Closes the writer, waiting for running merges. Called once the index becomes read only,
+	   * so that its directory can be copied to the disk index.
+	   */
+	  public synchronized void closeIndexWriter()
+	  {
+	    if (_writer != null)
+	    {
+	      try
+	      {
+	        _writer.close();
+	      }
+	      catch(IOException e)
+	      {
+	        log.error(e.getMessage(),e);
+	      }
+	      _writer = null;
+	    }
+	    // no more deletes, the uids decoded for them are not needed
+	    clearDecodedSegmentUIDs();
+	  }
+	  
+	  /**
+	   * Applies a batch through the long lived writer: deletes by uid are issued as a query on the writer,
+	   * documents are added and the batch is committed, then a new reader is opened on the commit.
+	   * The current reader is opened on the last commit, so the deletes resolve their uids from its uid arrays;
+	   * only the segments merged in the background since are decoded.
+	   */
 	  @Override
 	  public void updateIndex(IntSet delDocs, List<IndexingReq> insertDocs,Analyzer analyzer,Similarity similarity)
 	    throws IOException
 	  {
-        super.updateIndex(delDocs, insertDocs, analyzer, similarity);	    
+        IndexWriter writer = openIndexWriter(analyzer, similarity);
+        if (_currentReader != null)
+        {
+          deleteDocs(writer, _currentReader, delDocs, true);
+        }
+        for (IndexingReq idxPair : insertDocs)
+        {
+          Analyzer docAnalyzer = idxPair.getAnalyzer();
+          if (docAnalyzer == null)
+          {
+            writer.addDocument(idxPair.getDocument());
+          }
+          else
+          {
+            writer.addDocument(idxPair.getDocument(), docAnalyzer);
+          }
+        }
+        writer.commit();
 
         // we recorded deletes into the delete set only if it is a RAM instance
-        _deletedSet.addAll(delDocs);
+        if (delDocs != null) _deletedSet = _deletedSet.withAll(delDocs);
 
+        ZoieIndexReader oldReader = _currentReader;
         ZoieIndexReader reader = openIndexReaderInternal();
-        if(reader != null) reader.setModifiedSet((IntSet)_deletedSet.clone());
+        if(reader != null) reader.setModifiedSet(_deletedSet);
         _currentReader = reader;
+        if (oldReader != null && oldReader != reader)
+        {
+          // closed once the snapshots holding a lease on it are released
+          oldReader.release();
+        }
 	  }
 }
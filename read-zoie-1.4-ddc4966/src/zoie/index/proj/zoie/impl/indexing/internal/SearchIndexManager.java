@@ -1,20 +1,27 @@
 package proj.zoie.impl.indexing.internal;
 
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MergeScheduler;
 import org.apache.lucene.index.LogMergePolicy;
 import org.apache.lucene.index.ZoieMergePolicy;
+import org.apache.lucene.search.Similarity;
 
+import proj.zoie.api.IndexReaderLease;
 import proj.zoie.api.ZoieIndexReader;
 import proj.zoie.api.impl.util.FileUtil;
 import proj.zoie.api.impl.util.IntSetAccelerator;
+import proj.zoie.api.impl.util.IntSetUnion;
 import proj.zoie.api.indexing.IndexReaderDecorator;
 /**
  * 管理Zoie中实施索引的几个indexReader的类
@@ -37,6 +44,8 @@ public class SearchIndexManager<R extends IndexReader>{
 	  
 	  private volatile Status _diskIndexerStatus;
       private volatile Mem _mem;
+      private final AtomicReference<ReaderSnapshot> _readerSnapshot = new AtomicReference<ReaderSnapshot>();    // readers last handed out by leaseIndexReaders()
+      private volatile boolean _offHeapRamIndex = false;
 
 	  
 	  
@@ -69,6 +78,140 @@ public class SearchIndexManager<R extends IndexReader>{
 	    return _location;
 	  }
 	  
+      /**
+       * see {@link DiskSearchIndex#setPersistentWriter(boolean)}
+       */
+      public void setPersistentDiskWriter(boolean persistentWriter)
+      {
+        _diskIndex.setPersistentWriter(persistentWriter);
+      }
+      
+      public boolean isPersistentDiskWriter()
+      {
+        return _diskIndex.isPersistentWriter();
+      }
+      
+      /**
+       * see {@link DiskSearchIndex#setCommitGroupSize(int)}
+       */
+      public void setDiskCommitGroupSize(int commitGroupSize)
+      {
+        _diskIndex.setCommitGroupSize(commitGroupSize);
+      }
+      
+      public int getDiskCommitGroupSize()
+      {
+        return _diskIndex.getCommitGroupSize();
+      }
+      
+      /**
+       * see {@link DiskSearchIndex#setBuildThreads(int)}
+       */
+      public void setDiskBuildThreads(int numThreads)
+      {
+        _diskIndex.setBuildThreads(numThreads);
+      }
+      
+      public int getDiskBuildThreads()
+      {
+        return _diskIndex.getBuildThreads();
+      }
+      
+      /**
+       * see {@link DiskSearchIndex#setParallelBuildThreshold(int)}
+       */
+      public void setDiskParallelBuildThreshold(int threshold)
+      {
+        _diskIndex.setParallelBuildThreshold(threshold);
+      }
+      
+      public int getDiskParallelBuildThreshold()
+      {
+        return _diskIndex.getParallelBuildThreshold();
+      }
+      
+      /**
+       * see {@link DiskSearchIndex#setMergeScheduler(MergeScheduler)}
+       */
+      public void setDiskMergeScheduler(MergeScheduler mergeScheduler)
+      {
+        _diskIndex.setMergeScheduler(mergeScheduler);
+      }
+      
+      public MergeScheduler getDiskMergeScheduler()
+      {
+        return _diskIndex.getMergeScheduler();
+      }
+      
+      /**
+       * Opens the long lived disk index writer ahead of the first batch, does nothing unless
+       * the disk index is in persistent writer mode.
+       */
+      public void openDiskIndexWriter(Analyzer analyzer, Similarity similarity) throws IOException
+      {
+        if (_diskIndex.isPersistentWriter())
+        {
+          _diskIndex.openIndexWriter(analyzer, similarity);
+        }
+      }
+      
+      public void closeDiskIndexWriter()
+      {
+        _diskIndex.closeIndexWriter();
+      }
+      
+      /**
+       * Commits the batches pending in the long lived disk index writer and loads a reader on the commit.
+       */
+      public void commitDiskIndex() throws IOException
+      {
+        if (_diskIndex.hasUncommitted())
+        {
+          _diskIndex.commit();
+          refreshDiskReader();
+        }
+      }
+      
+      /**
+       * Commits the segments merged in the background since the last call and loads a reader on them,
+       * so that searches stop reading the segments merged away. Called by the disk indexer when idle.
+       */
+      public void commitMergedDiskIndex() throws IOException
+      {
+        if (_diskIndex.takeMerged() && _diskIndex.isPersistentWriter())
+        {
+          _diskIndex.commit();
+          refreshDiskReader();
+        }
+      }
+      
+      /**
+       * Keeps the memory indexes created from now on in off heap buffers, see {@link OffHeapDirectory}.
+       * The initial memory index is replaced while it is still empty.
+       */
+      public synchronized void setOffHeapRamIndex(boolean offHeap)
+      {
+        _offHeapRamIndex = offHeap;
+        Mem mem = _mem;
+        RAMSearchIndex memIndexA = mem.get_memIndexA();
+        if (mem.get_memIndexB() == null && memIndexA != null && memIndexA.isOffHeap() != offHeap && memIndexA.getNumdocs() == 0)
+        {
+          RAMSearchIndex newMemIndexA = newMemIndex(memIndexA.getVersion());
+          swapMem(new Mem(newMemIndexA, null, newMemIndexA, null, mem.get_diskIndexReader()));
+          memIndexA.close();
+        }
+      }
+      
+      public boolean isOffHeapRamIndex()
+      {
+        return _offHeapRamIndex;
+      }
+      
+      private RAMSearchIndex newMemIndex(long version)
+      {
+        return new RAMSearchIndex(version, _indexReaderDecorator, _offHeapRamIndex);
+      }
+      
       public void setNumLargeSegments(int numLargeSegments)
       {
         _mergePolicy.setNumLargeSegments(numLargeSegments);
@@ -153,69 +296,112 @@ public class SearchIndexManager<R extends IndexReader>{
 	    }
 	  }
 	 //得到搜索使用到的三个IndexReaders ，memA  memB  以及disk
-    public List<R> getIndexReaders()
+	  /**
+	   * Returns the readers of memB, memA and the disk index, in that order. The readers are views carrying
+	   * the delete sets that mask in each the documents updated in the newer ones, they can be used from any thread.
+	   * The list is built once per generation of the three indexes and shared by the calls until one of them
+	   * changes, it must not be modified.
+	   * <p>
+	   * The lease keeps the readers open, even once replaced by newer ones, until it is closed.
+	   * <p>
+	   * A new snapshot is built without any lock, so that searches keep going on the current one meanwhile,
+	   * and published only if the current one was not replaced in between.
+	   */
+    public IndexReaderLease<R> leaseIndexReaders()
 	      throws IOException
 	  {
-	    ArrayList<R> readers = new ArrayList<R>(3);
-	    ZoieIndexReader reader = null;
-	    
-        IntSet memDelSet = null;
-        IntSet diskDelSet = null;
-        Mem mem = _mem;
-        RAMSearchIndex memIndexB = mem.get_memIndexB();
-        RAMSearchIndex memIndexA = mem.get_memIndexA();
-        if (memIndexB != null)                           // load memory index B
+        while (true)
         {
-          reader = memIndexB.openIndexReader();            
-          if (reader != null)
+          ReaderSnapshot current = _readerSnapshot.get();
+          Mem mem = _mem;
+          RAMSearchIndex memIndexB = mem.get_memIndexB();
+          RAMSearchIndex memIndexA = mem.get_memIndexA();
+          ZoieIndexReader readerB = (memIndexB != null) ? memIndexB.openIndexReader() : null;
+          ZoieIndexReader readerA = (memIndexA != null) ? memIndexA.openIndexReader() : null;
+          ZoieIndexReader diskReader = (_diskIndex != null) ? mem.get_diskIndexReader() : null;
+          
+          if (current != null && current.isOf(readerB, readerA, diskReader))
           {
-            memDelSet = reader.getModifiedSet();
-            if(memDelSet != null && memDelSet.size() > 0)
-            {
-              diskDelSet = new IntOpenHashSet(memDelSet);
-            }
-            @SuppressWarnings("unchecked")
-            R r = (R)reader.getDecoratedReader();
-            readers.add(r);
+            if (current.acquire()) return new ReaderLease(current);
+            continue;   // replaced and released meanwhile
+          }
+          ReaderSnapshot snapshot = newReaderSnapshot(readerB, readerA, diskReader);
+          if (snapshot == null) continue;   // a reader was replaced and closed meanwhile, read them again
+          if (!_readerSnapshot.compareAndSet(current, snapshot))
+          {
+            // another call published first, use its snapshot
+            snapshot.release();
+            continue;
           }
+          // closes the readers replaced since, unless lists still out hold them
+          if (current != null) current.release();
+          if (snapshot.acquire()) return new ReaderLease(snapshot);
+          // dropped by close() meanwhile
         }
-        
-        if (memIndexA != null)                           // load memory index A
-        {
-          reader = memIndexA.openIndexReader();
-          if (reader != null)
-	      {
-	        IntSet tmpDelSet = reader.getModifiedSet();
-	        if(diskDelSet == null)
-	        {
-              diskDelSet = tmpDelSet;
-	        }
-	        else
-	        {
-              if(tmpDelSet != null && tmpDelSet.size() > 0)
-              {
-                diskDelSet.addAll(tmpDelSet);
-              }
-	        }
-	        reader.setDelSet(memDelSet != null ? new IntSetAccelerator(memDelSet) : null);
-	        @SuppressWarnings("unchecked")
-	        R r =(R)reader.getDecoratedReader(); 
-            readers.add(r);
-	      }
-	    }
-	    if (_diskIndex != null)                           // load disk index
-	      {
-	      reader = mem.get_diskIndexReader();
-	      if (reader != null)
-	      {
-	        reader.setDelSet(diskDelSet != null ? new IntSetAccelerator(diskDelSet) : null);
-            @SuppressWarnings("unchecked")
-            R r = (R)reader.getDecoratedReader();
-	        readers.add(r);
-	      }
-	    }
-	    return readers;
 	  }
+    
+    /**
+     * Returns the current readers without leasing them, they stay open only while they are current.
+     * @deprecated the readers may be closed while in use, use {@link #leaseIndexReaders()}
+     */
+    public List<R> getIndexReaders() throws IOException
+    {
+      IndexReaderLease<R> lease = leaseIndexReaders();
+      List<R> readers = lease.getReaders();
+      lease.close();    // the manager holds the snapshot while it is current
+      return readers;
+    }
+    
+    /**
+     * Leases the readers of a new snapshot, the snapshot is released by the manager once replaced.
+     * @return the snapshot, null if one of the readers is already closed
+     */
+    private ReaderSnapshot newReaderSnapshot(ZoieIndexReader readerB, ZoieIndexReader readerA, ZoieIndexReader diskReader) throws IOException
+    {
+      ZoieIndexReader[] readers = new ZoieIndexReader[] { readerB, readerA, diskReader };
+      int leased = 0;
+      try
+      {
+        for (; leased < readers.length; ++leased)
+        {
+          if (readers[leased] != null && !readers[leased].acquire()) return null;
+        }
+        ReaderSnapshot snapshot = new ReaderSnapshot(readerB, readerA, diskReader);
+        leased = 0;   // the leases now belong to the snapshot
+        return snapshot;
+      }
+      finally
+      {
+        for (int i = 0; i < leased; ++i)
+        {
+          releaseReader(readers[i]);
+        }
+      }
+    }
+    
+    private static void releaseReader(ZoieIndexReader reader)
+    {
+      if (reader == null) return;
+      try
+      {
+        reader.release();
+      }
+      catch(IOException e)
+      {
+        log.error("problem closing reader", e);
+      }
+    }
+    
+    /**
+     * Replaces the current Mem, giving back the lease of the old one on its disk reader.
+     * Called holding the lock of this manager, so that the Mem replaced is the one the new Mem was made from.
+     */
+    private void swapMem(Mem mem)
+    {
+      Mem oldMem = _mem;
+      _mem = mem;
+      if (oldMem != null) oldMem.release();
+    }
 	  
 	  public void setDiskIndexerStatus(Status status)
 	  {
@@ -232,10 +418,17 @@ public class SearchIndexManager<R extends IndexReader>{
 	      { // sleeping to working
 	        long version = _diskIndex.getVersion();
 	        
-            Mem oldMem = _mem;
-            RAMSearchIndex memIndexB = new RAMSearchIndex(version, _indexReaderDecorator);
-            Mem mem = new Mem(oldMem.get_memIndexA(), memIndexB, memIndexB, oldMem.get_memIndexA(), oldMem.get_diskIndexReader());
-            _mem = mem;
+            synchronized(this)
+            {
+              Mem oldMem = _mem;
+              // A becomes read only and is about to be copied to disk, release its writer
+              if (oldMem.get_memIndexA() != null)
+              {
+                oldMem.get_memIndexA().closeIndexWriter();
+              }
+              RAMSearchIndex memIndexB = newMemIndex(version);
+              swapMem(new Mem(oldMem.get_memIndexA(), memIndexB, memIndexB, oldMem.get_memIndexA(), oldMem.get_diskIndexReader()));
+            }
 	        log.info("Current writable index is B, new B created");
 	      }
 	      else   //合并完成后  Status.Sleep
@@ -251,19 +444,23 @@ public class SearchIndexManager<R extends IndexReader>{
 	        catch (IOException e)
 	        {
               log.error(e.getMessage(),e);
-              try
-              {
-                if(diskIndexReader != null) diskIndexReader.close();
-              }
-              catch(Exception ignore)
-              {
-              }
 	          return;
 	        }
-	        Mem oldMem = _mem;
-	        Mem mem = new Mem(oldMem.get_memIndexB(), null, oldMem.get_memIndexB(), null, diskIndexReader);
-	        _mem = mem;
+	        Mem oldMem;
+	        synchronized(this)
+	        {
+	          oldMem = _mem;
+	          swapMem(new Mem(oldMem.get_memIndexB(), null, oldMem.get_memIndexB(), null, diskIndexReader));
+	        }
+	        releaseReader(diskIndexReader);   // the new Mem holds its own lease
 	        log.info("Current writable index is A, B is flushed");
+	        
+	        // the old A is flushed, its directory is closed once the snapshots still reading it are released
+	        RAMSearchIndex oldMemIndexA = oldMem.get_memIndexA();
+	        if (oldMemIndexA != null)
+	        {
+	          oldMemIndexA.close();
+	        }
 	      }
 	      _diskIndexerStatus = status;
 	    }
@@ -290,9 +487,12 @@ public class SearchIndexManager<R extends IndexReader>{
           }
 	    }
 	    long version = _diskIndex.getVersion();
-        RAMSearchIndex memIndexA = new RAMSearchIndex(version, _indexReaderDecorator);
-	    Mem mem = new Mem(memIndexA, null, memIndexA, null, diskIndexReader);
-	    _mem = mem;
+        RAMSearchIndex memIndexA = newMemIndex(version);
+	    synchronized(this)
+	    {
+	      swapMem(new Mem(memIndexA, null, memIndexA, null, diskIndexReader));
+	    }
+	    releaseReader(diskIndexReader);
 	  }
 
 	  public BaseSearchIndex getDiskIndex()
@@ -318,7 +518,15 @@ public class SearchIndexManager<R extends IndexReader>{
 	    {
 	      _diskIndex.close();
 	    }
-	    Mem mem = _mem;
+	    ReaderSnapshot snapshot = _readerSnapshot.getAndSet(null);
+	    if (snapshot != null) snapshot.release();
+	    Mem mem;
+	    synchronized(this)
+	    {
+	      mem = _mem;
+	      // the disk reader is closed once the readers handed out are returned
+	      swapMem(new Mem(mem.get_memIndexA(), mem.get_memIndexB(), mem.get_currentWritable(), mem.get_currentReadOnly(), null));
+	    }
 	    if (mem.get_memIndexA()!=null)
 	    {
 	      mem.get_memIndexA().close();
@@ -352,6 +560,18 @@ public class SearchIndexManager<R extends IndexReader>{
 	    return (memIndexA==null) ? 0L : memIndexA.getVersion();
 	  }
 	  
+	  public long getRamASizeInBytes()
+	  {
+        RAMSearchIndex memIndexA = _mem.get_memIndexA();
+	    return (memIndexA==null) ? 0L : memIndexA.getSizeInBytes();
+	  }
+	  
+	  public long getRamBSizeInBytes()
+	  {
+        RAMSearchIndex memIndexB = _mem.get_memIndexB();
+	    return (memIndexB==null) ? 0L : memIndexB.getSizeInBytes();
+	  }
+	  
 	  public int getRamBIndexSize()
 	  {
         RAMSearchIndex memIndexB = _mem.get_memIndexB();
@@ -401,14 +621,32 @@ public class SearchIndexManager<R extends IndexReader>{
 	  {
 		log.info("purging index ...");
 		
+        // the writer must not outlive the directory it writes to
+        if(_diskIndex != null)
+        {
+          _diskIndex.closeIndexWriter();
+        }
+
         FileUtil.rmDir(_location);
         
         if(_diskIndex != null)
 		{
           _diskIndex.refresh();
-          RAMSearchIndex memIndexA = new RAMSearchIndex(_diskIndex.getVersion(), _indexReaderDecorator);
-          Mem mem = new Mem(memIndexA, null, memIndexA, null, null);
-          _mem = mem;
+          RAMSearchIndex memIndexA = newMemIndex(_diskIndex.getVersion());
+          Mem oldMem;
+          synchronized(this)
+          {
+            oldMem = _mem;
+            swapMem(new Mem(memIndexA, null, memIndexA, null, null));
+          }
+          if (oldMem.get_memIndexA() != null)
+          {
+            oldMem.get_memIndexA().close();
+          }
+          if (oldMem.get_memIndexB() != null)
+          {
+            oldMem.get_memIndexB().close();
+          }
 		}
 		
 		log.info("index purged");
@@ -427,19 +665,158 @@ public class SearchIndexManager<R extends IndexReader>{
           catch(IOException e)
           {
             log.error(e.getMessage(),e);
-            if(diskIndexReader != null) diskIndexReader.close();
             throw e;
           }
-          Mem oldMem = _mem;
-          Mem mem = new Mem(oldMem.get_memIndexA(),
+          synchronized(this)
+          {
+            Mem oldMem = _mem;
+            swapMem(new Mem(oldMem.get_memIndexA(),
                             oldMem.get_memIndexB(),
                             oldMem.get_currentWritable(),
                             oldMem.get_currentReadOnly(),
-                            diskIndexReader);
-          _mem = mem;
+                            diskIndexReader));
+          }
+          releaseReader(diskIndexReader);   // the new Mem holds its own lease
 		  log.info("disk reader refreshed");
 	  }
 	  
+  /**
+   * The readers of one generation of the memory and disk indexes, as views masking in each reader
+   * the documents updated in the newer ones. The snapshot holds a lease on the three readers, given
+   * back when the manager and every lease from {@link SearchIndexManager#leaseIndexReaders()} have released it.
+   */
+  private final class ReaderSnapshot extends AbstractList<R>
+  {
+    private final ZoieIndexReader _readerB;
+    private final ZoieIndexReader _readerA;
+    private final ZoieIndexReader _diskReader;
+    private final List<R> _readers;
+    private int _leases = 1;    // held by the manager while the snapshot is current
+    
+    ReaderSnapshot(ZoieIndexReader readerB, ZoieIndexReader readerA, ZoieIndexReader diskReader) throws IOException
+    {
+      _readerB = readerB;
+      _readerA = readerA;
+      _diskReader = diskReader;
+      
+      ArrayList<R> readers = new ArrayList<R>(3);
+      IntSet memDelSet = null;
+      IntSet diskDelSet = null;
+      if (readerB != null)
+      {
+        memDelSet = readerB.getModifiedSet();
+        if (memDelSet != null && memDelSet.size() > 0)
+        {
+          diskDelSet = memDelSet;
+        }
+        readers.add(decorated(readerB));
+      }
+      if (readerA != null)
+      {
+        IntSet tmpDelSet = readerA.getModifiedSet();
+        if (diskDelSet == null)
+        {
+          diskDelSet = tmpDelSet;
+        }
+        else if (tmpDelSet != null && tmpDelSet.size() > 0)
+        {
+          // the modified sets are immutable snapshots, combine them without copying
+          diskDelSet = new IntSetUnion(diskDelSet, tmpDelSet);
+        }
+      }
+      
+      // probed for every document when a view resolves a large set to docids
+      IntSet acceleratedMemDelSet = accelerate(memDelSet);
+      IntSet acceleratedDiskDelSet = (diskDelSet == memDelSet) ? acceleratedMemDelSet : accelerate(diskDelSet);
+      if (readerA != null)
+      {
+        readers.add(decorated(readerA.withDelSet(acceleratedMemDelSet)));
+      }
+      if (diskReader != null)
+      {
+        readers.add(decorated(diskReader.withDelSet(acceleratedDiskDelSet)));
+      }
+      _readers = readers;
+    }
+    
+    private IntSet accelerate(IntSet set)
+    {
+      return (set != null && set.size() > 0) ? new IntSetAccelerator(set) : set;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private R decorated(ZoieIndexReader reader) throws IOException
+    {
+      return (R)reader.getDecoratedReader();
+    }
+    
+    boolean isOf(ZoieIndexReader readerB, ZoieIndexReader readerA, ZoieIndexReader diskReader)
+    {
+      return _readerB == readerB && _readerA == readerA && _diskReader == diskReader;
+    }
+    
+    @Override
+    public R get(int index)
+    {
+      return _readers.get(index);
+    }
+    
+    @Override
+    public int size()
+    {
+      return _readers.size();
+    }
+    
+    /**
+     * @return false if the snapshot was already released by its last holder
+     */
+    synchronized boolean acquire()
+    {
+      if (_leases <= 0) return false;
+      _leases++;
+      return true;
+    }
+    
+    void release()
+    {
+      synchronized(this)
+      {
+        if (_leases <= 0) throw new IllegalStateException("readers already returned");
+        if (--_leases > 0) return;
+      }
+      releaseReader(_readerB);
+      releaseReader(_readerA);
+      releaseReader(_diskReader);
+    }
+  }
+  
+  /**
+   * A lease on a snapshot, released once however many times it is closed.
+   */
+  private final class ReaderLease implements IndexReaderLease<R>
+  {
+    private final ReaderSnapshot _snapshot;
+    private final AtomicBoolean _closed = new AtomicBoolean(false);
+    
+    ReaderLease(ReaderSnapshot snapshot)
+    {
+      _snapshot = snapshot;
+    }
+    
+    public List<R> getReaders()
+    {
+      return _snapshot;
+    }
+    
+    public void close()
+    {
+      if (_closed.compareAndSet(false, true))
+      {
+        _snapshot.release();
+      }
+    }
+  }
+  
   private final class Mem
   {
     private final RAMSearchIndex _memIndexA;
@@ -457,6 +834,10 @@ public class SearchIndexManager<R extends IndexReader>{
      */
     Mem(RAMSearchIndex a, RAMSearchIndex b, RAMSearchIndex w, RAMSearchIndex r, ZoieIndexReader d)
     {
+      if (d != null && !d.acquire())
+      {
+        throw new IllegalStateException("disk reader already closed");
+      }
       _memIndexA = a;
       _memIndexB = b;
       _currentWritable = w;
@@ -464,6 +845,14 @@ public class SearchIndexManager<R extends IndexReader>{
       _diskIndexReader = d;
     }
     
+    /**
+     * Gives back the lease taken on the disk reader, once the Mem is replaced.
+     */
+    void release()
+    {
+      releaseReader(_diskIndexReader);
+    }
+    
     protected RAMSearchIndex get_memIndexA()
     {
       return _memIndexA;
@@ -0,0 +1,149 @@
+package proj.zoie.impl.indexing.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * Sidecar file holding the uid of every document of a segment, named <code>&lt;segment&gt;.zuid</code> and kept
+ * next to the segment files. Segments are immutable, so the file is written once, the first time the uids of the
+ * segment are decoded, and later readers load it instead of decoding the _ID:_UID payloads again.
+ * <p>
+ * Layout: <code>magic, maxDoc, maxDoc uids, magic</code>, all big endian ints. The trailing magic is written last,
+ * a file cut short is ignored and written again.
+ */
+class SegmentUIDFile
+{
+  private static final Logger log = Logger.getLogger(SegmentUIDFile.class);
+
+  static final String EXTENSION = ".zuid";
+  private static final int MAGIC = 0x7A756964;  // "zuid"
+  private static final int OVERHEAD = 12;
+  private static final int CHUNK_SIZE = 4096;   // uids read at a time
+
+  private SegmentUIDFile()
+  {
+  }
+
+  /**
+   * @return the uids of <code>segment</code>, null if there is no complete file for a segment of <code>maxDoc</code> documents
+   */
+  static int[] read(Directory dir, String segment, int maxDoc)
+  {
+    String name = segment + EXTENSION;
+    try
+    {
+      if (!dir.fileExists(name) || dir.fileLength(name) != OVERHEAD + 4L * maxDoc) return null;
+      IndexInput in = dir.openInput(name);
+      try
+      {
+        if (in.readInt() != MAGIC || in.readInt() != maxDoc) return null;
+        int[] uids = new int[maxDoc];
+        byte[] chunk = new byte[4 * Math.min(maxDoc, CHUNK_SIZE)];
+        IntBuffer buf = ByteBuffer.wrap(chunk).asIntBuffer();   // big endian, as written by IndexOutput.writeInt()
+        for (int i = 0; i < maxDoc; )
+        {
+          int n = Math.min(maxDoc - i, CHUNK_SIZE);
+          in.readBytes(chunk, 0, 4 * n);
+          buf.clear();
+          buf.get(uids, i, n);
+          i += n;
+        }
+        return (in.readInt() == MAGIC ? uids : null);
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+    catch(IOException e)
+    {
+      log.warn("unable to read " + name + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Writes the file of <code>segment</code>. Failures are logged only, the uids are decoded again next time.
+   */
+  static void write(Directory dir, String segment, int[] uids)
+  {
+    String name = segment + EXTENSION;
+    IndexOutput out = null;
+    try
+    {
+      out = dir.createOutput(name);
+      out.writeInt(MAGIC);
+      out.writeInt(uids.length);
+      for (int uid : uids)
+      {
+        out.writeInt(uid);
+      }
+      out.writeInt(MAGIC);
+    }
+    catch(IOException e)
+    {
+      log.warn("unable to write " + name + ": " + e.getMessage());
+    }
+    finally
+    {
+      if (out != null)
+      {
+        try
+        {
+          out.close();
+        }
+        catch(IOException e)
+        {
+          log.warn(e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes the file of <code>segment</code>, if any.
+   */
+  static void delete(Directory dir, String segment)
+  {
+    String name = segment + EXTENSION;
+    try
+    {
+      if (dir.fileExists(name)) dir.deleteFile(name);
+    }
+    catch(IOException e)
+    {
+      log.warn("unable to delete " + name + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Deletes the files of the segments not in <code>liveSegments</code>, Lucene does not know about them
+   * and leaves them behind when segments are merged away. Lists the whole directory.
+   */
+  static void purge(Directory dir, Set<String> liveSegments)
+  {
+    try
+    {
+      String[] files = dir.list();
+      if (files == null) return;
+      for (String file : files)
+      {
+        if (file.endsWith(EXTENSION) && !liveSegments.contains(file.substring(0, file.length() - EXTENSION.length())))
+        {
+          dir.deleteFile(file);
+        }
+      }
+    }
+    catch(IOException e)
+    {
+      log.warn("unable to purge uid files: " + e.getMessage());
+    }
+  }
+}
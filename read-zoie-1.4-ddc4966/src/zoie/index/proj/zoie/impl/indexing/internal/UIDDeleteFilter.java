@@ -0,0 +1,101 @@
+package proj.zoie.impl.indexing.internal;
+
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntSet;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexUtil;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.OpenBitSet;
+
+import proj.zoie.api.DocIDMapper;
+import proj.zoie.api.ZoieIndexReader;
+
+/**
+ * Matches the documents whose uid is in a given set, so that deletes by uid can go through
+ * {@link org.apache.lucene.index.IndexWriter#deleteDocuments(org.apache.lucene.search.Query)}.
+ * The writer applies the filter to each of its segment readers, possibly later, when it flushes.
+ * <p>
+ * The uids of a segment come from the reader given, which holds them for the segments it has loaded,
+ * and a small set is looked up in the DocIDMapper of the segment, so that the cost follows the number of deletes.
+ * Only the segments the reader does not know, written or merged since it was opened, are decoded from their
+ * _ID:_UID payloads, once, and kept in the map given for the following deletes.
+ */
+class UIDDeleteFilter extends Filter
+{
+  private static final long serialVersionUID = 1L;
+
+  private final IntSet _delSet;
+  private final ZoieIndexReader _reader;
+  private final Map<String,int[]> _decoded;
+
+  /**
+   * @param reader reader on the index the writer writes, null if there is none
+   * @param decoded uids of the segments decoded by earlier filters, by segment name, locked on use
+   */
+  UIDDeleteFilter(IntSet delSet, ZoieIndexReader reader, Map<String,int[]> decoded)
+  {
+    _delSet = delSet;
+    _reader = reader;
+    _decoded = decoded;
+  }
+
+  @Override
+  public DocIdSet getDocIdSet(IndexReader segmentReader) throws IOException
+  {
+    int maxDoc = segmentReader.maxDoc();
+    String name = IndexUtil.getSegmentName(segmentReader);
+    OpenBitSet bits = new OpenBitSet(maxDoc);
+    
+    if (_reader != null && (long)_delSet.size() * ZoieIndexReader.MAPPER_LOOKUP_RATIO < maxDoc)
+    {
+      DocIDMapper mapper = _reader.getSegmentDocIDMapper(name, maxDoc);
+      if (mapper != null)
+      {
+        IntIterator iter = _delSet.iterator();
+        while (iter.hasNext())
+        {
+          int docid = mapper.getDocID(iter.nextInt());
+          if (docid >= 0) bits.fastSet(docid);
+        }
+        return bits;
+      }
+    }
+    
+    int[] uidArray = getUIDArray(segmentReader, name, maxDoc);
+    for (int docid = 0; docid < uidArray.length; ++docid)
+    {
+      int uid = uidArray[docid];
+      if (uid != ZoieIndexReader.DELETED_UID && _delSet.contains(uid))
+      {
+        bits.fastSet(docid);
+      }
+    }
+    return bits;
+  }
+
+  private int[] getUIDArray(IndexReader segmentReader, String name, int maxDoc) throws IOException
+  {
+    int[] uidArray = (_reader != null) ? _reader.getSegmentUIDs(name, maxDoc) : null;
+    if (uidArray != null) return uidArray;
+    if (name == null) return ZoieIndexReader.loadUIDArray(segmentReader);
+    
+    synchronized(_decoded)
+    {
+      uidArray = _decoded.get(name);
+    }
+    if (uidArray == null || uidArray.length != maxDoc)
+    {
+      uidArray = ZoieIndexReader.loadUIDArray(segmentReader);
+      synchronized(_decoded)
+      {
+        _decoded.put(name, uidArray);
+      }
+    }
+    return uidArray;
+  }
+}
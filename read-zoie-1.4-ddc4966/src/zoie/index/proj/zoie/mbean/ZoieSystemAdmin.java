@@ -153,4 +153,124 @@ public class ZoieSystemAdmin implements ZoieSystemAdminMBean {
     {
       return _internalMBean.getCurrentDiskBatchSize(); 
     }
+    
+    public int getInterpreterThreads()
+    {
+      return _internalMBean.getInterpreterThreads();
+    }
+    
+    public void setInterpreterThreads(int numThreads)
+    {
+      _internalMBean.setInterpreterThreads(numThreads);
+    }
+    
+    public long getLastInterpretTime()
+    {
+      return _internalMBean.getLastInterpretTime();
+    }
+    
+    public long getLastRAMIndexTime()
+    {
+      return _internalMBean.getLastRAMIndexTime();
+    }
+    
+    public long getLastDiskIndexTime()
+    {
+      return _internalMBean.getLastDiskIndexTime();
+    }
+    
+    public long getAverageInterpretTime()
+    {
+      return _internalMBean.getAverageInterpretTime();
+    }
+    
+    public boolean isAdaptiveBatching()
+    {
+      return _internalMBean.isAdaptiveBatching();
+    }
+    
+    public void setAdaptiveBatching(boolean adaptive)
+    {
+      _internalMBean.setAdaptiveBatching(adaptive);
+    }
+    
+    public long getTargetFlushTime()
+    {
+      return _internalMBean.getTargetFlushTime();
+    }
+    
+    public void setTargetFlushTime(long targetFlushTime)
+    {
+      _internalMBean.setTargetFlushTime(targetFlushTime);
+    }
+    
+    public long getTargetLag()
+    {
+      return _internalMBean.getTargetLag();
+    }
+    
+    public void setTargetLag(long targetLag)
+    {
+      _internalMBean.setTargetLag(targetLag);
+    }
+    
+    public int getOverflowSize()
+    {
+      return _internalMBean.getOverflowSize();
+    }
+    
+    public long getNumCoalesced()
+    {
+      return _internalMBean.getNumCoalesced();
+    }
+    
+    public boolean isPersistentDiskWriter()
+    {
+      return _internalMBean.isPersistentDiskWriter();
+    }
+    
+    public int getDiskCommitGroupSize()
+    {
+      return _internalMBean.getDiskCommitGroupSize();
+    }
+    
+    public void setDiskCommitGroupSize(int commitGroupSize)
+    {
+      _internalMBean.setDiskCommitGroupSize(commitGroupSize);
+    }
+    
+    public boolean isOffHeapRamIndex()
+    {
+      return _internalMBean.isOffHeapRamIndex();
+    }
+    
+    public long getRamASizeInBytes()
+    {
+      return _internalMBean.getRamASizeInBytes();
+    }
+    
+    public long getRamBSizeInBytes()
+    {
+      return _internalMBean.getRamBSizeInBytes();
+    }
+    
+    public double getDiskMergeMaxMBPerSec()
+    {
+      return _internalMBean.getDiskMergeMaxMBPerSec();
+    }
+    
+    public void setDiskMergeMaxMBPerSec(double maxMBPerSec)
+    {
+      _internalMBean.setDiskMergeMaxMBPerSec(maxMBPerSec);
+    }
+    
+    public int getDiskBuildThreads()
+    {
+      return _internalMBean.getDiskBuildThreads();
+    }
+    
+    public void setDiskBuildThreads(int numThreads)
+    {
+      _internalMBean.setDiskBuildThreads(numThreads);
+    }
 }
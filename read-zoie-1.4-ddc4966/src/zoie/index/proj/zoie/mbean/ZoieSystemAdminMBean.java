@@ -71,4 +71,52 @@ public interface ZoieSystemAdminMBean {
 	int getCurrentMemBatchSize();
     
     int getCurrentDiskBatchSize();
+    
+    int getInterpreterThreads();
+    
+    void setInterpreterThreads(int numThreads);
+    
+    long getLastInterpretTime();
+    
+    long getLastRAMIndexTime();
+    
+    long getLastDiskIndexTime();
+    
+    long getAverageInterpretTime();
+    
+    boolean isAdaptiveBatching();
+    
+    void setAdaptiveBatching(boolean adaptive);
+    
+    long getTargetFlushTime();
+    
+    void setTargetFlushTime(long targetFlushTime);
+    
+    long getTargetLag();
+    
+    void setTargetLag(long targetLag);
+    
+    int getOverflowSize();
+    
+    long getNumCoalesced();
+    
+    boolean isPersistentDiskWriter();
+    
+    int getDiskCommitGroupSize();
+    
+    void setDiskCommitGroupSize(int commitGroupSize);
+    
+    boolean isOffHeapRamIndex();
+    
+    long getRamASizeInBytes();
+    
+    long getRamBSizeInBytes();
+    
+    double getDiskMergeMaxMBPerSec();
+    
+    void setDiskMergeMaxMBPerSec(double maxMBPerSec);
+    
+    int getDiskBuildThreads();
+    
+    void setDiskBuildThreads(int numThreads);
 }